@@ -18,9 +18,14 @@ precision mediump float;
 
 uniform sampler2D u_Texture;
 
+#if USE_UNIFORM_BLOCKS
+#include "shaders/frame_uniforms.glsl"
+#else
 uniform vec4 u_LightingParameters;
 uniform vec4 u_MaterialParameters;
 uniform vec4 u_ColorCorrectionParameters;
+uniform vec4 u_ObjColor;
+#endif
 
 #if USE_DEPTH_FOR_OCCLUSION
 uniform sampler2D u_DepthTexture;
@@ -32,7 +37,6 @@ varying vec3 v_ViewPosition;
 varying vec3 v_ViewNormal;
 varying vec2 v_TexCoord;
 varying vec3 v_ScreenSpacePosition;
-uniform vec4 u_ObjColor;
 
 #if USE_DEPTH_FOR_OCCLUSION
 
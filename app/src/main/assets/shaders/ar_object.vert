@@ -14,8 +14,12 @@
  * limitations under the License.
  */
 
+#if USE_UNIFORM_BLOCKS
+#include "shaders/frame_uniforms.glsl"
+#else
 uniform mat4 u_ModelView;
 uniform mat4 u_ModelViewProjection;
+#endif
 
 attribute vec4 a_Position;
 attribute vec3 a_Normal;
@@ -26,10 +30,16 @@ varying vec3 v_ViewNormal;
 varying vec2 v_TexCoord;
 varying vec3 v_ScreenSpacePosition;
 
+invariant gl_Position;
+
 void main() {
     v_ViewPosition = (u_ModelView * a_Position).xyz;
     v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
     v_TexCoord = a_TexCoord;
+#if USE_UNIFORM_BLOCKS
+    gl_Position = u_Projection * (u_ModelView * a_Position);
+#else
     gl_Position = u_ModelViewProjection * a_Position;
+#endif
     v_ScreenSpacePosition = gl_Position.xyz / gl_Position.w;
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Precision is explicit because the blocks are declared in both the vertex and fragment stages.
+layout(std140) uniform FrameUniforms {
+    highp mat4 u_View;
+    highp mat4 u_Projection;
+    highp vec4 u_LightingParameters;
+    highp vec4 u_ColorCorrectionParameters;
+};
+
+layout(std140) uniform ObjectUniforms {
+    highp mat4 u_ModelView;
+    highp vec4 u_MaterialParameters;
+    highp vec4 u_ObjColor;
+};
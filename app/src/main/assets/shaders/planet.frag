@@ -0,0 +1,42 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+precision mediump float;
+
+uniform sampler2D u_Texture;
+
+#if USE_UNIFORM_BLOCKS
+#include "shaders/frame_uniforms.glsl"
+#else
+uniform vec4 u_LightingParameters;
+uniform vec4 u_ColorCorrectionParameters;
+#endif
+
+varying vec3 v_ViewNormal;
+varying vec2 v_TexCoord;
+
+void main() {
+    const float kMiddleGrayGamma = 0.466;
+    const float kAmbient = 0.25;
+
+    vec3 viewNormal = normalize(v_ViewNormal);
+    float diffuse = max(dot(viewNormal, u_LightingParameters.xyz), 0.0);
+    vec3 color = texture2D(u_Texture, v_TexCoord).rgb * (kAmbient + (1.0 - kAmbient) * diffuse);
+
+    // Apply average pixel intensity and color shift
+    color *= u_ColorCorrectionParameters.rgb * (u_ColorCorrectionParameters.a / kMiddleGrayGamma);
+    gl_FragColor = vec4(color, 1.0);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#if USE_UNIFORM_BLOCKS
+#include "shaders/frame_uniforms.glsl"
+#else
+uniform mat4 u_ModelView;
+uniform mat4 u_ModelViewProjection;
+#endif
+
+attribute vec4 a_Position;
+attribute vec2 a_TexCoord;
+
+varying vec3 v_ViewNormal;
+varying vec2 v_TexCoord;
+
+invariant gl_Position;
+
+void main() {
+    // The sphere is a unit sphere, so the position doubles as the normal.
+    v_ViewNormal = (u_ModelView * vec4(a_Position.xyz, 0.0)).xyz;
+    v_TexCoord = a_TexCoord;
+#if USE_UNIFORM_BLOCKS
+    gl_Position = u_Projection * (u_ModelView * a_Position);
+#else
+    gl_Position = u_ModelViewProjection * a_Position;
+#endif
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.AugmentedImage;
+import com.google.ar.core.HitResult;
+import com.google.ar.core.TrackingState;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AnchorManager {
+	public interface Listener {
+		void onAnchorDetached(AugmentedImage image);
+
+		void onPlacementDetached(Anchor anchor);
+	}
+
+	private static final class Entry {
+		AugmentedImage image;
+		Anchor anchor;
+		long lastTrackedMillis;
+		// Было ли изображение отслеживаемым на прошлом кадре: повторным считается только возврат к отслеживанию
+		boolean tracking;
+	}
+
+	private final int maxAnchors;
+	private final long staleMillis;
+	private final Listener listener;
+
+	// Каждый живой якорь стоит ARCore времени оптимизации на каждом кадре, поэтому их число ограничено
+	// одним бюджетом на якоря изображений и планет, поставленных касанием
+	private final List<Entry> entries = new ArrayList<>();
+	private final List<Entry> placements = new ArrayList<>();
+	private long createdAnchors;
+	private long reusedAnchors;
+	private long detachedAnchors;
+
+	public AnchorManager(int maxAnchors, long staleMillis, Listener listener) {
+		this.maxAnchors = maxAnchors;
+		this.staleMillis = staleMillis;
+		this.listener = listener;
+	}
+
+	public Anchor acquire(AugmentedImage image, long nowMillis) {
+		Entry entry = find(image.getIndex());
+		if (entry != null) {
+			entry.lastTrackedMillis = nowMillis;
+			// ARCore отдаёт новые обёртки изображения каждый кадр, поэтому сравнивать их по ссылке нельзя
+			entry.image = image;
+			if (!entry.tracking) {
+				// Повторно найденное изображение продолжает пользоваться прежней позой относительно себя
+				entry.tracking = true;
+				reusedAnchors++;
+			}
+			return entry.anchor;
+		}
+		reserve();
+		entry = new Entry();
+		entry.image = image;
+		entry.anchor = image.createAnchor(image.getCenterPose());
+		entry.lastTrackedMillis = nowMillis;
+		entry.tracking = true;
+		entries.add(entry);
+		createdAnchors++;
+		return entry.anchor;
+	}
+
+	public Anchor acquirePlacement(HitResult hit, long nowMillis) {
+		reserve();
+		Entry entry = new Entry();
+		entry.anchor = hit.createAnchor();
+		entry.lastTrackedMillis = nowMillis;
+		placements.add(entry);
+		createdAnchors++;
+		return entry.anchor;
+	}
+
+	public void update(long nowMillis) {
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			Entry entry = entries.get(i);
+			TrackingState imageState = entry.image.getTrackingState();
+			entry.tracking = imageState == TrackingState.TRACKING;
+			if (entry.tracking) {
+				entry.lastTrackedMillis = nowMillis;
+			}
+			if (imageState == TrackingState.STOPPED || entry.anchor.getTrackingState() == TrackingState.STOPPED
+					|| nowMillis - entry.lastTrackedMillis > staleMillis) {
+				detach(i);
+			}
+		}
+		for (int i = placements.size() - 1; i >= 0; i--) {
+			Entry entry = placements.get(i);
+			TrackingState anchorState = entry.anchor.getTrackingState();
+			if (anchorState == TrackingState.TRACKING) {
+				entry.lastTrackedMillis = nowMillis;
+			}
+			// Поставленную пользователем планету не отцепляем за давностью, только при вытеснении
+			if (anchorState == TrackingState.STOPPED) {
+				detachPlacement(i);
+			}
+		}
+	}
+
+	public void release(int imageIndex) {
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (entries.get(i).image.getIndex() == imageIndex) {
+				detach(i);
+			}
+		}
+	}
+
+	public void release(Anchor placementAnchor) {
+		for (int i = placements.size() - 1; i >= 0; i--) {
+			if (placements.get(i).anchor == placementAnchor) {
+				detachPlacement(i);
+			}
+		}
+	}
+
+	public void releaseImages() {
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			detach(i);
+		}
+	}
+
+	public void releaseAll() {
+		releaseImages();
+		for (int i = placements.size() - 1; i >= 0; i--) {
+			detachPlacement(i);
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public AugmentedImage getImage(int i) {
+		return entries.get(i).image;
+	}
+
+	public Anchor getAnchor(int i) {
+		return entries.get(i).anchor;
+	}
+
+	public int getLiveCount() {
+		return entries.size() + placements.size();
+	}
+
+	public long getCreatedAnchors() {
+		return createdAnchors;
+	}
+
+	public long getReusedAnchors() {
+		return reusedAnchors;
+	}
+
+	public long getDetachedAnchors() {
+		return detachedAnchors;
+	}
+
+	private Entry find(int imageIndex) {
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			if (entry.image.getIndex() == imageIndex) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void reserve() {
+		if (getLiveCount() < maxAnchors) {
+			return;
+		}
+		int oldest = leastRecentlyTracked(entries);
+		int oldestPlacement = leastRecentlyTracked(placements);
+		if (oldestPlacement >= 0 && (oldest < 0
+				|| placements.get(oldestPlacement).lastTrackedMillis < entries.get(oldest).lastTrackedMillis)) {
+			detachPlacement(oldestPlacement);
+		} else {
+			detach(oldest);
+		}
+	}
+
+	private static int leastRecentlyTracked(List<Entry> list) {
+		int oldest = list.isEmpty() ? -1 : 0;
+		for (int i = 1; i < list.size(); i++) {
+			if (list.get(i).lastTrackedMillis < list.get(oldest).lastTrackedMillis) {
+				oldest = i;
+			}
+		}
+		return oldest;
+	}
+
+	private void detach(int i) {
+		Entry entry = entries.remove(i);
+		entry.anchor.detach();
+		detachedAnchors++;
+		listener.onAnchorDetached(entry.image);
+	}
+
+	private void detachPlacement(int i) {
+		Entry entry = placements.remove(i);
+		entry.anchor.detach();
+		detachedAnchors++;
+		listener.onPlacementDetached(entry.anchor);
+	}
+}
@@ -15,16 +15,17 @@
  */
 package com.maxfeed.ar.space.core;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.Pair;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.bumptech.glide.Glide;
@@ -36,79 +37,417 @@ import com.google.ar.core.AugmentedImageDatabase;
 import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
 import com.google.ar.core.Frame;
+import com.google.ar.core.HitResult;
+import com.google.ar.core.PointCloud;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
-import com.google.ar.core.exceptions.CameraNotAvailableException;
-import com.google.ar.core.exceptions.UnavailableApkTooOldException;
-import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
-import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
+import com.google.ar.core.TrackingState;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
 import com.maxfeed.ar.space.R;
+import com.maxfeed.ar.space.core.camera.CameraConfigSelector;
+import com.maxfeed.ar.space.core.camera.CameraImagePipeline;
+import com.maxfeed.ar.space.core.camera.LumaAnalyzer;
+import com.maxfeed.ar.space.core.database.ImageDatabaseManager;
+import com.maxfeed.ar.space.core.database.ImageDatabaseShard;
+import com.maxfeed.ar.space.core.database.ShardMetrics;
+import com.maxfeed.ar.space.core.database.ShardSelector;
 import com.maxfeed.ar.space.core.rendering.AugmentedImageRenderer;
+import com.maxfeed.ar.space.core.rendering.PlanetRenderer;
+import com.maxfeed.ar.space.rendering.AssetCache;
 import com.maxfeed.ar.space.rendering.BackgroundRenderer;
+import com.maxfeed.ar.space.rendering.DrawList;
+import com.maxfeed.ar.space.rendering.FrameCapture;
+import com.maxfeed.ar.space.rendering.FrameUniforms;
+import com.maxfeed.ar.space.rendering.GlContextFactory;
+import com.maxfeed.ar.space.rendering.GlState;
+import com.maxfeed.ar.space.rendering.LightEstimator;
+import com.maxfeed.ar.space.rendering.PointCloudRenderer;
+import com.maxfeed.ar.space.rendering.ScaledRenderTarget;
+import com.maxfeed.ar.space.rendering.TextureManager;
+import com.maxfeed.ar.space.rendering.VideoRecorder;
 import com.maxfeed.ar.space.util.CameraPermissionHelper;
 import com.maxfeed.ar.space.util.DisplayRotationHelper;
 import com.maxfeed.ar.space.util.FullScreenHelper;
+import com.maxfeed.ar.space.util.InstantPlacementSettings;
 import com.maxfeed.ar.space.util.SnackbarHelper;
+import com.maxfeed.ar.space.util.StartupTracer;
+import com.maxfeed.ar.space.util.TapHelper;
 import com.maxfeed.ar.space.util.TrackingStateHelper;
+import com.maxfeed.ar.space.util.VoxelIndex;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Locale;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 public class AugmentedImageActivity extends AppCompatActivity implements GLSurfaceView.Renderer {
 	private static final String TAG = AugmentedImageActivity.class.getSimpleName();
 
+	// Отладка: вместо затенения слои перерисовки копятся в красном канале
+	private static final boolean SHOW_OVERDRAW = false;
+	// Облако точек рисуется только для отладки, индекс вокселей наполняется всегда
+	private static final boolean SHOW_POINT_CLOUD = false;
+	private static final float VOXEL_SIZE = 0.05f;
+	private static final int MAX_VOXELS = 16384;
+	// Воксели в пределах этого расстояния от камеры вытесняются последними
+	private static final float VOXEL_KEEP_RADIUS = 3.0f;
+	private static final int OVERDRAW_LOG_INTERVAL = 120;
+	private static final String RECORD_IDLE_TEXT = "● Запись";
+	private static final long RECORDING_OVERLAY_INTERVAL = 500;
+
+	// Якоря изображений и поставленных планет вместе: не больше MAX_ANCHORS, давно не виденные отцепляются
+	private static final int MAX_ANCHORS = 8;
+	private static final long STALE_ANCHOR_MILLIS = 30000;
+
+	// Планеты, поставленные касанием: примерное расстояние до уточнения и их размер
+	private static final float APPROXIMATE_DISTANCE_METERS = 1.0f;
+	private static final float PLACED_PLANET_RADIUS = 0.1f;
+	private static final int MAX_PLACEMENTS = 4;
+
 	private GLSurfaceView surfaceView;
 	private ImageView fitToScanView;
+	private ProgressBar databaseProgressView;
 	private RequestManager glideRequestManager;
 
 	private boolean installRequested;
 
-	private Session session;
+	// Сессия создаётся, настраивается и запускается в фоне, а поверхность пока рисует заглушку
+	private SessionLauncher sessionLauncher;
 	private final SnackbarHelper messageSnackbarHelper = new SnackbarHelper();
 	private DisplayRotationHelper displayRotationHelper;
 	private final TrackingStateHelper trackingStateHelper = new TrackingStateHelper(this);
 
 	private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
 	private final AugmentedImageRenderer augmentedImageRenderer = new AugmentedImageRenderer();
+	private final PlanetRenderer planetRenderer = new PlanetRenderer();
+	private final DrawList drawList = new DrawList();
+	private final LightEstimator lightEstimator = new LightEstimator();
+	// Объекты рисуются в уменьшенный буфер и растягиваются поверх камеры в полном разрешении
+	private final ScaledRenderTarget contentTarget = new ScaledRenderTarget();
+	private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+	private final VoxelIndex voxelIndex = new VoxelIndex(VOXEL_SIZE, MAX_VOXELS);
+	// Снимок экрана читается из основного буфера в конце кадра и кодируется в фоне
+	private final FrameCapture frameCapture = new FrameCapture();
+	// Запись видео копирует собранный кадр в поверхность кодировщика средствами GPU
+	private final VideoRecorder videoRecorder = new VideoRecorder();
+	private TextView recordingView;
+	private int viewportWidth = 1;
+	private int viewportHeight = 1;
+
+	// Анализ кадров камеры на процессоре идёт в своём потоке и не задерживает отрисовку
+	private final CameraImagePipeline cameraImagePipeline = new CameraImagePipeline();
+	private final LumaAnalyzer lumaAnalyzer = new LumaAnalyzer();
+	private CameraConfigSelector cameraConfigSelector;
+	private boolean darkHintShown;
+	// Состояние интерфейса собирается в потоке GL и уходит в поток интерфейса раз в кадр экрана
+	private final UiStateChannel uiStateChannel = new UiStateChannel();
+	private boolean overlayVisible = true;
+	private int messageId = UiStateChannel.MESSAGE_NONE;
+	private int messageArgument;
+	private int shownMessageId = UiStateChannel.MESSAGE_NONE;
+
+	// Касания копятся в кольце и разбираются в потоке GL одним проходом за кадр
+	private TapHelper tapHelper;
+	private TapResolver tapResolver;
+	private final InstantPlacementSettings instantPlacementSettings = new InstantPlacementSettings();
+	private final float[] placementMatrix = new float[16];
+	private final float[] placementBounds = new float[6];
+	private int selectedPlanet;
+	private int overdrawFrames;
+	private long lastFrameNanos;
+
+	private boolean glResourcesCreated = false;
+	// Рамки и планеты создаются только после первого показанного кадра камеры
+	private boolean cameraFrameShown = false;
+	private boolean contentRenderersCreated = false;
+
+	private StartupTracer startupTracer;
+
+	// Загрузка базы изображений в фоне, до её готовности сессия работает без распознавания
+	private ImageDatabaseManager imageDatabaseManager;
+	// Пишется в потоке интерфейса, читается при настройке сессии в потоке запуска
+	private volatile AugmentedImageDatabase augmentedImageDatabase;
+	private ShardSelector shardSelector;
+	// Индексы изображений локальны для каждой части базы, при смене части кеш плоскостей сбрасывается
+	private volatile int databaseGeneration;
+	private int drawnDatabaseGeneration;
+	// Изображения планет с их якорями, нужно для отрисовки
+	private final AnchorManager anchorManager = new AnchorManager(MAX_ANCHORS, STALE_ANCHOR_MILLIS,
+			new AnchorManager.Listener() {
+				@Override
+				public void onAnchorDetached(AugmentedImage image) {
+					sceneIndex.remove(image.getIndex());
+				}
+
+				@Override
+				public void onPlacementDetached(Anchor anchor) {
+					sceneIndex.removePlacement(placementController.onAnchorDetached(anchor));
+				}
+			});
+	private final PlacementController placementController = new PlacementController(MAX_PLACEMENTS, anchorManager);
+	// Пространственный индекс над изображениями для выбора касанием и отсечения по пирамиде видимости
+	private final SceneIndex sceneIndex = new SceneIndex();
+	private final float[] imageBounds = new float[6];
+	private final float[] planetBounds = new float[6];
+
+	private final UiStateChannel.Listener uiStateListener = new UiStateChannel.Listener() {
+		@Override
+		public void onOverlayVisibilityChanged(boolean visible) {
+			fitToScanView.setVisibility(visible ? View.VISIBLE : View.GONE);
+		}
+
+		@Override
+		public void onTrackingStateChanged(TrackingState trackingState) {
+			trackingStateHelper.updateKeepScreenOnFlag(trackingState);
+		}
+
+		@Override
+		public void onMessageChanged(int messageId, int argument) {
+			switch (messageId) {
+			case UiStateChannel.MESSAGE_PLANET_FOUND:
+				messageSnackbarHelper.showMessage(AugmentedImageActivity.this,
+						String.format(Locale.getDefault(), "Найдена планета %d", argument));
+				break;
+			case UiStateChannel.MESSAGE_PLANET_SELECTED:
+				messageSnackbarHelper.showMessage(AugmentedImageActivity.this,
+						String.format(Locale.getDefault(), "Выбрана планета %d", argument));
+				break;
+			case UiStateChannel.MESSAGE_TOO_DARK:
+				messageSnackbarHelper.showMessage(AugmentedImageActivity.this,
+						"Слишком темно для распознавания, добавьте света");
+				break;
+			default:
+				// Чужие сообщения, например об ошибках базы, этот канал не скрывает
+				if (shownMessageId != UiStateChannel.MESSAGE_NONE) {
+					messageSnackbarHelper.hide(AugmentedImageActivity.this);
+				}
+				break;
+			}
+			shownMessageId = messageId;
+		}
+	};
+
+	private final TapResolver.Listener tapListener = new TapResolver.Listener() {
+		@Override
+		public void onImageTapped(AugmentedImage image, float localX, float localZ, long timestamp) {
+			messageId = UiStateChannel.MESSAGE_PLANET_SELECTED;
+			messageArgument = image.getIndex();
+			// Следующее касание по поверхности поставит именно эту планету
+			selectedPlanet = image.getIndex();
+		}
 
-	private boolean shouldConfigureSession = false;
+		@Override
+		public void onPlacementTapped(int placementId, long timestamp) {
+			int planetIndex = placementController.findPlanetIndex(placementId);
+			if (planetIndex == PlacementController.NONE) {
+				return;
+			}
+			messageId = UiStateChannel.MESSAGE_PLANET_SELECTED;
+			messageArgument = planetIndex;
+			selectedPlanet = planetIndex;
+		}
 
-	// Использует сжатый файл для отрисовки или же оригинальный, нестабильный
-	private final boolean useSingleImage = false;
-	// Связки плоскостей с их центральными точками, нужно для отрисовки
-	private final Map<Integer, Pair<AugmentedImage, Anchor>> augmentedImageMap = new HashMap<>();
+		@Override
+		public void onSurfaceHit(HitResult hit, long timestamp) {
+			placementController.place(hit, selectedPlanet, timestamp);
+		}
+
+		@Override
+		public void onMiss(float x, float y, long timestamp) {
+			placementController.onTap(timestamp);
+		}
+	};
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		long createStart = SystemClock.elapsedRealtime();
+		startupTracer = new StartupTracer(this);
 		setContentView(R.layout.activity_main);
 		surfaceView = findViewById(R.id.surfaceCanvas);
 		displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
 
 		surfaceView.setPreserveEGLContextOnPause(true);
-		surfaceView.setEGLContextClientVersion(2);
-		surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
+		GlContextFactory contextFactory = new GlContextFactory(8, 8, 8, 8, 16, 0);
+		surfaceView.setEGLContextFactory(contextFactory);
+		surfaceView.setEGLConfigChooser(contextFactory);
 		surfaceView.setRenderer(this);
 		surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
 		surfaceView.setWillNotDraw(false);
+		tapHelper = new TapHelper(/*context=*/ this);
+		tapResolver = new TapResolver(tapHelper);
+		pointCloudRenderer.setVoxelIndex(voxelIndex);
+		instantPlacementSettings.onCreate(this);
+		tapResolver.setInstantPlacement(instantPlacementSettings.isInstantPlacementEnabled(),
+				APPROXIMATE_DISTANCE_METERS);
+		surfaceView.setOnTouchListener(tapHelper);
+		tapHelper.setLongPressListener(new TapHelper.LongPressListener() {
+			@Override
+			public void onLongPress() {
+				captureScreenshot();
+			}
+		});
 
+		// Подсказка загружается через Glide уже после первого кадра камеры, до него на экране всё равно пусто
 		fitToScanView = findViewById(R.id.fitToScanPlaceholder);
-		glideRequestManager = Glide.with(this);
-		glideRequestManager.load(Uri.parse("file:///android_asset/fit_to_scan.png")).into(fitToScanView);
+		databaseProgressView = findViewById(R.id.databaseProgress);
+		recordingView = findViewById(R.id.recordingOverlay);
+		recordingView.setText(RECORD_IDLE_TEXT);
+		recordingView.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				toggleRecording();
+			}
+		});
+
+		imageDatabaseManager = new ImageDatabaseManager(this, new ImageDatabaseManager.Listener() {
+			@Override
+			public void onStateChanged(ImageDatabaseManager.State state, ImageDatabaseShard shard,
+					AugmentedImageDatabase database) {
+				onImageDatabaseStateChanged(state, shard, database);
+			}
+		});
+		shardSelector = new ShardSelector(imageDatabaseManager.getShards());
+		cameraImagePipeline.addAnalyzer(lumaAnalyzer);
+		// Глубина для окклюзии пока не включается, поэтому датчик глубины только мешал бы
+		cameraConfigSelector = new CameraConfigSelector(this, /*depthWanted=*/ false);
+
+		sessionLauncher = new SessionLauncher(this, new SessionLauncher.Callbacks() {
+			@Override
+			public void onConfigure(Session session, boolean created) {
+				configureSession(session, created);
+			}
+
+			@Override
+			public void onRunning(Session session, boolean created) {
+				onSessionRunning(session, created);
+			}
+
+			@Override
+			public void onFailed(String message, Exception exception) {
+				messageSnackbarHelper.showError(AugmentedImageActivity.this, message);
+			}
+		});
+		SessionLauncher.prewarm(this);
 
 		installRequested = false;
+		startupTracer.span("activity create", createStart);
+	}
+
+	private final Runnable recordingTicker = new Runnable() {
+		@Override
+		public void run() {
+			if (!videoRecorder.isRecording()) {
+				return;
+			}
+			long seconds = videoRecorder.getElapsedMillis() / 1000;
+			recordingView.setText(String.format(Locale.US, "■ %d:%02d  %.1f мс/кадр", seconds / 60, seconds % 60,
+					videoRecorder.getFrameCostMillis()));
+			recordingView.postDelayed(this, RECORDING_OVERLAY_INTERVAL);
+		}
+	};
+
+	private void toggleRecording() {
+		File directory = getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+		if (directory == null) {
+			directory = getFilesDir();
+		}
+		final File file = new File(directory, "space_ar_" + System.currentTimeMillis() + ".mp4");
+		surfaceView.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				if (videoRecorder.isRecording()) {
+					videoRecorder.stop();
+					return;
+				}
+				final boolean started = videoRecorder.start(file, viewportWidth, viewportHeight, recordingListener);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (started) {
+							recordingView.post(recordingTicker);
+						} else {
+							Toast.makeText(AugmentedImageActivity.this, "Запись видео недоступна", Toast.LENGTH_SHORT)
+									.show();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private final VideoRecorder.Listener recordingListener = new VideoRecorder.Listener() {
+		@Override
+		public void onRecordingFinished(final File file, long frames, final Exception exception) {
+			if (exception != null) {
+				Log.e(TAG, "Recording " + file + " failed", exception);
+			} else {
+				Log.i(TAG, "Recording " + file + " saved with " + frames + " frames");
+			}
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					recordingView.removeCallbacks(recordingTicker);
+					recordingView.setText(RECORD_IDLE_TEXT);
+					Toast.makeText(AugmentedImageActivity.this,
+							exception == null ? "Видео сохранено" : "Не удалось сохранить видео", Toast.LENGTH_SHORT)
+							.show();
+				}
+			});
+		}
+	};
+
+	private void captureScreenshot() {
+		File directory = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+		if (directory == null) {
+			directory = getFilesDir();
+		}
+		File file = new File(directory, "space_ar_" + System.currentTimeMillis() + ".jpg");
+		frameCapture.request(file, new FrameCapture.Callback() {
+			@Override
+			public void onCaptured(final File file, long captureMillis) {
+				Log.i(TAG, "Screenshot " + file + " saved in " + captureMillis + " ms");
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(AugmentedImageActivity.this, "Снимок сохранён", Toast.LENGTH_SHORT).show();
+					}
+				});
+			}
+
+			@Override
+			public void onCaptureFailed(File file, Exception exception) {
+				Log.e(TAG, "Screenshot " + file + " failed", exception);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(AugmentedImageActivity.this, "Не удалось сохранить снимок", Toast.LENGTH_SHORT)
+								.show();
+					}
+				});
+			}
+		});
+	}
+
+	private void onFirstCameraFrameShown() {
+		long start = SystemClock.elapsedRealtime();
+		glideRequestManager = Glide.with(this);
+		glideRequestManager.load(Uri.parse("file:///android_asset/fit_to_scan.png")).into(fitToScanView);
+		startupTracer.span("glide init", start);
 	}
 
 	@Override
 	protected void onDestroy() {
-		if (session != null) {
-			session.close();
-			session = null;
+		imageDatabaseManager.shutdown();
+		// Кадры камеры должны быть закрыты до закрытия сессии
+		cameraImagePipeline.shutdown();
+		frameCapture.shutdown();
+		if (sessionLauncher.hasSession()) {
+			// Якоря поставленных планет тоже принадлежат менеджеру
+			anchorManager.releaseAll();
 		}
+		sessionLauncher.close();
 		super.onDestroy();
 	}
 
@@ -116,9 +455,10 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
 	protected void onResume() {
 		super.onResume();
 
-		if (session == null) {
+		if (!sessionLauncher.hasSession()) {
 			Exception exception = null;
 			String message = null;
+			long installCheckStart = SystemClock.elapsedRealtime();
 			try {
 				switch (ArCoreApk.getInstance().requestInstall(this, !installRequested)) {
 				case INSTALL_REQUESTED:
@@ -131,16 +471,9 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
 					CameraPermissionHelper.requestCameraPermission(this);
 					return;
 				}
-				session = new Session(/* context = */ this);
-			} catch (UnavailableArcoreNotInstalledException | UnavailableUserDeclinedInstallationException e) {
+			} catch (UnavailableUserDeclinedInstallationException e) {
 				message = "Пожалуйста, установите ARCore";
 				exception = e;
-			} catch (UnavailableApkTooOldException e) {
-				message = "Пожалуйста, обновите ARCore";
-				exception = e;
-			} catch (UnavailableSdkTooOldException e) {
-				message = "Пожалуйста, обновите это приложение";
-				exception = e;
 			} catch (Exception e) {
 				message = "Это устройство не поддерживает AR";
 				exception = e;
@@ -151,36 +484,69 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
 				Log.e(TAG, "Error when handling session", exception);
 				return;
 			}
-
-			shouldConfigureSession = true;
+			sessionLauncher.recordInstallCheck(SystemClock.elapsedRealtime() - installCheckStart);
 		}
 
-		if (shouldConfigureSession) {
-			configureSession();
-			shouldConfigureSession = false;
-		}
-
-		try {
-			session.resume();
-		} catch (CameraNotAvailableException e) {
-			messageSnackbarHelper.showError(this, "Камера недоступна, попробуйте перезапустить приложение");
-			session = null;
-			return;
-		}
+		sessionLauncher.resume();
 		surfaceView.onResume();
 		displayRotationHelper.onResume();
 
 		fitToScanView.setVisibility(View.VISIBLE);
+		uiStateChannel.start(uiStateListener);
 	}
 
 	@Override
 	public void onPause() {
 		super.onPause();
-		if (session != null) {
-			displayRotationHelper.onPause();
-			surfaceView.onPause();
-			session.pause();
+		// Если изображение так и не нашлось, трасса пишется с тем, что успели отметить
+		startupTracer.finish();
+		for (ShardMetrics.Entry entry : imageDatabaseManager.getMetrics().snapshot()) {
+			Log.i(TAG, "Image database shard " + entry);
+		}
+		Log.i(TAG, "Texture memory " + TextureManager.getInstance().getReport());
+		Log.i(TAG, "Asset cache " + AssetCache.getInstance().getReport());
+		GlState glState = GlState.getInstance();
+		Log.i(TAG, "GL state calls issued " + glState.getIssuedCalls() + ", skipped " + glState.getSkippedCalls());
+		glState.resetCounters();
+		Log.i(TAG, "Camera images analyzed " + cameraImagePipeline.getProcessedFrames() + ", dropped "
+				+ cameraImagePipeline.getDroppedFrames() + ", unavailable " + cameraImagePipeline.getUnavailableFrames()
+				+ ", mean luma " + lumaAnalyzer.getMeanLuma());
+		Log.i(TAG, "Light estimate version " + lightEstimator.getVersion() + ", invalid frames "
+				+ lightEstimator.getInvalidFrames());
+		uiStateChannel.stop();
+		Log.i(TAG, "Anchors live " + anchorManager.getLiveCount() + ", created " + anchorManager.getCreatedAnchors()
+				+ ", reused " + anchorManager.getReusedAnchors() + ", detached " + anchorManager.getDetachedAnchors());
+		Log.i(TAG, "Placement " + placementController.getReport());
+		Log.i(TAG, "Voxel index voxels " + voxelIndex.size() + ", evictions " + voxelIndex.getEvictionCount());
+		Log.i(TAG, "Scene index objects " + sceneIndex.size() + ", refits " + sceneIndex.getRefits());
+		Log.i(TAG, "Taps resolved " + tapResolver.getResolvedTaps() + ", dropped " + tapHelper.getDroppedTaps());
+		Log.i(TAG, "Render scale " + contentTarget.getScale() + ", changes " + contentTarget.getScaleChanges());
+		Log.i(TAG, "Frames captured " + frameCapture.getCapturedFrames() + ", forced maps "
+				+ frameCapture.getForcedMaps());
+		Log.i(TAG, "UI state updates published " + uiStateChannel.getPublishedCount() + ", applied "
+				+ uiStateChannel.getAppliedCount());
+		// Остановка записи тоже идёт через очередь GL, она выполнится до остановки потока рисования
+		recordingView.removeCallbacks(recordingTicker);
+		surfaceView.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				videoRecorder.stop();
+			}
+		});
+		if (isFinishing()) {
+			// Очередь GL выполняется до остановки потока рисования, поэтому контекст ещё жив
+			surfaceView.queueEvent(new Runnable() {
+				@Override
+				public void run() {
+					releaseGlResources();
+				}
+			});
 		}
+		displayRotationHelper.onPause();
+		// Сначала останавливается поток GL и закрываются изображения камеры, только потом сама сессия
+		surfaceView.onPause();
+		cameraImagePipeline.flush();
+		sessionLauncher.pause();
 	}
 
 	@Override
@@ -201,28 +567,126 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
 		FullScreenHelper.setFullScreenOnWindowFocusChanged(this, hasFocus);
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level >= TRIM_MEMORY_BACKGROUND) {
+			// Без копий в памяти восстановление контекста будет медленнее, но процесс не убьют
+			AssetCache.getInstance().clear();
+		}
+	}
+
 	@Override
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-		GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
+		long start = SystemClock.elapsedRealtime();
+		GlState.getInstance().onContextCreated();
+		TextureManager.getInstance().onContextLost();
 		// Подготовка основной канвы для рисования
 		try {
+			long phaseStart = SystemClock.elapsedRealtime();
+			FrameUniforms.getInstance().createOnGlThread();
+			startupTracer.span("frame uniforms create", phaseStart);
+			phaseStart = SystemClock.elapsedRealtime();
 			backgroundRenderer.createOnGlThread(/*context=*/ this);
+			startupTracer.span("background renderer create", phaseStart);
+			phaseStart = SystemClock.elapsedRealtime();
+			contentTarget.createOnGlThread(/*context=*/ this);
+			startupTracer.span("content target create", phaseStart);
+			phaseStart = SystemClock.elapsedRealtime();
+			drawList.createOnGlThread(/*context=*/ this);
+			drawList.setOverdrawMode(SHOW_OVERDRAW);
+			startupTracer.span("draw list create", phaseStart);
+			if (SHOW_POINT_CLOUD) {
+				phaseStart = SystemClock.elapsedRealtime();
+				pointCloudRenderer.createOnGlThread(/*context=*/ this);
+				startupTracer.span("point cloud renderer create", phaseStart);
+			}
+			frameCapture.createOnGlThread();
+		} catch (IOException e) {
+			Log.e(TAG, "Oh nose everything broke", e);
+		}
+		// После потери контекста рамки и планеты пересоздаются так же, со следующего кадра камеры
+		contentRenderersCreated = false;
+		GLES20.glFinish();
+		Log.i(TAG, (glResourcesCreated ? "GL context restored" : "GL resources created") + " in "
+				+ (SystemClock.elapsedRealtime() - start) + " ms");
+		startupTracer.span("surface create", start);
+		glResourcesCreated = true;
+	}
+
+	// Возвращает true, когда рамки и планеты готовы к рисованию
+	private boolean createDeferredResources(Frame frame) {
+		if (contentRenderersCreated) {
+			return true;
+		}
+		if (!cameraFrameShown) {
+			if (frame.getTimestamp() == 0) {
+				return false;
+			}
+			// Этот кадр уходит на экран как есть, всё отложенное начинается со следующего
+			cameraFrameShown = true;
+			startupTracer.mark("first camera frame");
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					onFirstCameraFrameShown();
+				}
+			});
+			return false;
+		}
+		try {
+			long phaseStart = SystemClock.elapsedRealtime();
 			augmentedImageRenderer.createOnGlThread(/*context=*/ this);
+			startupTracer.span("augmented image renderer create", phaseStart);
+			phaseStart = SystemClock.elapsedRealtime();
+			planetRenderer.createOnGlThread(/*context=*/ this);
+			startupTracer.span("planet renderer create", phaseStart);
 		} catch (IOException e) {
 			Log.e(TAG, "Oh nose everything broke", e);
 		}
+		contentRenderersCreated = true;
+		return true;
+	}
+
+	private void releaseGlResources() {
+		backgroundRenderer.release();
+		if (contentRenderersCreated) {
+			augmentedImageRenderer.release();
+			planetRenderer.release();
+			contentRenderersCreated = false;
+		}
+		contentTarget.release();
+		drawList.release();
+		if (SHOW_POINT_CLOUD) {
+			pointCloudRenderer.release();
+		}
+		frameCapture.release();
+		FrameUniforms.getInstance().release();
+		glResourcesCreated = false;
 	}
 
 	@Override
 	public void onSurfaceChanged(GL10 gl, int width, int height) {
 		displayRotationHelper.onSurfaceChanged(width, height);
 		GLES20.glViewport(0, 0, width, height);
+		planetRenderer.setViewportSize(width, height);
+		contentTarget.setViewportSize(width, height);
+		frameCapture.setViewportSize(width, height);
+		viewportWidth = width;
+		viewportHeight = height;
+		tapResolver.setViewportSize(width, height);
 	}
 
 	@Override
 	public void onDrawFrame(GL10 gl) {
+		// Маска глубины действует и на очистку, а предыдущий кадр мог закончиться с выключенной
+		GlState.getInstance().setDepthMask(true);
+		GlState.getInstance().setColorMask(true);
+		GlState.getInstance().clearColor(0.1f, 0.1f, 0.1f, 1.0f);
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+		Session session = sessionLauncher.getRunningSession();
 		if (session == null) {
+			// Пока сессия поднимается, кадр остаётся просто очищенным
 			return;
 		}
 		displayRotationHelper.updateSessionIfNeeded(session);
@@ -230,8 +694,11 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
 			session.setCameraTextureName(backgroundRenderer.getTextureId());
 			Frame frame = session.update();
 			Camera camera = frame.getCamera();
-			trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
 			backgroundRenderer.draw(frame);
+			if (!createDeferredResources(frame)) {
+				return;
+			}
+			cameraImagePipeline.onFrame(frame);
 			// Обработка матрицы направления (4х4) для определения местоположения в пространстве
 			float[] projmtx = new float[16];
 			camera.getProjectionMatrix(projmtx, 0, 0.1f, 100.0f);
@@ -239,98 +706,246 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
 			float[] viewmtx = new float[16];
 			camera.getViewMatrix(viewmtx, 0);
 			// Адаптивная обработка окружающего уровня освещения
-			final float[] colorCorrectionRgba = new float[4];
-			frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
+			lightEstimator.update(frame);
+			if (camera.getTrackingState() == TrackingState.TRACKING) {
+				// Вытеснение вокселей ориентируется на текущее положение камеры
+				Pose cameraPose = camera.getPose();
+				voxelIndex.setFocus(cameraPose.tx(), cameraPose.ty(), cameraPose.tz(), VOXEL_KEEP_RADIUS);
+				try (PointCloud pointCloud = frame.acquirePointCloud()) {
+					pointCloudRenderer.update(pointCloud);
+				}
+				if (SHOW_POINT_CLOUD) {
+					pointCloudRenderer.draw(viewmtx, projmtx);
+				}
+			}
+			// Общие для всех объектов данные кадра загружаются один раз до отрисовки
+			FrameUniforms.getInstance().beginFrame(viewmtx, projmtx, lightEstimator);
 			// Финальный этап отрисовки кешированных объектов
-			drawAugmentedImages(frame, projmtx, viewmtx, colorCorrectionRgba);
+			drawAugmentedImages(frame, projmtx, viewmtx);
+			tapResolver.resolve(frame, viewmtx, projmtx, sceneIndex, tapListener);
+			drawPlacements(projmtx, viewmtx);
+			uiStateChannel.publish(overlayVisible, camera.getTrackingState(), messageId, messageArgument);
+			if (drawList.size() > 0) {
+				// Пустой кадр не стоит очистки и растяжения внеэкранного буфера
+				contentTarget.begin();
+				drawList.flush();
+				logOverdraw();
+				contentTarget.end();
+			}
+			// Текстуры планет подгружаются по мере обнаружения и вытесняются, когда их давно не видно
+			planetRenderer.onFrameEnd();
+			TextureManager.getInstance().onFrameEnd();
+			// Кадр уже собран в основном буфере, чтение ставится в очередь после всего рисования
+			frameCapture.onFrameEnd();
+			videoRecorder.onFrameEnd(frame.getTimestamp(), viewportWidth, viewportHeight);
+			// Интервал между кадрами включает ожидание GPU, по нему и выбирается разрешение объектов
+			long now = System.nanoTime();
+			if (lastFrameNanos != 0) {
+				contentTarget.onFrameInterval(now - lastFrameNanos);
+			}
+			lastFrameNanos = now;
 		} catch (Throwable t) {
+			drawList.clear();
+			contentTarget.end();
 			Log.e(TAG, "Oh nose everything broke", t);
 		}
 	}
 
-	private void configureSession() {
+	private void logOverdraw() {
+		// Во внеэкранном буфере нет изображения камеры, поэтому только там красный канал считает слои
+		if (!drawList.isOverdrawMode() || !contentTarget.isActive() || ++overdrawFrames < OVERDRAW_LOG_INTERVAL) {
+			return;
+		}
+		overdrawFrames = 0;
+		float layers = drawList.measureOverdraw(contentTarget.getTargetWidth(), contentTarget.getTargetHeight());
+		Log.d(TAG, String.format(Locale.US, "Overdraw: %.2f layers per covered pixel", layers));
+	}
+
+	private void configureSession(Session session, boolean created) {
+		if (created) {
+			augmentedImageDatabase = null;
+			// Конфигурация камеры меняется только на остановленной сессии, то есть до resume
+			// Масштаб внеэкранного буфера подстраивается под частоту выбранной конфигурации камеры
+			contentTarget.setTargetFps(cameraConfigSelector.apply(session).getFpsRange().getUpper());
+		}
+		applySessionConfig(session);
+	}
+
+	private void onSessionRunning(Session session, boolean created) {
+		Log.i(TAG, "Session running: " + sessionLauncher.getReport());
+		startupTracer.markOnce("session running");
+		if (created) {
+			imageDatabaseManager.load(session);
+		}
+	}
+
+	private void applySessionConfig(Session session) {
 		Config config = new Config(session);
 		config.setFocusMode(Config.FocusMode.AUTO);
-		if (!setupAugmentedImageDatabase(config)) {
-			messageSnackbarHelper.showError(this, "Не удалось обработать межпланетную базу данных");
+		lightEstimator.configure(config);
+		config.setInstantPlacementMode(instantPlacementSettings.isInstantPlacementEnabled()
+				? Config.InstantPlacementMode.LOCAL_Y_UP : Config.InstantPlacementMode.DISABLED);
+		if (augmentedImageDatabase != null) {
+			config.setAugmentedImageDatabase(augmentedImageDatabase);
 		}
 		session.configure(config);
 	}
 
-	private void drawAugmentedImages(Frame frame, float[] projmtx, float[] viewmtx, float[] colorCorrectionRgba) {
+	private void onImageDatabaseStateChanged(ImageDatabaseManager.State state, ImageDatabaseShard shard,
+			AugmentedImageDatabase database) {
+		databaseProgressView.setVisibility(
+				state == ImageDatabaseManager.State.LOADING && augmentedImageDatabase == null ? View.VISIBLE : View.GONE);
+		switch (state) {
+		case READY:
+		case FALLBACK:
+			if (!sessionLauncher.hasSession()) {
+				return;
+			}
+			augmentedImageDatabase = database;
+			final long swapStart = SystemClock.elapsedRealtime();
+			final String shardId = shard.getId();
+			// Сессию настраивает только поток запуска, здесь она не трогается
+			sessionLauncher.reconfigure(new Runnable() {
+				@Override
+				public void run() {
+					long swapEnd = SystemClock.elapsedRealtime();
+					imageDatabaseManager.getMetrics().recordSwap(shardId, swapEnd - swapStart);
+					shardSelector.onShardActivated(shardId, swapEnd);
+					databaseGeneration++;
+				}
+			});
+			if (state == ImageDatabaseManager.State.FALLBACK) {
+				messageSnackbarHelper.showMessageWithDismiss(this,
+						"Межпланетная база недоступна, используется упрощённое распознавание");
+			}
+			break;
+		case FAILED:
+			if (augmentedImageDatabase != null) {
+				shardSelector.onSwapFailed(shard.getId(), SystemClock.elapsedRealtime());
+				break;
+			}
+			messageSnackbarHelper.showError(this, "Не удалось обработать межпланетную базу данных");
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void updatePlacementBounds() {
+		placementController.update();
+		planetRenderer.getLocalBounds(PLACED_PLANET_RADIUS, placementBounds);
+		for (int i = 0; i < placementController.size(); i++) {
+			if (!placementController.isTracking(i)) {
+				continue;
+			}
+			placementController.getModelMatrix(i, placementMatrix);
+			sceneIndex.updatePlacement(placementController.getId(i), placementMatrix, placementBounds);
+		}
+	}
+
+	private void drawPlacements(float[] projmtx, float[] viewmtx) {
+		for (int i = 0; i < placementController.size(); i++) {
+			// Только что поставленная планета попадёт в отсечение со следующего кадра
+			if (!placementController.isTracking(i) || !sceneIndex.isPlacementVisible(placementController.getId(i))) {
+				continue;
+			}
+			placementController.getModelMatrix(i, placementMatrix);
+			planetRenderer.draw(drawList, viewmtx, projmtx, placementController.getPlanetIndex(i),
+					PLACED_PLANET_RADIUS, placementMatrix);
+		}
+	}
+
+	private void updateSceneBounds(AugmentedImage augmentedImage, Anchor anchor) {
+		augmentedImageRenderer.getLocalBounds(augmentedImage, imageBounds);
+		planetRenderer.getLocalBounds(augmentedImage, planetBounds);
+		for (int i = 0; i < 3; i++) {
+			imageBounds[i] = Math.min(imageBounds[i], planetBounds[i]);
+			imageBounds[i + 3] = Math.max(imageBounds[i + 3], planetBounds[i + 3]);
+		}
+		sceneIndex.update(augmentedImage, anchor, imageBounds);
+	}
+
+	private void drawAugmentedImages(Frame frame, float[] projmtx, float[] viewmtx) {
+		if (drawnDatabaseGeneration != databaseGeneration) {
+			drawnDatabaseGeneration = databaseGeneration;
+			// Поставленные планеты от базы не зависят, отцепляются только якоря изображений
+			anchorManager.releaseImages();
+		}
+		boolean tracking = false;
+		long now = SystemClock.elapsedRealtime();
 		Collection<AugmentedImage> updatedAugmentedImages = frame.getUpdatedTrackables(AugmentedImage.class);
 		for (AugmentedImage augmentedImage : updatedAugmentedImages) {
+			if (augmentedImage.getTrackingState() == TrackingState.TRACKING) {
+				tracking = true;
+			}
 			switch (augmentedImage.getTrackingState()) {
 			case PAUSED:
-				String text = String.format("Найдена планета %d", augmentedImage.getIndex());
-				messageSnackbarHelper.showMessage(this, text);
+				messageId = UiStateChannel.MESSAGE_PLANET_FOUND;
+				messageArgument = augmentedImage.getIndex();
 				break;
 
 			case TRACKING:
-				this.runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						fitToScanView.setVisibility(View.GONE);
-					}
-				});
-
-				// Создание новых плоскостей для новых планет
-				if (!augmentedImageMap.containsKey(augmentedImage.getIndex())) {
-					Anchor centerPoseAnchor = augmentedImage.createAnchor(augmentedImage.getCenterPose());
-					augmentedImageMap.put(augmentedImage.getIndex(), Pair.create(augmentedImage, centerPoseAnchor));
-				}
+				// Якорь создаётся только для новой планеты, повторно найденная получает прежний
+				anchorManager.acquire(augmentedImage, now);
 				break;
 
 			case STOPPED:
-				augmentedImageMap.remove(augmentedImage.getIndex());
+				anchorManager.release(augmentedImage.getIndex());
 				break;
 
 			default:
 				break;
 			}
 		}
-		for (Pair<AugmentedImage, Anchor> pair : augmentedImageMap.values()) {
-			AugmentedImage augmentedImage = pair.first;
-			Anchor centerAnchor = augmentedImageMap.get(augmentedImage.getIndex()).second;
+		anchorManager.update(now);
+		// Коробки отслеживаемых изображений обновляются до отсечения, дерево перестраивает только сдвинутые
+		for (int i = 0; i < anchorManager.size(); i++) {
+			if (anchorManager.getImage(i).getTrackingState() == TrackingState.TRACKING) {
+				updateSceneBounds(anchorManager.getImage(i), anchorManager.getAnchor(i));
+			}
+		}
+		updatePlacementBounds();
+		sceneIndex.cull(viewmtx, projmtx);
+		for (int i = 0; i < anchorManager.size(); i++) {
+			AugmentedImage augmentedImage = anchorManager.getImage(i);
+			Anchor centerAnchor = anchorManager.getAnchor(i);
 			switch (augmentedImage.getTrackingState()) {
 			case TRACKING:
-				augmentedImageRenderer.draw(viewmtx, projmtx, augmentedImage, centerAnchor, colorCorrectionRgba);
+				tracking = true;
+				if (!sceneIndex.isVisible(augmentedImage.getIndex())) {
+					break;
+				}
+				augmentedImageRenderer.draw(drawList, viewmtx, projmtx, augmentedImage, centerAnchor);
+				planetRenderer.draw(drawList, viewmtx, projmtx, augmentedImage, centerAnchor);
 				break;
 			default:
 				break;
 			}
 		}
-	}
-
-	private boolean setupAugmentedImageDatabase(Config config) {
-		AugmentedImageDatabase augmentedImageDatabase;
-		if (useSingleImage) {
-			Bitmap augmentedImageBitmap = loadAugmentedImageBitmap();
-			if (augmentedImageBitmap == null) {
-				return false;
-			}
-			augmentedImageDatabase = new AugmentedImageDatabase(session);
-			augmentedImageDatabase.addImage("image_name", augmentedImageBitmap);
-		} else {
-			try {
-				InputStream is = getAssets().open("sample_database.imgdb");
-				augmentedImageDatabase = AugmentedImageDatabase.deserialize(session, is);
-			} catch (IOException e) {
-				Log.e(TAG, "Not found AR parsed image database", e);
-				return false;
-			}
+		if (tracking) {
+			imageDatabaseManager.getMetrics().recordDetection();
 		}
-		config.setAugmentedImageDatabase(augmentedImageDatabase);
-		return true;
-	}
-
-	private Bitmap loadAugmentedImageBitmap() {
-		try {
-			InputStream is = getAssets().open("default.jpg");
-			return BitmapFactory.decodeStream(is);
-		} catch (IOException e) {
-			Log.e(TAG, "Not found AR default resource", e);
+		// В темноте распознавание почти не срабатывает, об этом лучше сказать сразу
+		boolean tooDark = !tracking && lumaAnalyzer.isTooDark();
+		if (tooDark != darkHintShown) {
+			darkHintShown = tooDark;
+			messageId = tooDark ? UiStateChannel.MESSAGE_TOO_DARK : UiStateChannel.MESSAGE_NONE;
+			messageArgument = 0;
+		}
+		// Подсказка наведения видна, пока ни одна планета не отслеживается
+		overlayVisible = !tracking;
+		if (tracking && startupTracer.markOnce("first tracked image")) {
+			// Дальше запуск уже закончен, трасса уходит в файл
+			startupTracer.finish();
+		}
+		final String nextShardId = shardSelector.onFrame(SystemClock.elapsedRealtime(), tracking);
+		if (nextShardId != null) {
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					imageDatabaseManager.activate(nextShardId);
+				}
+			});
 		}
-		return null;
 	}
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.HitResult;
+import com.google.ar.core.InstantPlacementPoint;
+import com.google.ar.core.Pose;
+import com.google.ar.core.Trackable;
+import com.google.ar.core.TrackingState;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PlacementController {
+	private static final String TAG = PlacementController.class.getSimpleName();
+
+	public static final int NONE = -1;
+
+	// За это время отображаемая поза проходит примерно две трети пути к уточнённой
+	private static final float REFINE_SECONDS = 0.15f;
+	// Ближе этого расстояния до уточнённой позы переход считается законченным
+	private static final float SETTLED_METERS = 0.001f;
+
+	private static final class Placement {
+		int id;
+		Anchor anchor;
+		InstantPlacementPoint point;
+		int planetIndex;
+		Pose displayedPose;
+		boolean refining;
+		long placedMillis;
+	}
+
+	private final int maxPlacements;
+	private final AnchorManager anchorManager;
+	private final List<Placement> placements = new ArrayList<>();
+	private int nextId;
+
+	private long firstTapMillis;
+	private long firstPlacementLatency = -1;
+	private boolean firstPlacementInstant;
+	private long instantPlacements;
+	private long surfacePlacements;
+	private long refinements;
+	private long refinementMillis;
+	private long lastUpdateMillis;
+
+	public PlacementController(int maxPlacements, AnchorManager anchorManager) {
+		this.maxPlacements = maxPlacements;
+		this.anchorManager = anchorManager;
+	}
+
+	public void onTap(long tapUptimeMillis) {
+		// Время до первого размещения считается от первого касания, в том числе неудачного
+		if (firstTapMillis == 0) {
+			firstTapMillis = tapUptimeMillis;
+		}
+	}
+
+	public void place(HitResult hit, int planetIndex, long tapUptimeMillis) {
+		onTap(tapUptimeMillis);
+		if (placements.size() >= maxPlacements) {
+			// Самая старая планета отцепляется через менеджер, из списка её уберёт onAnchorDetached
+			anchorManager.release(placements.get(0).anchor);
+		}
+		Placement placement = new Placement();
+		// Якоря размещений делят бюджет с якорями изображений
+		placement.anchor = anchorManager.acquirePlacement(hit, SystemClock.elapsedRealtime());
+		placement.id = nextId++;
+		Trackable trackable = hit.getTrackable();
+		if (trackable instanceof InstantPlacementPoint) {
+			placement.point = (InstantPlacementPoint) trackable;
+			placement.refining = placement.point.getTrackingMethod()
+					!= InstantPlacementPoint.TrackingMethod.FULL_TRACKING;
+			instantPlacements++;
+		} else {
+			surfacePlacements++;
+		}
+		placement.planetIndex = planetIndex;
+		placement.displayedPose = placement.anchor.getPose();
+		placement.placedMillis = SystemClock.elapsedRealtime();
+		placements.add(placement);
+		if (firstPlacementLatency < 0) {
+			firstPlacementLatency = SystemClock.uptimeMillis() - firstTapMillis;
+			firstPlacementInstant = placement.point != null;
+			Log.i(TAG, "First placement " + (firstPlacementInstant ? "instant" : "on surface") + " after "
+					+ firstPlacementLatency + " ms");
+		}
+	}
+
+	public void update() {
+		long now = SystemClock.elapsedRealtime();
+		float seconds = lastUpdateMillis == 0 ? 0 : (now - lastUpdateMillis) / 1000.0f;
+		lastUpdateMillis = now;
+		float blend = 1.0f - (float) Math.exp(-seconds / REFINE_SECONDS);
+		for (int i = placements.size() - 1; i >= 0; i--) {
+			Placement placement = placements.get(i);
+			Pose target = placement.anchor.getPose();
+			if (placement.refining && placement.point.getTrackingMethod()
+					== InstantPlacementPoint.TrackingMethod.FULL_TRACKING) {
+				// Точка перешла на полный трекинг, поза прыгает на настоящее расстояние: дальше плавно
+				placement.refining = false;
+				refinements++;
+				refinementMillis += now - placement.placedMillis;
+			}
+			if (placement.point == null || placement.refining || isSettled(placement.displayedPose, target)) {
+				// В экранном режиме поза сама держит точку под пальцем, сглаживать нечего
+				placement.displayedPose = target;
+			} else {
+				placement.displayedPose = Pose.makeInterpolated(placement.displayedPose, target, blend);
+			}
+		}
+	}
+
+	private static boolean isSettled(Pose displayed, Pose target) {
+		float dx = displayed.tx() - target.tx();
+		float dy = displayed.ty() - target.ty();
+		float dz = displayed.tz() - target.tz();
+		return dx * dx + dy * dy + dz * dz < SETTLED_METERS * SETTLED_METERS;
+	}
+
+	// Отцеплённые менеджером якоря, в том числе остановленные ARCore, убираются отсюда
+	public int onAnchorDetached(Anchor anchor) {
+		for (int i = 0; i < placements.size(); i++) {
+			if (placements.get(i).anchor == anchor) {
+				return placements.remove(i).id;
+			}
+		}
+		return NONE;
+	}
+
+	public int size() {
+		return placements.size();
+	}
+
+	public int getId(int i) {
+		return placements.get(i).id;
+	}
+
+	public int findPlanetIndex(int id) {
+		for (int i = 0; i < placements.size(); i++) {
+			if (placements.get(i).id == id) {
+				return placements.get(i).planetIndex;
+			}
+		}
+		return NONE;
+	}
+
+	public int getPlanetIndex(int i) {
+		return placements.get(i).planetIndex;
+	}
+
+	public boolean isTracking(int i) {
+		return placements.get(i).anchor.getTrackingState() == TrackingState.TRACKING;
+	}
+
+	public void getModelMatrix(int i, float[] out) {
+		placements.get(i).displayedPose.toMatrix(out, 0);
+	}
+
+	public String getReport() {
+		return "placed " + (instantPlacements + surfacePlacements) + " (instant " + instantPlacements + ", surface "
+				+ surfacePlacements + "), first placement " + (firstPlacementLatency < 0 ? "none"
+						: (firstPlacementInstant ? "instant " : "surface ") + firstPlacementLatency + " ms")
+				+ ", refined " + refinements + " in avg "
+				+ (refinements == 0 ? 0 : refinementMillis / refinements) + " ms";
+	}
+}
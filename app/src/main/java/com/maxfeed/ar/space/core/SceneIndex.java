@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core;
+
+import android.opengl.Matrix;
+import android.util.SparseIntArray;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.AugmentedImage;
+import com.maxfeed.ar.space.util.BoundingVolumeTree;
+import java.util.Arrays;
+
+public class SceneIndex {
+	public static final int NONE = BoundingVolumeTree.NONE;
+
+	// Дрожание позы изображения обычно в пределах сантиметра
+	private static final float MARGIN = 0.01f;
+
+	private final BoundingVolumeTree tree = new BoundingVolumeTree(MARGIN);
+	// Номер изображения в базе -> лист дерева, и обратно лист -> изображение
+	private final SparseIntArray proxies = new SparseIntArray();
+	// Планеты, поставленные касанием, лежат в том же дереве под своими номерами размещения
+	private final SparseIntArray placementProxies = new SparseIntArray();
+	private AugmentedImage[] images = new AugmentedImage[16];
+	private int[] placements = new int[16];
+	// Описанная сфера размещённой планеты для точного выбора касанием: центр и радиус
+	private float[] spheres = new float[16 * 4];
+	private int[] visibleFrames = new int[16];
+	// Обратная матрица изображения считается при первом касании в кадре, остальные касания берут её готовой
+	private float[] inverseImageMatrices = new float[16 * 16];
+	private int[] inverseFrames = new int[16];
+	private int frame;
+
+	private final float[] anchorMatrix = new float[16];
+	private final float[] imageMatrix = new float[16];
+	private final float[] worldBounds = new float[6];
+	private final float[] viewProjection = new float[16];
+	private final float[] planes = new float[24];
+	private long refits;
+
+	private final BoundingVolumeTree.Visitor visibilityVisitor = new BoundingVolumeTree.Visitor() {
+		@Override
+		public boolean visit(int proxy, int userData) {
+			visibleFrames[proxy] = frame;
+			return true;
+		}
+	};
+
+	public void update(AugmentedImage image, Anchor anchor, float[] localBounds) {
+		anchor.getPose().toMatrix(anchorMatrix, 0);
+		BoundingVolumeTree.transformBounds(anchorMatrix, localBounds, worldBounds);
+		int proxy = proxies.get(image.getIndex(), NONE);
+		if (proxy == NONE) {
+			proxy = insert(image.getIndex());
+			proxies.put(image.getIndex(), proxy);
+			images[proxy] = image;
+		} else if (tree.update(proxy, worldBounds)) {
+			refits++;
+		}
+	}
+
+	public void updatePlacement(int placementId, float[] modelMatrix, float[] localBounds) {
+		BoundingVolumeTree.transformBounds(modelMatrix, localBounds, worldBounds);
+		int proxy = placementProxies.get(placementId, NONE);
+		if (proxy == NONE) {
+			proxy = insert(placementId);
+			placementProxies.put(placementId, proxy);
+			placements[proxy] = placementId;
+		} else if (tree.update(proxy, worldBounds)) {
+			refits++;
+		}
+		// Центр коробки при повороте не смещается, поэтому центр сферы берётся из мировой коробки
+		int base = proxy * 4;
+		spheres[base] = (worldBounds[0] + worldBounds[3]) * 0.5f;
+		spheres[base + 1] = (worldBounds[1] + worldBounds[4]) * 0.5f;
+		spheres[base + 2] = (worldBounds[2] + worldBounds[5]) * 0.5f;
+		spheres[base + 3] = (localBounds[3] - localBounds[0]) * 0.5f;
+	}
+
+	private int insert(int userData) {
+		int proxy = tree.insert(worldBounds, userData);
+		if (proxy >= images.length) {
+			int length = Math.max(images.length * 2, proxy + 1);
+			images = Arrays.copyOf(images, length);
+			placements = Arrays.copyOf(placements, length);
+			spheres = Arrays.copyOf(spheres, length * 4);
+			visibleFrames = Arrays.copyOf(visibleFrames, length);
+			inverseImageMatrices = Arrays.copyOf(inverseImageMatrices, length * 16);
+			inverseFrames = Arrays.copyOf(inverseFrames, length);
+		}
+		images[proxy] = null;
+		placements[proxy] = NONE;
+		inverseFrames[proxy] = frame - 1;
+		// Новый объект считается видимым до ближайшего отсечения
+		visibleFrames[proxy] = frame;
+		return proxy;
+	}
+
+	public void remove(int imageIndex) {
+		int proxy = proxies.get(imageIndex, NONE);
+		if (proxy == NONE) {
+			return;
+		}
+		tree.remove(proxy);
+		proxies.delete(imageIndex);
+		images[proxy] = null;
+	}
+
+	public void removePlacement(int placementId) {
+		int proxy = placementProxies.get(placementId, NONE);
+		if (proxy == NONE) {
+			return;
+		}
+		tree.remove(proxy);
+		placementProxies.delete(placementId);
+		placements[proxy] = NONE;
+	}
+
+	public void clear() {
+		tree.clear();
+		proxies.clear();
+		placementProxies.clear();
+		Arrays.fill(images, null);
+		Arrays.fill(placements, NONE);
+	}
+
+	public void cull(float[] viewMatrix, float[] projectionMatrix) {
+		frame++;
+		Matrix.multiplyMM(viewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
+		BoundingVolumeTree.extractFrustumPlanes(viewProjection, planes);
+		tree.queryFrustum(planes, visibilityVisitor);
+	}
+
+	public boolean isVisible(int imageIndex) {
+		int proxy = proxies.get(imageIndex, NONE);
+		return proxy != NONE && visibleFrames[proxy] == frame;
+	}
+
+	public boolean isPlacementVisible(int placementId) {
+		int proxy = placementProxies.get(placementId, NONE);
+		return proxy != NONE && visibleFrames[proxy] == frame;
+	}
+
+	public void raycast(float[] ray, int offset, float maxDistance, BoundingVolumeTree.RayVisitor visitor) {
+		tree.raycast(ray[offset], ray[offset + 1], ray[offset + 2], ray[offset + 3], ray[offset + 4], ray[offset + 5],
+				maxDistance, visitor);
+	}
+
+	public AugmentedImage getImage(int proxy) {
+		return images[proxy];
+	}
+
+	public void getInverseImageMatrix(int proxy, float[] out) {
+		int base = proxy * 16;
+		if (inverseFrames[proxy] != frame) {
+			images[proxy].getCenterPose().toMatrix(imageMatrix, 0);
+			Matrix.invertM(inverseImageMatrices, base, imageMatrix, 0);
+			inverseFrames[proxy] = frame;
+		}
+		System.arraycopy(inverseImageMatrices, base, out, 0, 16);
+	}
+
+	public int getPlacement(int proxy) {
+		return placements[proxy];
+	}
+
+	public void getSphere(int proxy, float[] out) {
+		System.arraycopy(spheres, proxy * 4, out, 0, 4);
+	}
+
+	public int size() {
+		return tree.size();
+	}
+
+	public long getRefits() {
+		return refits;
+	}
+}
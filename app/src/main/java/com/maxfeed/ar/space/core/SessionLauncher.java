@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.ArCoreApk;
+import com.google.ar.core.Session;
+import com.google.ar.core.exceptions.CameraNotAvailableException;
+import com.google.ar.core.exceptions.UnavailableApkTooOldException;
+import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
+import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
+import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionLauncher {
+	private static final String TAG = SessionLauncher.class.getSimpleName();
+
+	public enum Phase {
+		IDLE, CREATING, CONFIGURING, RESUMING, RUNNING, PAUSED, FAILED, CLOSED
+	}
+
+	public interface Callbacks {
+		// В фоновом потоке, сессия ещё не запущена
+		void onConfigure(Session session, boolean created);
+
+		// Дальше в потоке интерфейса
+		void onRunning(Session session, boolean created);
+
+		void onFailed(String message, Exception exception);
+	}
+
+	private final Context context;
+	private final Callbacks callbacks;
+	// Все вызовы жизненного цикла сессии идут по очереди в одном потоке, поэтому не пересекаются
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	// Пауза во время запуска увеличивает поколение, и оставшиеся фазы старого запуска не выполняются
+	private final AtomicInteger generation = new AtomicInteger();
+
+	private Session session;
+	private volatile Session runningSession;
+	private volatile boolean sessionCreated;
+	private volatile boolean configureRequested;
+	private volatile Phase phase = Phase.IDLE;
+
+	private volatile long installCheckMillis = -1;
+	private volatile long createMillis = -1;
+	private volatile long configureMillis = -1;
+	private volatile long resumeMillis = -1;
+
+	public SessionLauncher(Context context, Callbacks callbacks) {
+		this.context = context.getApplicationContext();
+		this.callbacks = callbacks;
+	}
+
+	public static void prewarm(Context context) {
+		// Первый запрос доступности ходит в сервисы ARCore, пусть это начнётся ещё до onResume
+		ArCoreApk.getInstance().checkAvailability(context);
+	}
+
+	public void recordInstallCheck(long millis) {
+		installCheckMillis = millis;
+	}
+
+	public boolean hasSession() {
+		return sessionCreated;
+	}
+
+	// Для потока GL: сессия, которую уже можно обновлять, иначе null
+	public Session getRunningSession() {
+		return runningSession;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	// Новая конфигурация применяется в том же потоке, что и остальной жизненный цикл сессии.
+	// Если сессия сейчас не запущена, настройка произойдёт при следующем запуске перед resume
+	public void reconfigure(final Runnable onApplied) {
+		configureRequested = true;
+		if (executor.isShutdown()) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (phase == Phase.RUNNING && configureRequested) {
+					configureRequested = false;
+					long start = SystemClock.elapsedRealtime();
+					try {
+						callbacks.onConfigure(session, false);
+					} catch (RuntimeException e) {
+						Log.e(TAG, "Oh nose everything broke", e);
+					}
+					configureMillis = SystemClock.elapsedRealtime() - start;
+				}
+				mainHandler.post(onApplied);
+			}
+		});
+	}
+
+	public void resume() {
+		final int requested = generation.incrementAndGet();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				bringUp(requested);
+			}
+		});
+	}
+
+	public void pause() {
+		generation.incrementAndGet();
+		runningSession = null;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (phase == Phase.RUNNING) {
+					session.pause();
+					phase = Phase.PAUSED;
+				}
+			}
+		});
+	}
+
+	public void close() {
+		generation.incrementAndGet();
+		runningSession = null;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (session != null) {
+					session.close();
+					session = null;
+				}
+				phase = Phase.CLOSED;
+			}
+		});
+		executor.shutdown();
+		mainHandler.removeCallbacksAndMessages(null);
+	}
+
+	public String getReport() {
+		return "install check " + installCheckMillis + " ms, create " + createMillis + " ms, configure "
+				+ configureMillis + " ms, resume " + resumeMillis + " ms";
+	}
+
+	private void bringUp(final int requested) {
+		try {
+			boolean created = false;
+			if (session == null) {
+				phase = Phase.CREATING;
+				long start = SystemClock.elapsedRealtime();
+				session = new Session(context);
+				createMillis = SystemClock.elapsedRealtime() - start;
+				sessionCreated = true;
+				configureRequested = true;
+				created = true;
+			}
+			if (requested != generation.get()) {
+				phase = Phase.PAUSED;
+				return;
+			}
+			if (configureRequested) {
+				phase = Phase.CONFIGURING;
+				configureRequested = false;
+				long start = SystemClock.elapsedRealtime();
+				callbacks.onConfigure(session, created);
+				configureMillis = SystemClock.elapsedRealtime() - start;
+			}
+			if (requested != generation.get()) {
+				phase = Phase.PAUSED;
+				return;
+			}
+			phase = Phase.RESUMING;
+			long start = SystemClock.elapsedRealtime();
+			session.resume();
+			resumeMillis = SystemClock.elapsedRealtime() - start;
+			phase = Phase.RUNNING;
+			if (requested != generation.get()) {
+				// Пауза уже стоит в очереди следом и остановит сессию
+				return;
+			}
+			runningSession = session;
+			final Session started = session;
+			final boolean createdNow = created;
+			mainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (requested == generation.get()) {
+						callbacks.onRunning(started, createdNow);
+					}
+				}
+			});
+		} catch (UnavailableArcoreNotInstalledException | UnavailableUserDeclinedInstallationException e) {
+			fail("Пожалуйста, установите ARCore", e);
+		} catch (UnavailableApkTooOldException e) {
+			fail("Пожалуйста, обновите ARCore", e);
+		} catch (UnavailableSdkTooOldException e) {
+			fail("Пожалуйста, обновите это приложение", e);
+		} catch (CameraNotAvailableException e) {
+			fail("Камера недоступна, попробуйте перезапустить приложение", e);
+		} catch (Exception e) {
+			fail("Это устройство не поддерживает AR", e);
+		}
+	}
+
+	private void fail(final String message, final Exception exception) {
+		Log.e(TAG, "Session bring-up failed in " + phase, exception);
+		phase = Phase.FAILED;
+		runningSession = null;
+		if (session != null) {
+			// Сессию без камеры уже не поднять, следующий запуск создаст новую
+			session.close();
+			session = null;
+			sessionCreated = false;
+		}
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				callbacks.onFailed(message, exception);
+			}
+		});
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core;
+
+import android.opengl.Matrix;
+import com.google.ar.core.AugmentedImage;
+import com.google.ar.core.Frame;
+import com.google.ar.core.HitResult;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Point;
+import com.google.ar.core.Trackable;
+import com.google.ar.core.TrackingState;
+import com.maxfeed.ar.space.util.BoundingVolumeTree;
+import com.maxfeed.ar.space.util.TapHelper;
+import java.util.List;
+
+public class TapResolver {
+	public interface Listener {
+		void onImageTapped(AugmentedImage image, float localX, float localZ, long timestamp);
+
+		void onPlacementTapped(int placementId, long timestamp);
+
+		void onSurfaceHit(HitResult hit, long timestamp);
+
+		void onMiss(float x, float y, long timestamp);
+	}
+
+	private final TapHelper tapHelper;
+
+	private final float[] tapX = new float[TapHelper.CAPACITY];
+	private final float[] tapY = new float[TapHelper.CAPACITY];
+	private final long[] tapTimestamps = new long[TapHelper.CAPACITY];
+	// Лучшее попадание для каждого касания: расстояние вдоль луча и изображение или поставленная планета
+	private final float[] hitDistance = new float[TapHelper.CAPACITY];
+	private final AugmentedImage[] imageHits = new AugmentedImage[TapHelper.CAPACITY];
+	private final int[] placementHits = new int[TapHelper.CAPACITY];
+	private final float[] imageLocal = new float[TapHelper.CAPACITY * 2];
+	// Лучи в мировых координатах: начало на ближней плоскости и направление
+	private final float[] rays = new float[TapHelper.CAPACITY * 6];
+
+	private final float[] viewProjection = new float[16];
+	private final float[] inverseViewProjection = new float[16];
+	private final float[] inverseImageMatrix = new float[16];
+	private final float[] clipPoint = new float[4];
+	private final float[] worldPoint = new float[4];
+	private final float[] localPoint = new float[4];
+	private final float[] sphere = new float[4];
+
+	private SceneIndex scene;
+	private int currentTap;
+
+	private final BoundingVolumeTree.RayVisitor imageVisitor = new BoundingVolumeTree.RayVisitor() {
+		@Override
+		public float visit(int proxy, int userData, float maxDistance) {
+			AugmentedImage image = scene.getImage(proxy);
+			if (image == null) {
+				int placement = scene.getPlacement(proxy);
+				if (placement != SceneIndex.NONE) {
+					scene.getSphere(proxy, sphere);
+					intersectSphere(currentTap, placement);
+				}
+				return Math.min(maxDistance, hitDistance[currentTap]);
+			}
+			if (image.getTrackingState() != TrackingState.TRACKING) {
+				return maxDistance;
+			}
+			scene.getInverseImageMatrix(proxy, inverseImageMatrix);
+			intersectImage(currentTap, image, image.getExtentX() * 0.5f, image.getExtentZ() * 0.5f);
+			return Math.min(maxDistance, hitDistance[currentTap]);
+		}
+	};
+
+	private int viewportWidth = 1;
+	private int viewportHeight = 1;
+	private long resolvedTaps;
+	private boolean instantPlacement;
+	private float instantPlacementDistance;
+
+	public TapResolver(TapHelper tapHelper) {
+		this.tapHelper = tapHelper;
+	}
+
+	public void setViewportSize(int width, int height) {
+		viewportWidth = Math.max(width, 1);
+		viewportHeight = Math.max(height, 1);
+	}
+
+	public void setInstantPlacement(boolean enabled, float approximateDistance) {
+		instantPlacement = enabled;
+		instantPlacementDistance = approximateDistance;
+	}
+
+	public long getResolvedTaps() {
+		return resolvedTaps;
+	}
+
+	public void resolve(Frame frame, float[] viewMatrix, float[] projectionMatrix, SceneIndex sceneIndex,
+			Listener listener) {
+		int count = tapHelper.drain(tapX, tapY, tapTimestamps);
+		if (count == 0) {
+			return;
+		}
+		resolvedTaps += count;
+		Matrix.multiplyMM(viewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
+		Matrix.invertM(inverseViewProjection, 0, viewProjection, 0);
+		for (int i = 0; i < count; i++) {
+			buildRay(i);
+			hitDistance[i] = Float.MAX_VALUE;
+			imageHits[i] = null;
+			placementHits[i] = SceneIndex.NONE;
+		}
+		// Точная проверка с прямоугольником или сферой только для объектов, чьи коробки в дереве задел луч
+		scene = sceneIndex;
+		for (int i = 0; i < count; i++) {
+			currentTap = i;
+			sceneIndex.raycast(rays, i * 6, Float.MAX_VALUE, imageVisitor);
+		}
+		scene = null;
+		for (int i = 0; i < count; i++) {
+			AugmentedImage image = imageHits[i];
+			imageHits[i] = null;
+			if (image != null) {
+				listener.onImageTapped(image, imageLocal[i * 2], imageLocal[i * 2 + 1], tapTimestamps[i]);
+				continue;
+			}
+			if (placementHits[i] != SceneIndex.NONE) {
+				listener.onPlacementTapped(placementHits[i], tapTimestamps[i]);
+				continue;
+			}
+			// Поиск по плоскостям и точкам ARCore дорогой, поэтому только для касаний мимо изображений
+			HitResult hit = findSurfaceHit(frame.hitTest(tapX[i], tapY[i]));
+			if (hit == null && instantPlacement) {
+				// Пока плоскостей нет, точка ставится на примерном расстоянии и уточняется позже
+				List<HitResult> instantHits = frame.hitTestInstantPlacement(tapX[i], tapY[i],
+						instantPlacementDistance);
+				hit = instantHits.isEmpty() ? null : instantHits.get(0);
+			}
+			if (hit == null) {
+				listener.onMiss(tapX[i], tapY[i], tapTimestamps[i]);
+			} else {
+				listener.onSurfaceHit(hit, tapTimestamps[i]);
+			}
+		}
+	}
+
+	private static HitResult findSurfaceHit(List<HitResult> hits) {
+		for (int i = 0; i < hits.size(); i++) {
+			HitResult hit = hits.get(i);
+			Trackable trackable = hit.getTrackable();
+			if (trackable instanceof Plane && ((Plane) trackable).isPoseInPolygon(hit.getHitPose())) {
+				return hit;
+			}
+			if (trackable instanceof Point
+					&& ((Point) trackable).getOrientationMode() == Point.OrientationMode.ESTIMATED_SURFACE_NORMAL) {
+				return hit;
+			}
+		}
+		return null;
+	}
+
+	private void buildRay(int tap) {
+		float ndcX = 2.0f * tapX[tap] / viewportWidth - 1.0f;
+		float ndcY = 1.0f - 2.0f * tapY[tap] / viewportHeight;
+		int base = tap * 6;
+		unproject(ndcX, ndcY, -1.0f);
+		rays[base] = worldPoint[0];
+		rays[base + 1] = worldPoint[1];
+		rays[base + 2] = worldPoint[2];
+		unproject(ndcX, ndcY, 1.0f);
+		float dx = worldPoint[0] - rays[base];
+		float dy = worldPoint[1] - rays[base + 1];
+		float dz = worldPoint[2] - rays[base + 2];
+		float reciprocalLength = 1.0f / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		rays[base + 3] = dx * reciprocalLength;
+		rays[base + 4] = dy * reciprocalLength;
+		rays[base + 5] = dz * reciprocalLength;
+	}
+
+	private void unproject(float ndcX, float ndcY, float ndcZ) {
+		clipPoint[0] = ndcX;
+		clipPoint[1] = ndcY;
+		clipPoint[2] = ndcZ;
+		clipPoint[3] = 1.0f;
+		Matrix.multiplyMV(worldPoint, 0, inverseViewProjection, 0, clipPoint, 0);
+		float w = worldPoint[3];
+		worldPoint[0] /= w;
+		worldPoint[1] /= w;
+		worldPoint[2] /= w;
+	}
+
+	private void intersectImage(int tap, AugmentedImage image, float halfX, float halfZ) {
+		int base = tap * 6;
+		// Луч переводится в систему изображения, где оно лежит в плоскости y = 0
+		worldPoint[0] = rays[base];
+		worldPoint[1] = rays[base + 1];
+		worldPoint[2] = rays[base + 2];
+		worldPoint[3] = 1.0f;
+		Matrix.multiplyMV(localPoint, 0, inverseImageMatrix, 0, worldPoint, 0);
+		float originX = localPoint[0];
+		float originY = localPoint[1];
+		float originZ = localPoint[2];
+		worldPoint[0] = rays[base + 3];
+		worldPoint[1] = rays[base + 4];
+		worldPoint[2] = rays[base + 5];
+		worldPoint[3] = 0.0f;
+		Matrix.multiplyMV(localPoint, 0, inverseImageMatrix, 0, worldPoint, 0);
+		float directionY = localPoint[1];
+		if (Math.abs(directionY) < 1e-6f) {
+			return;
+		}
+		float distance = -originY / directionY;
+		if (distance <= 0 || distance >= hitDistance[tap]) {
+			return;
+		}
+		float x = originX + localPoint[0] * distance;
+		float z = originZ + localPoint[2] * distance;
+		if (Math.abs(x) > halfX || Math.abs(z) > halfZ) {
+			return;
+		}
+		hitDistance[tap] = distance;
+		imageHits[tap] = image;
+		placementHits[tap] = SceneIndex.NONE;
+		imageLocal[tap * 2] = x;
+		imageLocal[tap * 2 + 1] = z;
+	}
+
+	private void intersectSphere(int tap, int placement) {
+		int base = tap * 6;
+		// Направление луча единичное, поэтому квадратное уравнение упрощается
+		float offsetX = rays[base] - sphere[0];
+		float offsetY = rays[base + 1] - sphere[1];
+		float offsetZ = rays[base + 2] - sphere[2];
+		float b = offsetX * rays[base + 3] + offsetY * rays[base + 4] + offsetZ * rays[base + 5];
+		float c = offsetX * offsetX + offsetY * offsetY + offsetZ * offsetZ - sphere[3] * sphere[3];
+		float discriminant = b * b - c;
+		if (discriminant < 0) {
+			return;
+		}
+		float distance = -b - (float) Math.sqrt(discriminant);
+		if (distance <= 0 || distance >= hitDistance[tap]) {
+			return;
+		}
+		hitDistance[tap] = distance;
+		imageHits[tap] = null;
+		placementHits[tap] = placement;
+	}
+}
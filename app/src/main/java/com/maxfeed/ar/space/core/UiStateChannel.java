@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core;
+
+import android.view.Choreographer;
+import com.google.ar.core.TrackingState;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UiStateChannel {
+	public static final int MESSAGE_NONE = 0;
+	public static final int MESSAGE_PLANET_FOUND = 1;
+	public static final int MESSAGE_TOO_DARK = 2;
+	public static final int MESSAGE_PLANET_SELECTED = 3;
+
+	private static final TrackingState[] TRACKING_STATES = TrackingState.values();
+
+	// Раскладка слова: бит видимости подсказки, состояние трекинга, номер сообщения и его аргумент
+	private static final long OVERLAY_BIT = 1L;
+	private static final int TRACKING_SHIFT = 1;
+	private static final long TRACKING_MASK = 0x7L;
+	private static final int MESSAGE_SHIFT = 8;
+	private static final long MESSAGE_MASK = 0xFFL;
+	private static final int ARGUMENT_SHIFT = 32;
+	private static final int NO_TRACKING_STATE = (int) TRACKING_MASK;
+	private static final long UNKNOWN = -1L;
+
+	public interface Listener {
+		void onOverlayVisibilityChanged(boolean visible);
+
+		void onTrackingStateChanged(TrackingState trackingState);
+
+		void onMessageChanged(int messageId, int argument);
+	}
+
+	// Один писатель (поток GL) и один читатель (поток интерфейса): всё состояние в одном слове,
+	// поэтому промежуточные значения между кадрами экрана просто перезаписываются
+	private final AtomicLong state = new AtomicLong(encode(true, null, MESSAGE_NONE, 0));
+
+	// Поле писателя, читается и меняется только в потоке GL
+	private long published = state.get();
+	private volatile long publishedCount;
+
+	// Поля читателя, только в потоке интерфейса
+	private long applied = UNKNOWN;
+	private long appliedCount;
+	private Listener listener;
+	private boolean started;
+
+	private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			if (!started) {
+				return;
+			}
+			drain();
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+	};
+
+	public void publish(boolean overlayVisible, TrackingState trackingState, int messageId, int argument) {
+		long value = encode(overlayVisible, trackingState, messageId, argument);
+		if (value == published) {
+			return;
+		}
+		published = value;
+		publishedCount++;
+		// Упорядоченной записи достаточно: читатель всё равно заберёт значение только на следующем кадре экрана
+		state.lazySet(value);
+	}
+
+	public void start(Listener listener) {
+		this.listener = listener;
+		// После паузы интерфейс мог измениться снаружи, поэтому первое значение применяется целиком
+		applied = UNKNOWN;
+		if (!started) {
+			started = true;
+			Choreographer.getInstance().postFrameCallback(frameCallback);
+		}
+	}
+
+	public void stop() {
+		started = false;
+		Choreographer.getInstance().removeFrameCallback(frameCallback);
+	}
+
+	public long getPublishedCount() {
+		return publishedCount;
+	}
+
+	public long getAppliedCount() {
+		return appliedCount;
+	}
+
+	private void drain() {
+		long value = state.get();
+		if (value == applied) {
+			return;
+		}
+		long previous = applied;
+		applied = value;
+		appliedCount++;
+		boolean all = previous == UNKNOWN;
+		if (all || ((previous ^ value) & OVERLAY_BIT) != 0) {
+			listener.onOverlayVisibilityChanged((value & OVERLAY_BIT) != 0);
+		}
+		int tracking = (int) ((value >>> TRACKING_SHIFT) & TRACKING_MASK);
+		if (all || tracking != (int) ((previous >>> TRACKING_SHIFT) & TRACKING_MASK)) {
+			if (tracking != NO_TRACKING_STATE) {
+				listener.onTrackingStateChanged(TRACKING_STATES[tracking]);
+			}
+		}
+		long message = value >>> MESSAGE_SHIFT;
+		if (all || message != previous >>> MESSAGE_SHIFT) {
+			listener.onMessageChanged((int) (message & MESSAGE_MASK), (int) (value >>> ARGUMENT_SHIFT));
+		}
+	}
+
+	private static long encode(boolean overlayVisible, TrackingState trackingState, int messageId, int argument) {
+		long tracking = trackingState == null ? NO_TRACKING_STATE : trackingState.ordinal();
+		return (overlayVisible ? OVERLAY_BIT : 0) | (tracking << TRACKING_SHIFT)
+				| ((messageId & MESSAGE_MASK) << MESSAGE_SHIFT) | ((long) argument << ARGUMENT_SHIFT);
+	}
+}
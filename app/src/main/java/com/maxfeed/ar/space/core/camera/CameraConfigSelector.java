@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.camera;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import com.google.ar.core.CameraConfig;
+import com.google.ar.core.CameraConfigFilter;
+import com.google.ar.core.Session;
+import java.util.EnumSet;
+import java.util.List;
+
+public class CameraConfigSelector {
+	private static final String TAG = CameraConfigSelector.class.getSimpleName();
+
+	public static final String SHARED_PREFERENCES_ID = "SHARED_PREFERENCES_CAMERA_CONFIG";
+
+	public enum Tier {
+		LOW, MID, HIGH
+	}
+
+	// Изображение для анализа на процессоре: больше нужного только тратит память и время копирования
+	private static final int[] TARGET_IMAGE_PIXELS = new int[] { 640 * 480, 1280 * 720, 1920 * 1080 };
+	private static final int[] TARGET_FPS = new int[] { 30, 30, 60 };
+	private static final long HIGH_TIER_MEMORY = 6L * 1024 * 1024 * 1024;
+	private static final int HIGH_TIER_CORES = 8;
+	private static final long LOW_TIER_MEMORY = 3L * 1024 * 1024 * 1024;
+
+	private final SharedPreferences sharedPreferences;
+	private final Tier tier;
+	private final boolean depthWanted;
+	private final String preferenceKey;
+
+	public CameraConfigSelector(Context context, boolean depthWanted) {
+		sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_ID, Context.MODE_PRIVATE);
+		tier = detectTier(context);
+		this.depthWanted = depthWanted;
+		// Выбор зависит от модели и от того, нужна ли глубина, но не от конкретного запуска
+		preferenceKey = Build.MANUFACTURER + "/" + Build.MODEL + (depthWanted ? "/depth" : "");
+	}
+
+	public Tier getTier() {
+		return tier;
+	}
+
+	public CameraConfig apply(Session session) {
+		long start = SystemClock.elapsedRealtime();
+		CameraConfigFilter filter = new CameraConfigFilter(session);
+		filter.setFacingDirection(CameraConfig.FacingDirection.BACK);
+		if (!depthWanted) {
+			filter.setDepthSensorUsage(EnumSet.of(CameraConfig.DepthSensorUsage.DO_NOT_USE));
+		}
+		List<CameraConfig> configs = session.getSupportedCameraConfigs(filter);
+		if (configs.isEmpty()) {
+			Log.w(TAG, "No camera config matches the filter, keeping the default");
+			return session.getCameraConfig();
+		}
+		String saved = sharedPreferences.getString(preferenceKey, null);
+		CameraConfig chosen = null;
+		if (saved != null) {
+			for (CameraConfig config : configs) {
+				if (saved.equals(describe(config))) {
+					chosen = config;
+					break;
+				}
+			}
+		}
+		boolean cached = chosen != null;
+		if (!cached) {
+			int bestScore = Integer.MIN_VALUE;
+			for (CameraConfig config : configs) {
+				int score = score(config);
+				if (score > bestScore) {
+					bestScore = score;
+					chosen = config;
+				}
+			}
+			sharedPreferences.edit().putString(preferenceKey, describe(chosen)).apply();
+		}
+		session.setCameraConfig(chosen);
+		Log.i(TAG, "Camera config " + describe(chosen) + " for " + tier + " tier, " + (cached ? "cached" : "scored "
+				+ configs.size() + " options") + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+		return chosen;
+	}
+
+	private int score(CameraConfig config) {
+		int score = 0;
+		int fps = config.getFpsRange().getUpper();
+		int targetFps = TARGET_FPS[tier.ordinal()];
+		if (fps == targetFps) {
+			score += 100;
+		} else if (fps > targetFps) {
+			// Лишняя частота кадров стоит батареи и времени ARCore на каждом кадре
+			score += 40;
+		} else {
+			score += 20;
+		}
+		Size size = config.getImageSize();
+		double ratio = (double) size.getWidth() * size.getHeight() / TARGET_IMAGE_PIXELS[tier.ordinal()];
+		double distance = Math.abs(Math.log(ratio) / Math.log(2));
+		score += (int) Math.round(Math.max(0, 60 - 30 * distance));
+		boolean usesDepth = config.getDepthSensorUsage() == CameraConfig.DepthSensorUsage.REQUIRE_AND_USE;
+		if (usesDepth != depthWanted) {
+			score -= 30;
+		}
+		return score;
+	}
+
+	private static String describe(CameraConfig config) {
+		Size image = config.getImageSize();
+		Size texture = config.getTextureSize();
+		return config.getCameraId() + ":" + image.getWidth() + "x" + image.getHeight() + ":" + texture.getWidth() + "x"
+				+ texture.getHeight() + "@" + config.getFpsRange().getUpper() + ":" + config.getDepthSensorUsage();
+	}
+
+	private static Tier detectTier(Context context) {
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+		activityManager.getMemoryInfo(memoryInfo);
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (activityManager.isLowRamDevice() || memoryInfo.totalMem < LOW_TIER_MEMORY) {
+			return Tier.LOW;
+		}
+		if (memoryInfo.totalMem >= HIGH_TIER_MEMORY && cores >= HIGH_TIER_CORES) {
+			return Tier.HIGH;
+		}
+		return Tier.MID;
+	}
+}
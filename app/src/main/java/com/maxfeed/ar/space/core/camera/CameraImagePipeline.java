@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.camera;
+
+import android.media.Image;
+import android.util.Log;
+import com.google.ar.core.Frame;
+import com.google.ar.core.exceptions.NotYetAvailableException;
+import com.google.ar.core.exceptions.ResourceExhaustedException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CameraImagePipeline {
+	private static final String TAG = CameraImagePipeline.class.getSimpleName();
+
+	private static final long FLUSH_TIMEOUT_MS = 200;
+
+	public interface Analyzer {
+		// Изображение и буферы его плоскостей действительны только внутри вызова, закрывает их конвейер
+		void analyze(Image image, long timestamp);
+	}
+
+	private final List<Analyzer> analyzers = new CopyOnWriteArrayList<>();
+	private final ExecutorService worker = Executors.newSingleThreadExecutor();
+	// В обработке не больше одного кадра: пока анализаторы заняты, новые кадры пропускаются
+	private final AtomicBoolean busy = new AtomicBoolean();
+
+	private volatile int processedFrames;
+	private int droppedFrames;
+	private int unavailableFrames;
+
+	public void addAnalyzer(Analyzer analyzer) {
+		analyzers.add(analyzer);
+	}
+
+	public void removeAnalyzer(Analyzer analyzer) {
+		analyzers.remove(analyzer);
+	}
+
+	public void onFrame(Frame frame) {
+		if (analyzers.isEmpty()) {
+			return;
+		}
+		if (!busy.compareAndSet(false, true)) {
+			droppedFrames++;
+			return;
+		}
+		final Image image;
+		try {
+			image = frame.acquireCameraImage();
+		} catch (NotYetAvailableException | ResourceExhaustedException e) {
+			busy.set(false);
+			unavailableFrames++;
+			return;
+		}
+		final long timestamp = frame.getTimestamp();
+		try {
+			worker.execute(new Runnable() {
+				@Override
+				public void run() {
+					analyze(image, timestamp);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			image.close();
+			busy.set(false);
+		}
+	}
+
+	private void analyze(Image image, long timestamp) {
+		try {
+			for (Analyzer analyzer : analyzers) {
+				try {
+					analyzer.analyze(image, timestamp);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Camera image analyzer failed", e);
+				}
+			}
+			processedFrames++;
+		} finally {
+			image.close();
+			busy.set(false);
+		}
+	}
+
+	public void flush() {
+		// Поток один, поэтому пустая задача выполнится только после уже отправленного кадра
+		try {
+			worker.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+			Log.w(TAG, "Camera image analysis did not finish in time", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void shutdown() {
+		worker.shutdown();
+		try {
+			if (!worker.awaitTermination(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				Log.w(TAG, "Camera image analysis did not finish before shutdown");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getProcessedFrames() {
+		return processedFrames;
+	}
+
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	public int getUnavailableFrames() {
+		return unavailableFrames;
+	}
+}
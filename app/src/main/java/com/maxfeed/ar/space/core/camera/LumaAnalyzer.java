@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.camera;
+
+import android.media.Image;
+import java.nio.ByteBuffer;
+
+public class LumaAnalyzer implements CameraImagePipeline.Analyzer {
+	private static final int SAMPLE_STEP = 8;
+	private static final float SMOOTHING = 0.2f;
+	private static final float DARK_LUMA = 40.0f;
+	private static final float BRIGHT_LUMA = 55.0f;
+
+	private volatile float meanLuma = -1;
+	private volatile boolean tooDark;
+
+	@Override
+	public void analyze(Image image, long timestamp) {
+		// Яркость читается прямо из плоскости Y без копирования, по одной точке из квадрата 8х8
+		Image.Plane plane = image.getPlanes()[0];
+		ByteBuffer buffer = plane.getBuffer();
+		int rowStride = plane.getRowStride();
+		int pixelStride = plane.getPixelStride();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long sum = 0;
+		int count = 0;
+		for (int y = 0; y < height; y += SAMPLE_STEP) {
+			int row = y * rowStride;
+			for (int x = 0; x < width; x += SAMPLE_STEP) {
+				sum += buffer.get(row + x * pixelStride) & 0xFF;
+				count++;
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+		float luma = (float) sum / count;
+		float smoothed = meanLuma < 0 ? luma : meanLuma + (luma - meanLuma) * SMOOTHING;
+		meanLuma = smoothed;
+		// Разные пороги входа и выхода, чтобы подсказка не мигала на границе
+		if (tooDark ? smoothed > BRIGHT_LUMA : smoothed < DARK_LUMA) {
+			tooDark = !tooDark;
+		}
+	}
+
+	public float getMeanLuma() {
+		return meanLuma;
+	}
+
+	public boolean isTooDark() {
+		return tooDark;
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.database;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.AugmentedImageDatabase;
+import com.google.ar.core.Session;
+import com.maxfeed.ar.space.util.ByteBufferInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ImageDatabaseManager {
+	private static final String TAG = ImageDatabaseManager.class.getSimpleName();
+
+	public static final String DEFAULT_DATABASE_ASSET = "sample_database.imgdb";
+	private static final String FALLBACK_IMAGE_ASSET = "default.jpg";
+	private static final String FALLBACK_IMAGE_NAME = "default";
+	private static final String EXTRACTED_DATABASE_DIR = "imgdb";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_CACHE_CAPACITY = 3;
+
+	public enum State {
+		IDLE, LOADING, READY, FALLBACK, FAILED
+	}
+
+	public interface Listener {
+		void onStateChanged(State state, ImageDatabaseShard shard, AugmentedImageDatabase database);
+	}
+
+	private final Context context;
+	private final List<ImageDatabaseShard> shards;
+	private final Listener listener;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final ShardMetrics metrics = new ShardMetrics();
+	private final int cacheCapacity;
+	private final Map<String, AugmentedImageDatabase> cache;
+
+	private volatile State state = State.IDLE;
+	private volatile Session loadedSession;
+	private ImageDatabaseShard activeShard;
+	private ImageDatabaseShard requestedShard;
+
+	public ImageDatabaseManager(Context context, Listener listener) {
+		this(context, ImageDatabaseShard.listFromAssets(context, DEFAULT_DATABASE_ASSET), DEFAULT_CACHE_CAPACITY,
+				listener);
+	}
+
+	public ImageDatabaseManager(Context context, List<ImageDatabaseShard> shards, final int cacheCapacity,
+			Listener listener) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("At least one image database shard is required");
+		}
+		this.context = context.getApplicationContext();
+		this.shards = shards;
+		this.cacheCapacity = cacheCapacity;
+		this.listener = listener;
+		// База привязана к сессии и держит нативную память, поэтому в кеше только несколько последних частей
+		this.cache = new LinkedHashMap<String, AugmentedImageDatabase>(cacheCapacity + 1, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, AugmentedImageDatabase> eldest) {
+				return size() > cacheCapacity;
+			}
+		};
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public List<ImageDatabaseShard> getShards() {
+		return shards;
+	}
+
+	public ImageDatabaseShard getActiveShard() {
+		return activeShard;
+	}
+
+	public ShardMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void load(Session session) {
+		if (session != loadedSession) {
+			loadedSession = session;
+			activeShard = null;
+			synchronized (cache) {
+				cache.clear();
+			}
+		}
+		activate(requestedShard != null ? requestedShard.getId() : shards.get(0).getId());
+	}
+
+	public void activate(String shardId) {
+		final ImageDatabaseShard shard = findShard(shardId);
+		if (shard == null) {
+			Log.w(TAG, "Unknown image database shard " + shardId);
+			return;
+		}
+		requestedShard = shard;
+		final Session session = loadedSession;
+		if (session == null) {
+			return;
+		}
+		AugmentedImageDatabase cached = getCached(shard);
+		if (cached != null) {
+			activeShard = shard;
+			publish(State.READY, shard, cached);
+			prefetchAfter(session, shard);
+			return;
+		}
+		publish(State.LOADING, shard, null);
+		// При смене части уже работающая база лучше упрощённой, поэтому запасная строится только при первой загрузке
+		final boolean rotating = activeShard != null;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				AugmentedImageDatabase result;
+				State resultState;
+				try {
+					result = loadShard(session, shard);
+					resultState = State.READY;
+				} catch (IOException | RuntimeException e) {
+					// Несовместимый или повреждённый файл ARCore отвергает исключением времени выполнения
+					if (rotating) {
+						Log.e(TAG, "Unable to load prebuilt image database " + shard + ", keeping the active one", e);
+						result = null;
+						resultState = State.FAILED;
+					} else {
+						Log.e(TAG, "Unable to load prebuilt image database " + shard + ", falling back to runtime image",
+								e);
+						result = buildFallbackDatabase(session);
+						resultState = result != null ? State.FALLBACK : State.FAILED;
+					}
+				}
+				deliver(session, shard, resultState, result);
+			}
+		});
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+		mainHandler.removeCallbacksAndMessages(null);
+	}
+
+	private ImageDatabaseShard findShard(String shardId) {
+		for (ImageDatabaseShard shard : shards) {
+			if (shard.getId().equals(shardId)) {
+				return shard;
+			}
+		}
+		return null;
+	}
+
+	private AugmentedImageDatabase getCached(ImageDatabaseShard shard) {
+		synchronized (cache) {
+			return cache.get(shard.getId());
+		}
+	}
+
+	private AugmentedImageDatabase loadShard(Session session, ImageDatabaseShard shard) throws IOException {
+		AugmentedImageDatabase cached = getCached(shard);
+		if (cached != null) {
+			return cached;
+		}
+		long start = SystemClock.elapsedRealtime();
+		ByteBuffer mapped = mapAsset(shard.getAssetName());
+		AugmentedImageDatabase database = AugmentedImageDatabase.deserialize(session, new ByteBufferInputStream(mapped));
+		long elapsed = SystemClock.elapsedRealtime() - start;
+		metrics.recordLoad(shard.getId(), elapsed);
+		Log.d(TAG, "Image database " + shard + " with " + database.getNumImages() + " images loaded in " + elapsed
+				+ " ms");
+		synchronized (cache) {
+			cache.put(shard.getId(), database);
+		}
+		return database;
+	}
+
+	private void prefetchAfter(final Session session, ImageDatabaseShard shard) {
+		int index = shards.indexOf(shard);
+		int count = Math.min(cacheCapacity - 1, shards.size() - 1);
+		for (int i = 1; i <= count; i++) {
+			final ImageDatabaseShard next = shards.get((index + i) % shards.size());
+			if (getCached(next) != null) {
+				continue;
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (session != loadedSession) {
+						return;
+					}
+					try {
+						loadShard(session, next);
+					} catch (IOException | RuntimeException e) {
+						Log.w(TAG, "Unable to prefetch image database " + next, e);
+					}
+				}
+			});
+		}
+	}
+
+	private void deliver(final Session session, final ImageDatabaseShard shard, final State resultState,
+			final AugmentedImageDatabase result) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (session != loadedSession || shard != requestedShard) {
+					return;
+				}
+				if (result != null) {
+					activeShard = shard;
+				}
+				publish(resultState, shard, result);
+				if (resultState == State.READY) {
+					prefetchAfter(session, shard);
+				}
+			}
+		});
+	}
+
+	private void publish(State newState, ImageDatabaseShard shard, AugmentedImageDatabase database) {
+		state = newState;
+		listener.onStateChanged(newState, shard, database);
+	}
+
+	private ByteBuffer mapAsset(String assetName) throws IOException {
+		try (AssetFileDescriptor descriptor = context.getAssets().openFd(assetName);
+				FileInputStream stream = descriptor.createInputStream();
+				FileChannel channel = stream.getChannel()) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(), descriptor.getLength());
+		} catch (FileNotFoundException e) {
+			// Ассет сжат внутри APK, поэтому один раз распаковываем его во внутреннее хранилище
+			Log.w(TAG, assetName + " is compressed, extracting it for mapping");
+			return mapFile(extractAsset(assetName));
+		}
+	}
+
+	private ByteBuffer mapFile(File file) throws IOException {
+		try (FileInputStream stream = new FileInputStream(file); FileChannel channel = stream.getChannel()) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private File extractAsset(String assetName) throws IOException {
+		File directory = new File(context.getFilesDir(), EXTRACTED_DATABASE_DIR);
+		File target = new File(directory, assetName);
+		long apkModified = new File(context.getApplicationInfo().sourceDir).lastModified();
+		if (target.exists() && target.lastModified() >= apkModified) {
+			return target;
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		File temporary = new File(directory, assetName + ".tmp");
+		try (InputStream input = context.getAssets().open(assetName);
+				OutputStream output = new FileOutputStream(temporary)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+		}
+		if (!temporary.renameTo(target)) {
+			throw new IOException("Unable to move " + temporary + " to " + target);
+		}
+		return target;
+	}
+
+	private AugmentedImageDatabase buildFallbackDatabase(Session session) {
+		Bitmap bitmap;
+		try (InputStream is = context.getAssets().open(FALLBACK_IMAGE_ASSET)) {
+			bitmap = BitmapFactory.decodeStream(is);
+		} catch (IOException e) {
+			Log.e(TAG, "Not found AR default resource", e);
+			return null;
+		}
+		if (bitmap == null) {
+			return null;
+		}
+		try {
+			AugmentedImageDatabase fallback = new AugmentedImageDatabase(session);
+			fallback.addImage(FALLBACK_IMAGE_NAME, bitmap);
+			return fallback;
+		} catch (Exception e) {
+			Log.e(TAG, "Unable to add fallback image", e);
+			return null;
+		} finally {
+			bitmap.recycle();
+		}
+	}
+}
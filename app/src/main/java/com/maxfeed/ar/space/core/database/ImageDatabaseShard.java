@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.database;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class ImageDatabaseShard {
+	private static final String TAG = ImageDatabaseShard.class.getSimpleName();
+
+	public static final String SHARDS_ASSET_DIR = "imgdb";
+	private static final String SHARD_EXTENSION = ".imgdb";
+
+	private final String id;
+	private final String assetName;
+
+	public ImageDatabaseShard(String id, String assetName) {
+		this.id = id;
+		this.assetName = assetName;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getAssetName() {
+		return assetName;
+	}
+
+	@Override
+	public String toString() {
+		return id;
+	}
+
+	public static List<ImageDatabaseShard> listFromAssets(Context context, String defaultAssetName) {
+		List<ImageDatabaseShard> shards = new ArrayList<>();
+		try {
+			String[] names = context.getAssets().list(SHARDS_ASSET_DIR);
+			if (names != null) {
+				Arrays.sort(names);
+				for (String name : names) {
+					if (name.endsWith(SHARD_EXTENSION)) {
+						shards.add(new ImageDatabaseShard(name.substring(0, name.length() - SHARD_EXTENSION.length()),
+								SHARDS_ASSET_DIR + "/" + name));
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to list image database shards", e);
+		}
+		if (shards.isEmpty()) {
+			String id = defaultAssetName.endsWith(SHARD_EXTENSION)
+					? defaultAssetName.substring(0, defaultAssetName.length() - SHARD_EXTENSION.length())
+					: defaultAssetName;
+			shards.add(new ImageDatabaseShard(id, defaultAssetName));
+		}
+		return Collections.unmodifiableList(shards);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.database;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class ShardMetrics {
+	public static final class Entry {
+		public final String shardId;
+		public int loadCount;
+		public long lastLoadMillis;
+		public int swapCount;
+		public long lastSwapMillis;
+		public long totalSwapMillis;
+		public int detectionCount;
+		public long lastDetectionMillis;
+		public long totalDetectionMillis;
+
+		Entry(String shardId) {
+			this.shardId = shardId;
+		}
+
+		Entry copy() {
+			Entry copy = new Entry(shardId);
+			copy.loadCount = loadCount;
+			copy.lastLoadMillis = lastLoadMillis;
+			copy.swapCount = swapCount;
+			copy.lastSwapMillis = lastSwapMillis;
+			copy.totalSwapMillis = totalSwapMillis;
+			copy.detectionCount = detectionCount;
+			copy.lastDetectionMillis = lastDetectionMillis;
+			copy.totalDetectionMillis = totalDetectionMillis;
+			return copy;
+		}
+
+		public long averageSwapMillis() {
+			return swapCount == 0 ? 0 : totalSwapMillis / swapCount;
+		}
+
+		public long averageDetectionMillis() {
+			return detectionCount == 0 ? 0 : totalDetectionMillis / detectionCount;
+		}
+
+		@Override
+		public String toString() {
+			return shardId + ": load " + lastLoadMillis + " ms, swap avg " + averageSwapMillis() + " ms (" + swapCount
+					+ "), detection avg " + averageDetectionMillis() + " ms (" + detectionCount + ")";
+		}
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+	private String activeShardId;
+	private long activatedAt;
+	private boolean detectedSinceActivation;
+
+	public synchronized void recordLoad(String shardId, long millis) {
+		Entry entry = entry(shardId);
+		entry.loadCount++;
+		entry.lastLoadMillis = millis;
+	}
+
+	public synchronized void recordSwap(String shardId, long millis) {
+		Entry entry = entry(shardId);
+		entry.swapCount++;
+		entry.lastSwapMillis = millis;
+		entry.totalSwapMillis += millis;
+		activeShardId = shardId;
+		activatedAt = SystemClock.elapsedRealtime();
+		detectedSinceActivation = false;
+	}
+
+	public synchronized void recordDetection() {
+		if (activeShardId == null || detectedSinceActivation) {
+			return;
+		}
+		detectedSinceActivation = true;
+		Entry entry = entry(activeShardId);
+		long millis = SystemClock.elapsedRealtime() - activatedAt;
+		entry.detectionCount++;
+		entry.lastDetectionMillis = millis;
+		entry.totalDetectionMillis += millis;
+	}
+
+	public synchronized List<Entry> snapshot() {
+		List<Entry> snapshot = new ArrayList<>(entries.size());
+		for (Entry entry : entries.values()) {
+			snapshot.add(entry.copy());
+		}
+		return snapshot;
+	}
+
+	private Entry entry(String shardId) {
+		Entry entry = entries.get(shardId);
+		if (entry == null) {
+			entry = new Entry(shardId);
+			entries.put(shardId, entry);
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.database;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public final class ShardSelector {
+	private static final long DEFAULT_DWELL_MILLIS = 4000;
+
+	private final List<ImageDatabaseShard> shards;
+	private final long dwellMillis;
+	// Части, которые не удалось загрузить: битый файл не починится сам, поэтому обход их пропускает
+	private final Set<String> failedShardIds = new HashSet<>();
+
+	private String activeShardId;
+	private String pinnedShardId;
+	private long activatedAt;
+	private long lastDetectionAt;
+	private boolean swapPending;
+
+	public ShardSelector(List<ImageDatabaseShard> shards) {
+		this(shards, DEFAULT_DWELL_MILLIS);
+	}
+
+	public ShardSelector(List<ImageDatabaseShard> shards, long dwellMillis) {
+		this.shards = shards;
+		this.dwellMillis = dwellMillis;
+	}
+
+	public synchronized void pin(String shardId) {
+		pinnedShardId = shardId;
+	}
+
+	public synchronized void unpin() {
+		pinnedShardId = null;
+	}
+
+	public synchronized void onShardActivated(String shardId, long nowMillis) {
+		activeShardId = shardId;
+		activatedAt = nowMillis;
+		swapPending = false;
+		failedShardIds.remove(shardId);
+	}
+
+	public synchronized void onSwapFailed(String shardId, long nowMillis) {
+		activatedAt = nowMillis;
+		swapPending = false;
+		failedShardIds.add(shardId);
+	}
+
+	public synchronized String onFrame(long nowMillis, boolean tracking) {
+		if (tracking) {
+			lastDetectionAt = nowMillis;
+			return null;
+		}
+		if (swapPending || activeShardId == null) {
+			return null;
+		}
+		if (pinnedShardId != null) {
+			return pinnedShardId.equals(activeShardId) || failedShardIds.contains(pinnedShardId) ? null
+					: requestSwap(pinnedShardId);
+		}
+		if (shards.size() < 2 || nowMillis - Math.max(lastDetectionAt, activatedAt) < dwellMillis) {
+			return null;
+		}
+		// Ничего не найдено за отведённое время, переходим к следующей исправной части каталога
+		int active = indexOf(activeShardId);
+		for (int i = 1; i < shards.size(); i++) {
+			String shardId = shards.get((active + i) % shards.size()).getId();
+			if (!failedShardIds.contains(shardId)) {
+				return requestSwap(shardId);
+			}
+		}
+		return null;
+	}
+
+	private String requestSwap(String shardId) {
+		swapPending = true;
+		return shardId;
+	}
+
+	private int indexOf(String shardId) {
+		for (int i = 0; i < shards.size(); i++) {
+			if (shards.get(i).getId().equals(shardId)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+}
@@ -19,6 +19,7 @@ import android.content.Context;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.AugmentedImage;
 import com.google.ar.core.Pose;
+import com.maxfeed.ar.space.rendering.DrawList;
 import com.maxfeed.ar.space.rendering.ObjectRenderer;
 import com.maxfeed.ar.space.rendering.ObjectRenderer.BlendMode;
 import java.io.IOException;
@@ -63,12 +64,19 @@ public class AugmentedImageRenderer {
 		imageFrameLowerRight.setBlendMode(BlendMode.AlphaBlending);
 	}
 	
+	public void release() {
+		imageFrameUpperLeft.release();
+		imageFrameUpperRight.release();
+		imageFrameLowerLeft.release();
+		imageFrameLowerRight.release();
+	}
+	
 	public void draw(
+			DrawList drawList,
 			float[] viewMatrix,
 			float[] projectionMatrix,
 			AugmentedImage augmentedImage,
-			Anchor centerAnchor,
-			float[] colorCorrectionRgba) {
+			Anchor centerAnchor) {
 		float[] tintColor =
 				convertHexToColor(TINT_COLORS_HEX[augmentedImage.getIndex() % TINT_COLORS_HEX.length]);
 		
@@ -102,19 +110,44 @@ public class AugmentedImageRenderer {
 		
 		worldBoundaryPoses[0].toMatrix(modelMatrix, 0);
 		imageFrameUpperLeft.updateModelMatrix(modelMatrix, scaleFactor);
-		imageFrameUpperLeft.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, tintColor);
+		imageFrameUpperLeft.enqueue(drawList, viewMatrix, projectionMatrix, tintColor);
 		
 		worldBoundaryPoses[1].toMatrix(modelMatrix, 0);
 		imageFrameUpperRight.updateModelMatrix(modelMatrix, scaleFactor);
-		imageFrameUpperRight.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, tintColor);
+		imageFrameUpperRight.enqueue(drawList, viewMatrix, projectionMatrix, tintColor);
 		
 		worldBoundaryPoses[2].toMatrix(modelMatrix, 0);
 		imageFrameLowerRight.updateModelMatrix(modelMatrix, scaleFactor);
-		imageFrameLowerRight.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, tintColor);
+		imageFrameLowerRight.enqueue(drawList, viewMatrix, projectionMatrix, tintColor);
 		
 		worldBoundaryPoses[3].toMatrix(modelMatrix, 0);
 		imageFrameLowerLeft.updateModelMatrix(modelMatrix, scaleFactor);
-		imageFrameLowerLeft.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, tintColor);
+		imageFrameLowerLeft.enqueue(drawList, viewMatrix, projectionMatrix, tintColor);
+	}
+	
+	public void getLocalBounds(AugmentedImage augmentedImage, float[] out) {
+		// Прямоугольник изображения вместе с уголками рамки, в системе центра изображения
+		float halfX = 0.5f * augmentedImage.getExtentX();
+		float halfZ = 0.5f * augmentedImage.getExtentZ();
+		out[0] = -halfX;
+		out[1] = 0.0f;
+		out[2] = -halfZ;
+		out[3] = halfX;
+		out[4] = 0.0f;
+		out[5] = halfZ;
+		includeCorner(out, imageFrameUpperLeft.getBounds(), -halfX, -halfZ);
+		includeCorner(out, imageFrameUpperRight.getBounds(), halfX, -halfZ);
+		includeCorner(out, imageFrameLowerRight.getBounds(), halfX, halfZ);
+		includeCorner(out, imageFrameLowerLeft.getBounds(), -halfX, halfZ);
+	}
+
+	private static void includeCorner(float[] out, float[] bounds, float x, float z) {
+		out[0] = Math.min(out[0], bounds[0] + x);
+		out[1] = Math.min(out[1], bounds[1]);
+		out[2] = Math.min(out[2], bounds[2] + z);
+		out[3] = Math.max(out[3], bounds[3] + x);
+		out[4] = Math.max(out[4], bounds[4]);
+		out[5] = Math.max(out[5], bounds[5] + z);
 	}
 	
 	private static float[] convertHexToColor(int colorHex) {
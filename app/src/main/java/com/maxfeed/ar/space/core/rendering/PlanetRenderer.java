@@ -0,0 +1,485 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.core.rendering;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.Anchor;
+import com.google.ar.core.AugmentedImage;
+import com.maxfeed.ar.space.rendering.AssetCache;
+import com.maxfeed.ar.space.rendering.DrawList;
+import com.maxfeed.ar.space.rendering.FrameUniforms;
+import com.maxfeed.ar.space.rendering.GlState;
+import com.maxfeed.ar.space.rendering.ShaderUtil;
+import com.maxfeed.ar.space.rendering.TextureManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PlanetRenderer {
+	private static final String TAG = PlanetRenderer.class.getSimpleName();
+
+	private static final String VERTEX_SHADER_NAME = "shaders/planet.vert";
+	private static final String FRAGMENT_SHADER_NAME = "shaders/planet.frag";
+
+	private static final String[] PLANET_TEXTURES = {
+		"models/Mercury_Map.jpg", "models/Venus_A_Map.jpg", "models/Earth_Map.jpg", "models/Mars_Map.jpg",
+		"models/Jupiter_Map.jpg", "models/Saturn_Map.jpg", "models/Uranus_Map.jpg", "models/Neptune_Map.jpg",
+		"models/Planet9_Map.jpg",
+	};
+
+	private static final int SPHERE_STACKS = 24;
+	private static final int SPHERE_SLICES = 48;
+	private static final int FLOATS_PER_VERTEX = 5;
+	private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
+	private static final int BYTES_PER_SHORT = Short.SIZE / 8;
+	private static final int STRIDE = FLOATS_PER_VERTEX * BYTES_PER_FLOAT;
+
+	private static final int MIN_TEXTURE_WIDTH = 128;
+	private static final int MAX_TEXTURE_WIDTH = 2048;
+	private static final int BYTES_PER_TEXEL = 2;
+	private static final float ROTATION_DEGREES_PER_SECOND = 10.0f;
+
+	private static final float[] NO_COLOR = new float[4];
+
+	private static final class PlanetTexture {
+		final String assetName;
+		final TextureManager.Texture texture;
+		int requestedWidth;
+		volatile boolean loading;
+
+		PlanetTexture(String assetName, TextureManager.Texture texture) {
+			this.assetName = assetName;
+			this.texture = texture;
+		}
+	}
+
+	private static final class DecodedTexture {
+		final PlanetTexture texture;
+		final Bitmap bitmap;
+
+		DecodedTexture(PlanetTexture texture, Bitmap bitmap) {
+			this.texture = texture;
+			this.bitmap = bitmap;
+		}
+	}
+
+	private final Map<String, PlanetTexture> textures = new HashMap<>();
+	private final Queue<DecodedTexture> decodedTextures = new ConcurrentLinkedQueue<>();
+	private ExecutorService decoder;
+	private final TextureManager textureManager = TextureManager.getInstance();
+	private long starvedBytes;
+
+	private AssetManager assets;
+	private int program;
+	private boolean uniformBlocks;
+	private int uploadedLightVersion;
+	private int vertexBufferId;
+	private int indexBufferId;
+	private int indexCount;
+	private int vertexArray;
+	private int positionAttribute;
+	private int texCoordAttribute;
+	private int modelViewUniform;
+	private int modelViewProjectionUniform;
+	private int textureUniform;
+	private int lightingParametersUniform;
+	private int colorCorrectionParameterUniform;
+
+	private int viewportHeight = 1;
+
+	private final float[] modelMatrix = new float[16];
+	private final float[] modelViewMatrix = new float[16];
+	private int attributeMask;
+
+	private final DrawList.Submitter submitter = new DrawList.Submitter() {
+		@Override
+		public void submit(DrawList.Command command) {
+			PlanetRenderer.this.submit(command);
+		}
+
+		@Override
+		public void submitGeometry(DrawList.Command command) {
+			bindGeometry();
+			GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+		}
+	};
+	private final float[] anchorMatrix = new float[16];
+
+	public PlanetRenderer() {}
+
+	public void createOnGlThread(Context context) throws IOException {
+		assets = context.getAssets();
+		if (decoder == null) {
+			decoder = Executors.newSingleThreadExecutor();
+		}
+		Map<String, Integer> defineValuesMap = new TreeMap<>();
+		uniformBlocks = FrameUniforms.getInstance().isEnabled();
+		defineValuesMap.put(ShaderUtil.UNIFORM_BLOCKS_SHADER_FLAG, uniformBlocks ? 1 : 0);
+		int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME,
+				defineValuesMap);
+		int fragmentShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME,
+				defineValuesMap);
+		// Позиция на нулевом номере нужна проходу глубины, который рисует через тот же VAO
+		program = ShaderUtil.createProgram(TAG, vertexShader, fragmentShader, "a_Position");
+		uploadedLightVersion = -1;
+		GlState.getInstance().useProgram(program);
+		ShaderUtil.checkGLError(TAG, "Program creation");
+		positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
+		texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
+		if (uniformBlocks) {
+			FrameUniforms.bindBlocks(program);
+		} else {
+			modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
+			modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+			lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
+			colorCorrectionParameterUniform = GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+		}
+		textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
+		attributeMask = GlState.attributeBit(positionAttribute) | GlState.attributeBit(texCoordAttribute);
+		GLES20.glUniform1i(textureUniform, 0);
+		ShaderUtil.checkGLError(TAG, "Program parameters");
+		createSphere();
+		// После потери контекста текстуры восстанавливаются из уже декодированных копий без повторного декодирования
+		for (PlanetTexture texture : textures.values()) {
+			Bitmap decoded = AssetCache.getInstance().peekBitmap(decodedKey(texture.assetName));
+			if (decoded != null) {
+				textureManager.upload(texture.texture, decoded);
+				texture.requestedWidth = decoded.getWidth();
+			} else {
+				texture.requestedWidth = 0;
+			}
+		}
+	}
+
+	public void release() {
+		GlState.getInstance().deleteVertexArray(vertexArray);
+		vertexArray = 0;
+		GlState.getInstance().deleteProgram(program);
+		GlState.getInstance().deleteBuffers(vertexBufferId, indexBufferId);
+		program = 0;
+		vertexBufferId = 0;
+		indexBufferId = 0;
+		for (PlanetTexture texture : textures.values()) {
+			textureManager.release(texture.texture);
+		}
+		textures.clear();
+		// Поток декодирования больше не нужен, начатое декодирование просто отбрасывается
+		decoder.shutdownNow();
+		decoder = null;
+		decodedTextures.clear();
+	}
+
+	public void setViewportSize(int width, int height) {
+		viewportHeight = Math.max(height, 1);
+	}
+
+	public void getLocalBounds(AugmentedImage augmentedImage, float[] out) {
+		// Планета стоит на центре изображения, коробка описывает её сферу
+		getLocalBounds(0.5f * Math.min(augmentedImage.getExtentX(), augmentedImage.getExtentZ()), out);
+	}
+
+	public void getLocalBounds(float radius, float[] out) {
+		out[0] = -radius;
+		out[1] = 0.0f;
+		out[2] = -radius;
+		out[3] = radius;
+		out[4] = 2.0f * radius;
+		out[5] = radius;
+	}
+
+	public void draw(DrawList drawList, float[] viewMatrix, float[] projectionMatrix, AugmentedImage augmentedImage,
+			Anchor centerAnchor) {
+		float radius = 0.5f * Math.min(augmentedImage.getExtentX(), augmentedImage.getExtentZ());
+		centerAnchor.getPose().toMatrix(anchorMatrix, 0);
+		draw(drawList, viewMatrix, projectionMatrix, augmentedImage.getIndex(), radius, anchorMatrix);
+	}
+
+	// Планета радиуса radius, стоящая на опорной точке: так рисуются и найденные, и размещённые касанием
+	public void draw(DrawList drawList, float[] viewMatrix, float[] projectionMatrix, int planetIndex, float radius,
+			float[] anchorMatrix) {
+		Matrix.translateM(modelMatrix, 0, anchorMatrix, 0, 0.0f, radius, 0.0f);
+		float angle = (SystemClock.elapsedRealtime() % 360000L) / 1000.0f * ROTATION_DEGREES_PER_SECOND;
+		Matrix.rotateM(modelMatrix, 0, angle, 0.0f, 1.0f, 0.0f);
+		Matrix.scaleM(modelMatrix, 0, radius, radius, radius);
+		Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
+
+		PlanetTexture texture = obtainTexture(planetIndex);
+		if (!texture.texture.isResident() && !texture.loading) {
+			// Текстура была вытеснена менеджером: копия из кэша встаёт в общую очередь загрузок без декодирования
+			Bitmap cached = AssetCache.getInstance().peekBitmap(decodedKey(texture.assetName));
+			if (cached != null) {
+				texture.loading = true;
+				texture.requestedWidth = cached.getWidth();
+				decodedTextures.add(new DecodedTexture(texture, cached));
+			} else {
+				texture.requestedWidth = 0;
+			}
+		}
+		requestResolution(texture, projectedDiameter(radius, projectionMatrix));
+		int textureId = textureManager.use(texture.texture);
+		if (textureId == 0) {
+			return;
+		}
+
+		DrawList.Command command = drawList.add(submitter, program, textureId, DrawList.BLEND_NONE);
+		System.arraycopy(modelViewMatrix, 0, command.modelView, 0, 16);
+		if (uniformBlocks) {
+			command.uniformSlot = FrameUniforms.getInstance().addObject(modelViewMatrix, 0, 0, 0, 0, NO_COLOR);
+			return;
+		}
+		Matrix.multiplyMM(command.modelViewProjection, 0, projectionMatrix, 0, modelViewMatrix, 0);
+		System.arraycopy(FrameUniforms.getInstance().getViewLightDirection(), 0, command.lighting, 0, 4);
+	}
+
+	private void submit(DrawList.Command command) {
+		ShaderUtil.checkGLError(TAG, "Before draw");
+		GlState gl = GlState.getInstance();
+		gl.useProgram(program);
+		if (uniformBlocks) {
+			FrameUniforms.getInstance().bindObject(command.uniformSlot);
+		} else {
+			GLES20.glUniform4fv(lightingParametersUniform, 1, command.lighting, 0);
+			FrameUniforms frameUniforms = FrameUniforms.getInstance();
+			if (uploadedLightVersion != frameUniforms.getLightVersion()) {
+				GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, frameUniforms.getColorCorrection(), 0);
+				uploadedLightVersion = frameUniforms.getLightVersion();
+			}
+			GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, command.modelView, 0);
+			GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, command.modelViewProjection, 0);
+		}
+		gl.bindTexture(0, GLES20.GL_TEXTURE_2D, command.texture);
+		bindGeometry();
+		gl.setDepthTest(true);
+		gl.setDepthMask(true);
+		gl.setBlend(false);
+		GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+		ShaderUtil.checkGLError(TAG, "After draw");
+	}
+
+	public void onFrameEnd() {
+		// Не больше одной загрузки в видеопамять за кадр, чтобы не было рывков
+		DecodedTexture decoded = decodedTextures.poll();
+		if (decoded != null) {
+			upload(decoded);
+		}
+		// Недостающий объём освобождается вытеснением давно не рисованных текстур
+		if (starvedBytes > 0) {
+			textureManager.trim(starvedBytes);
+			starvedBytes = 0;
+		}
+	}
+
+	private PlanetTexture obtainTexture(int index) {
+		String assetName = PLANET_TEXTURES[index % PLANET_TEXTURES.length];
+		PlanetTexture texture = textures.get(assetName);
+		if (texture == null) {
+			texture = new PlanetTexture(assetName, textureManager.acquireStreamed(assetName, /*mipmap=*/ true));
+			texture.texture.setWrapMode(GLES20.GL_REPEAT, GLES20.GL_CLAMP_TO_EDGE);
+			textures.put(assetName, texture);
+		}
+		return texture;
+	}
+
+	private float projectedDiameter(float radius, float[] projectionMatrix) {
+		float depth = Math.max(-modelViewMatrix[14], 0.01f);
+		return 2.0f * radius * projectionMatrix[5] / depth * 0.5f * viewportHeight;
+	}
+
+	private void requestResolution(final PlanetTexture texture, float diameterPixels) {
+		// Видимая половина сферы занимает половину ширины развёртки
+		int width = clampToPowerOfTwo((int) (2.0f * diameterPixels));
+		if (texture.loading || width <= texture.requestedWidth) {
+			return;
+		}
+		int desiredWidth = width;
+		long availableBytes = textureManager.getBudgetBytes() - textureManager.getResidentBytes()
+				+ (texture.texture.isResident() ? texture.texture.getBytes() : 0);
+		while (width > MIN_TEXTURE_WIDTH && textureBytes(width) > availableBytes) {
+			width /= 2;
+		}
+		starvedBytes = Math.max(starvedBytes, textureBytes(desiredWidth) - textureBytes(width));
+		if (width <= texture.requestedWidth) {
+			return;
+		}
+		texture.loading = true;
+		texture.requestedWidth = width;
+		final int targetWidth = width;
+		decoder.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap bitmap = decode(texture.assetName, targetWidth);
+				if (bitmap != null) {
+					decodedTextures.add(new DecodedTexture(texture, bitmap));
+				} else {
+					texture.loading = false;
+				}
+			}
+		});
+	}
+
+	private Bitmap decode(String assetName, int targetWidth) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		try (InputStream is = assets.open(assetName)) {
+			BitmapFactory.decodeStream(is, null, options);
+		} catch (IOException e) {
+			Log.e(TAG, "Not found planet texture " + assetName, e);
+			return null;
+		}
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= targetWidth) {
+			sampleSize *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap decoded;
+		try (InputStream is = assets.open(assetName)) {
+			decoded = BitmapFactory.decodeStream(is, null, options);
+		} catch (IOException e) {
+			Log.e(TAG, "Not found planet texture " + assetName, e);
+			return null;
+		}
+		if (decoded == null) {
+			return null;
+		}
+		// Развёртки бывают не степени двойки, а mipmap и повтор по долготе требуют её
+		if (decoded.getWidth() == targetWidth && decoded.getHeight() == targetWidth / 2) {
+			return decoded;
+		}
+		Bitmap scaled = Bitmap.createScaledBitmap(decoded, targetWidth, targetWidth / 2, true);
+		if (scaled != decoded) {
+			decoded.recycle();
+		}
+		return scaled;
+	}
+
+	private void upload(DecodedTexture decoded) {
+		PlanetTexture texture = decoded.texture;
+		if (textures.get(texture.assetName) == texture) {
+			textureManager.upload(texture.texture, decoded.bitmap);
+		}
+		texture.loading = false;
+		// Копия в памяти нужна для быстрого восстановления после потери контекста
+		AssetCache.getInstance().putBitmap(decodedKey(texture.assetName), decoded.bitmap);
+	}
+
+	private static String decodedKey(String assetName) {
+		return "planet/" + assetName;
+	}
+
+	private static long textureBytes(int width) {
+		// Полная цепочка mipmap добавляет треть к базовому уровню
+		long base = (long) width * (width / 2) * BYTES_PER_TEXEL;
+		return base + base / 3;
+	}
+
+	private static int clampToPowerOfTwo(int size) {
+		int width = MIN_TEXTURE_WIDTH;
+		while (width < size && width < MAX_TEXTURE_WIDTH) {
+			width *= 2;
+		}
+		return width;
+	}
+
+	private void createSphere() {
+		int vertexCount = (SPHERE_STACKS + 1) * (SPHERE_SLICES + 1);
+		FloatBuffer vertices = ByteBuffer.allocateDirect(vertexCount * STRIDE).order(ByteOrder.nativeOrder())
+				.asFloatBuffer();
+		for (int stack = 0; stack <= SPHERE_STACKS; stack++) {
+			float v = (float) stack / SPHERE_STACKS;
+			double phi = Math.PI * v;
+			for (int slice = 0; slice <= SPHERE_SLICES; slice++) {
+				float u = (float) slice / SPHERE_SLICES;
+				double theta = 2.0 * Math.PI * u;
+				vertices.put((float) (-Math.cos(theta) * Math.sin(phi)));
+				vertices.put((float) Math.cos(phi));
+				vertices.put((float) (Math.sin(theta) * Math.sin(phi)));
+				vertices.put(u);
+				vertices.put(v);
+			}
+		}
+		vertices.rewind();
+		indexCount = SPHERE_STACKS * SPHERE_SLICES * 6;
+		ShortBuffer indices = ByteBuffer.allocateDirect(indexCount * BYTES_PER_SHORT).order(ByteOrder.nativeOrder())
+				.asShortBuffer();
+		for (int stack = 0; stack < SPHERE_STACKS; stack++) {
+			for (int slice = 0; slice < SPHERE_SLICES; slice++) {
+				short first = (short) (stack * (SPHERE_SLICES + 1) + slice);
+				short second = (short) (first + SPHERE_SLICES + 1);
+				indices.put(first).put(second).put((short) (first + 1));
+				indices.put(second).put((short) (second + 1)).put((short) (first + 1));
+			}
+		}
+		indices.rewind();
+		int[] buffers = new int[2];
+		GLES20.glGenBuffers(2, buffers, 0);
+		vertexBufferId = buffers[0];
+		indexBufferId = buffers[1];
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertexCount * STRIDE, vertices, GLES20.GL_STATIC_DRAW);
+		gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexCount * BYTES_PER_SHORT, indices,
+				GLES20.GL_STATIC_DRAW);
+		ShaderUtil.checkGLError(TAG, "Sphere buffer load");
+		vertexArray = 0;
+		if (gl.isGles3()) {
+			vertexArray = gl.createVertexArray();
+			gl.bindVertexArray(vertexArray);
+			bindAttributes();
+			gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+			gl.bindVertexArray(0);
+			ShaderUtil.checkGLError(TAG, "Vertex array setup");
+		}
+	}
+
+	private void bindGeometry() {
+		GlState gl = GlState.getInstance();
+		if (vertexArray != 0) {
+			gl.bindVertexArray(vertexArray);
+		} else {
+			gl.bindVertexArray(0);
+			bindAttributes();
+			gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		}
+	}
+
+	private void bindAttributes() {
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+		GLES20.glVertexAttribPointer(positionAttribute, 3, GLES20.GL_FLOAT, false, STRIDE, 0);
+		GLES20.glVertexAttribPointer(texCoordAttribute, 2, GLES20.GL_FLOAT, false, STRIDE, 3 * BYTES_PER_FLOAT);
+		gl.useAttributes(attributeMask);
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class AssetCache {
+	private static final AssetCache INSTANCE = new AssetCache();
+
+	// Декодированные копии держатся в пределах бюджета, лишние вытесняются по давности использования
+	private static final int MAX_BITMAP_BYTES = 24 * 1024 * 1024;
+
+	public static final class Mesh {
+		private final FloatBuffer vertices;
+		private final FloatBuffer texCoords;
+		private final FloatBuffer normals;
+		private final ShortBuffer indices;
+
+		Mesh(FloatBuffer vertices, FloatBuffer texCoords, FloatBuffer normals, ShortBuffer indices) {
+			this.vertices = vertices;
+			this.texCoords = texCoords;
+			this.normals = normals;
+			this.indices = indices;
+		}
+
+		public FloatBuffer getVertices() {
+			return (FloatBuffer) vertices.duplicate().rewind();
+		}
+
+		public FloatBuffer getTexCoords() {
+			return (FloatBuffer) texCoords.duplicate().rewind();
+		}
+
+		public FloatBuffer getNormals() {
+			return (FloatBuffer) normals.duplicate().rewind();
+		}
+
+		public ShortBuffer getIndices() {
+			return (ShortBuffer) indices.duplicate().rewind();
+		}
+	}
+
+	private final Map<String, Mesh> meshes = new HashMap<>();
+	private final LruCache<String, Bitmap> bitmaps = new LruCache<String, Bitmap>(MAX_BITMAP_BYTES) {
+		@Override
+		protected int sizeOf(String key, Bitmap bitmap) {
+			return bitmap.getAllocationByteCount();
+		}
+	};
+
+	public static AssetCache getInstance() {
+		return INSTANCE;
+	}
+
+	private AssetCache() {}
+
+	public synchronized Mesh getMesh(Context context, String assetName) throws IOException {
+		Mesh mesh = meshes.get(assetName);
+		if (mesh != null) {
+			return mesh;
+		}
+		Obj obj;
+		try (InputStream objInputStream = context.getAssets().open(assetName)) {
+			obj = ObjUtils.convertToRenderable(ObjReader.read(objInputStream));
+		}
+		IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
+		ShortBuffer indices = ByteBuffer.allocateDirect(2 * wideIndices.limit()).order(ByteOrder.nativeOrder())
+				.asShortBuffer();
+		while (wideIndices.hasRemaining()) {
+			indices.put((short) wideIndices.get());
+		}
+		indices.rewind();
+		mesh = new Mesh(ObjData.getVertices(obj), ObjData.getTexCoords(obj, 2), ObjData.getNormals(obj), indices);
+		meshes.put(assetName, mesh);
+		return mesh;
+	}
+
+	public synchronized Bitmap getBitmap(Context context, String assetName) throws IOException {
+		Bitmap bitmap = bitmaps.get(assetName);
+		if (bitmap != null && !bitmap.isRecycled()) {
+			return bitmap;
+		}
+		try (InputStream is = context.getAssets().open(assetName)) {
+			bitmap = BitmapFactory.decodeStream(is);
+		}
+		if (bitmap == null) {
+			throw new IOException("Unable to decode " + assetName);
+		}
+		bitmaps.put(assetName, bitmap);
+		return bitmap;
+	}
+
+	public synchronized Bitmap peekBitmap(String key) {
+		Bitmap bitmap = bitmaps.get(key);
+		return bitmap != null && !bitmap.isRecycled() ? bitmap : null;
+	}
+
+	public synchronized void putBitmap(String key, Bitmap bitmap) {
+		bitmaps.put(key, bitmap);
+	}
+
+	public synchronized void clear() {
+		// Битмапы могут в этот момент загружаться в видеопамять, поэтому их освобождает сборщик мусора
+		meshes.clear();
+		bitmaps.evictAll();
+	}
+
+	public synchronized String getReport() {
+		return "bitmaps " + bitmaps.size() / 1024 + " KB of " + bitmaps.maxSize() / 1024 + " KB, hits "
+				+ bitmaps.hitCount() + ", misses " + bitmaps.missCount() + ", evictions " + bitmaps.evictionCount();
+	}
+}
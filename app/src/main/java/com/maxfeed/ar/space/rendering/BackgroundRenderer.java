@@ -34,18 +34,26 @@ public class BackgroundRenderer {
 	private static final String DEPTH_VISUALIZER_VERTEX_SHADER_NAME = "shaders/background_show_depth_color_visualization.vert";
 	private static final String DEPTH_VISUALIZER_FRAGMENT_SHADER_NAME = "shaders/background_show_depth_color_visualization.frag";
 
+	private static final String CAMERA_TEXTURE_KEY = "camera";
+
 	private static final int COORDS_PER_VERTEX = 2;
 	private static final int TEXCOORDS_PER_VERTEX = 2;
 	private static final int FLOAT_SIZE = 4;
 
 	private FloatBuffer quadCoords;
 	private FloatBuffer quadTexCoords;
+	private boolean quadTexCoordsChanged = true;
+	private int quadCoordsBufferId;
+	private int quadTexCoordsBufferId;
+	private int cameraVertexArray;
+	private int depthVertexArray;
 
 	private int cameraProgram;
 	private int depthProgram;
 	private int cameraPositionAttrib;
 	private int cameraTexCoordAttrib;
 	private int cameraTextureUniform;
+	private TextureManager.Texture cameraTexture;
 	private int cameraTextureId = -1;
 	private boolean suppressTimestampZeroRendering = true;
 	private int depthPositionAttrib;
@@ -59,11 +67,12 @@ public class BackgroundRenderer {
 
 	public void createOnGlThread(Context context, int depthTextureId) throws IOException {
 		// Generate the background texture.
-		int[] textures = new int[1];
-		GLES20.glGenTextures(1, textures, 0);
-		cameraTextureId = textures[0];
 		int textureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-		GLES20.glBindTexture(textureTarget, cameraTextureId);
+		// Память кадров камеры принадлежит камере, поэтому в бюджет текстура не засчитывается
+		cameraTexture = TextureManager.getInstance().createExternal(CAMERA_TEXTURE_KEY,
+				textureTarget, /*bytes=*/ 0);
+		cameraTextureId = TextureManager.getInstance().use(cameraTexture);
+		GlState.getInstance().bindTexture(0, textureTarget, cameraTextureId);
 		GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
 		GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 		GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
@@ -86,16 +95,14 @@ public class BackgroundRenderer {
 			int fragmentShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER,
 					CAMERA_FRAGMENT_SHADER_NAME);
 
-			cameraProgram = GLES20.glCreateProgram();
-			GLES20.glAttachShader(cameraProgram, vertexShader);
-			GLES20.glAttachShader(cameraProgram, fragmentShader);
-			GLES20.glLinkProgram(cameraProgram);
-			GLES20.glUseProgram(cameraProgram);
+			cameraProgram = ShaderUtil.createProgram(TAG, vertexShader, fragmentShader);
+			GlState.getInstance().useProgram(cameraProgram);
 			cameraPositionAttrib = GLES20.glGetAttribLocation(cameraProgram, "a_Position");
 			cameraTexCoordAttrib = GLES20.glGetAttribLocation(cameraProgram, "a_TexCoord");
 			ShaderUtil.checkGLError(TAG, "Program creation");
 
 			cameraTextureUniform = GLES20.glGetUniformLocation(cameraProgram, "sTexture");
+			GLES20.glUniform1i(cameraTextureUniform, 0);
 			ShaderUtil.checkGLError(TAG, "Program parameters");
 		}
 		{
@@ -103,24 +110,84 @@ public class BackgroundRenderer {
 					DEPTH_VISUALIZER_VERTEX_SHADER_NAME);
 			int fragmentShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER,
 					DEPTH_VISUALIZER_FRAGMENT_SHADER_NAME);
-			depthProgram = GLES20.glCreateProgram();
-			GLES20.glAttachShader(depthProgram, vertexShader);
-			GLES20.glAttachShader(depthProgram, fragmentShader);
-			GLES20.glLinkProgram(depthProgram);
-			GLES20.glUseProgram(depthProgram);
+			depthProgram = ShaderUtil.createProgram(TAG, vertexShader, fragmentShader);
+			GlState.getInstance().useProgram(depthProgram);
 			depthPositionAttrib = GLES20.glGetAttribLocation(depthProgram, "a_Position");
 			depthTexCoordAttrib = GLES20.glGetAttribLocation(depthProgram, "a_TexCoord");
 			ShaderUtil.checkGLError(TAG, "Program creation");
 			depthTextureUniform = GLES20.glGetUniformLocation(depthProgram, "u_DepthTexture");
+			GLES20.glUniform1i(depthTextureUniform, 0);
 			ShaderUtil.checkGLError(TAG, "Program parameters");
 		}
 		this.depthTextureId = depthTextureId;
+		createVertexArrays();
+	}
+
+	private void createVertexArrays() {
+		GlState gl = GlState.getInstance();
+		quadCoordsBufferId = 0;
+		quadTexCoordsBufferId = 0;
+		cameraVertexArray = 0;
+		depthVertexArray = 0;
+		if (!gl.isGles3()) {
+			return;
+		}
+		// На GLES 3.0 квад лежит в буферах, и его атрибуты записываются в VAO каждой программы
+		int[] buffers = new int[2];
+		GLES20.glGenBuffers(2, buffers, 0);
+		quadCoordsBufferId = buffers[0];
+		quadTexCoordsBufferId = buffers[1];
+		quadCoords.position(0);
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, quadCoordsBufferId);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD_COORDS.length * FLOAT_SIZE, quadCoords,
+				GLES20.GL_STATIC_DRAW);
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, quadTexCoordsBufferId);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, quadTexCoords.capacity() * FLOAT_SIZE, null,
+				GLES20.GL_DYNAMIC_DRAW);
+		quadTexCoordsChanged = true;
+		cameraVertexArray = createVertexArray(cameraPositionAttrib, cameraTexCoordAttrib);
+		depthVertexArray = createVertexArray(depthPositionAttrib, depthTexCoordAttrib);
+		ShaderUtil.checkGLError(TAG, "Vertex array setup");
+	}
+
+	private int createVertexArray(int positionAttrib, int texCoordAttrib) {
+		GlState gl = GlState.getInstance();
+		int vertexArray = gl.createVertexArray();
+		gl.bindVertexArray(vertexArray);
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, quadCoordsBufferId);
+		GLES20.glVertexAttribPointer(positionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, 0);
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, quadTexCoordsBufferId);
+		GLES20.glVertexAttribPointer(texCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, 0);
+		gl.useAttributes(GlState.attributeBit(positionAttrib) | GlState.attributeBit(texCoordAttrib));
+		gl.bindVertexArray(0);
+		return vertexArray;
 	}
 
 	public void createOnGlThread(Context context) throws IOException {
 		createOnGlThread(context, /*depthTextureId=*/ -1);
 	}
 
+	public void release() {
+		GlState.getInstance().deleteVertexArray(cameraVertexArray);
+		GlState.getInstance().deleteVertexArray(depthVertexArray);
+		if (quadCoordsBufferId != 0) {
+			GlState.getInstance().deleteBuffers(quadCoordsBufferId, quadTexCoordsBufferId);
+		}
+		cameraVertexArray = 0;
+		depthVertexArray = 0;
+		quadCoordsBufferId = 0;
+		quadTexCoordsBufferId = 0;
+		GlState.getInstance().deleteProgram(cameraProgram);
+		GlState.getInstance().deleteProgram(depthProgram);
+		cameraProgram = 0;
+		depthProgram = 0;
+		if (cameraTexture != null) {
+			TextureManager.getInstance().release(cameraTexture);
+			cameraTexture = null;
+			cameraTextureId = -1;
+		}
+	}
+
 	public void suppressTimestampZeroRendering(boolean suppressTimestampZeroRendering) {
 		this.suppressTimestampZeroRendering = suppressTimestampZeroRendering;
 	}
@@ -129,6 +196,7 @@ public class BackgroundRenderer {
 		if (frame.hasDisplayGeometryChanged()) {
 			frame.transformCoordinates2d(Coordinates2d.OPENGL_NORMALIZED_DEVICE_COORDINATES, quadCoords,
 					Coordinates2d.TEXTURE_NORMALIZED, quadTexCoords);
+			quadTexCoordsChanged = true;
 		}
 		if (frame.getTimestamp() == 0 && suppressTimestampZeroRendering) {
 			return;
@@ -172,46 +240,49 @@ public class BackgroundRenderer {
 		}
 		quadTexCoords.position(0);
 		quadTexCoords.put(texCoordTransformed);
+		quadTexCoordsChanged = true;
 		draw(/*debugShowDepthMap=*/ false);
 	}
 
 	private void draw(boolean debugShowDepthMap) {
 		quadTexCoords.position(0);
-		GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-		GLES20.glDepthMask(false);
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GlState gl = GlState.getInstance();
+		gl.setDepthTest(false);
+		gl.setDepthMask(false);
+		gl.setBlend(false);
 		if (debugShowDepthMap) {
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
-			GLES20.glUseProgram(depthProgram);
-			GLES20.glUniform1i(depthTextureUniform, 0);
-			GLES20.glVertexAttribPointer(depthPositionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadCoords);
-			GLES20.glVertexAttribPointer(depthTexCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0,
-					quadTexCoords);
-			GLES20.glEnableVertexAttribArray(depthPositionAttrib);
-			GLES20.glEnableVertexAttribArray(depthTexCoordAttrib);
+			gl.useProgram(depthProgram);
+			gl.bindTexture(0, GLES20.GL_TEXTURE_2D, depthTextureId);
+			bindQuad(depthVertexArray, depthPositionAttrib, depthTexCoordAttrib);
 		} else {
-			GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
-			GLES20.glUseProgram(cameraProgram);
-			GLES20.glUniform1i(cameraTextureUniform, 0);
-			GLES20.glVertexAttribPointer(cameraPositionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0,
-					quadCoords);
-			GLES20.glVertexAttribPointer(cameraTexCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0,
-					quadTexCoords);
-			GLES20.glEnableVertexAttribArray(cameraPositionAttrib);
-			GLES20.glEnableVertexAttribArray(cameraTexCoordAttrib);
+			gl.useProgram(cameraProgram);
+			gl.bindTexture(0, GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
+			bindQuad(cameraVertexArray, cameraPositionAttrib, cameraTexCoordAttrib);
 		}
 		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-		if (debugShowDepthMap) {
-			GLES20.glDisableVertexAttribArray(depthPositionAttrib);
-			GLES20.glDisableVertexAttribArray(depthTexCoordAttrib);
-		} else {
-			GLES20.glDisableVertexAttribArray(cameraPositionAttrib);
-			GLES20.glDisableVertexAttribArray(cameraTexCoordAttrib);
-		}
-		GLES20.glDepthMask(true);
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
 		ShaderUtil.checkGLError(TAG, "BackgroundRendererDraw");
 	}
 
+	private void bindQuad(int vertexArray, int positionAttrib, int texCoordAttrib) {
+		GlState gl = GlState.getInstance();
+		if (vertexArray != 0) {
+			// Текстурные координаты меняются только при повороте экрана
+			if (quadTexCoordsChanged) {
+				gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, quadTexCoordsBufferId);
+				GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, quadTexCoords.capacity() * FLOAT_SIZE,
+						quadTexCoords);
+				quadTexCoordsChanged = false;
+			}
+			gl.bindVertexArray(vertexArray);
+			return;
+		}
+		// Координаты квада лежат в памяти процесса, а не в буфере
+		gl.bindVertexArray(0);
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		GLES20.glVertexAttribPointer(positionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadCoords);
+		GLES20.glVertexAttribPointer(texCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadTexCoords);
+		gl.useAttributes(GlState.attributeBit(positionAttrib) | GlState.attributeBit(texCoordAttrib));
+	}
+
 	private static final float[] QUAD_COORDS = new float[] { -1.0f, -1.0f, +1.0f, -1.0f, -1.0f, +1.0f, +1.0f, +1.0f, };
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DrawList {
+	public static final int BLEND_NONE = 0;
+	public static final int BLEND_ALPHA = 1;
+	public static final int BLEND_SHADOW = 2;
+
+	private static final int INDEX_BITS = 16;
+	private static final int MAX_COMMANDS = 1 << INDEX_BITS;
+
+	public interface Submitter {
+		void submit(Command command);
+
+		// Только геометрия: программа, её юниформы и режимы уже выставлены проходом
+		void submitGeometry(Command command);
+	}
+
+	public static final class Command {
+		public final float[] modelView = new float[16];
+		public final float[] modelViewProjection = new float[16];
+		public final float[] lighting = new float[4];
+		public final float[] color = new float[4];
+		public int texture;
+		public int uniformSlot;
+		Submitter submitter;
+		int blend;
+	}
+
+	// Команды переиспользуются между кадрами, чтобы список не создавал мусора
+	private final List<Command> commands = new ArrayList<>();
+	private long[] keys = new long[64];
+	private long[] opaqueKeys = new long[64];
+	private long[] translucentKeys = new long[64];
+	private int size;
+
+	private final GeometryPass geometryPass = new GeometryPass();
+	private boolean depthPrepass = true;
+	private boolean overdrawMode;
+
+	public void createOnGlThread(Context context) throws IOException {
+		geometryPass.createOnGlThread(context);
+	}
+
+	public void release() {
+		geometryPass.release();
+	}
+
+	public void setDepthPrepass(boolean depthPrepass) {
+		this.depthPrepass = depthPrepass;
+	}
+
+	public void setOverdrawMode(boolean overdrawMode) {
+		this.overdrawMode = overdrawMode;
+	}
+
+	public boolean isOverdrawMode() {
+		return overdrawMode;
+	}
+
+	public float measureOverdraw(int width, int height) {
+		return geometryPass.measureOverdraw(width, height);
+	}
+
+	public Command add(Submitter submitter, int program, int texture, int blend) {
+		if (size == MAX_COMMANDS) {
+			throw new IllegalStateException("Too many draw commands in one frame");
+		}
+		if (size == commands.size()) {
+			commands.add(new Command());
+		}
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			opaqueKeys = new long[keys.length];
+			translucentKeys = new long[keys.length];
+		}
+		Command command = commands.get(size);
+		command.submitter = submitter;
+		command.texture = texture;
+		command.blend = blend;
+		// Ключ: программа, затем текстура, затем смешивание, в младших битах номер команды
+		keys[size] = ((long) (program & 0xFFFF) << 48) | ((long) (texture & 0xFFFFFF) << 24)
+				| ((long) (blend & 0xFF) << INDEX_BITS) | size;
+		size++;
+		return command;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void flush() {
+		int opaqueCount = 0;
+		int translucentCount = 0;
+		for (int i = 0; i < size; i++) {
+			Command command = commands.get(i);
+			// Для неотрицательных чисел порядок битов float совпадает с порядком значений
+			int depthBits = Float.floatToIntBits(Math.max(0.0f, -command.modelView[14]));
+			if (command.blend == BLEND_NONE) {
+				opaqueKeys[opaqueCount++] = ((long) depthBits << INDEX_BITS) | i;
+			} else {
+				translucentKeys[translucentCount++] = ((long) (Integer.MAX_VALUE - depthBits) << INDEX_BITS) | i;
+			}
+		}
+		// Непрозрачные спереди назад, чтобы ближние закрывали дальние до затенения
+		Arrays.sort(opaqueKeys, 0, opaqueCount);
+		Arrays.sort(translucentKeys, 0, translucentCount);
+		boolean prepass = depthPrepass && opaqueCount > 0;
+		if (prepass) {
+			geometryPass.beginDepth();
+			for (int i = 0; i < opaqueCount; i++) {
+				geometryPass.draw(command(opaqueKeys[i]));
+			}
+			geometryPass.endDepth();
+			// После записи глубины порядок уже не влияет на затенение, и выгоднее сгруппировать смены состояния
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				if (commands.get(i).blend == BLEND_NONE) {
+					opaqueKeys[count++] = keys[i];
+				}
+			}
+			Arrays.sort(opaqueKeys, 0, opaqueCount);
+		}
+		if (overdrawMode) {
+			geometryPass.beginOverdraw();
+		}
+		for (int i = 0; i < opaqueCount; i++) {
+			draw(command(opaqueKeys[i]));
+		}
+		// Полупрозрачные смешиваются правильно только сзади наперёд
+		for (int i = 0; i < translucentCount; i++) {
+			draw(command(translucentKeys[i]));
+		}
+		if (prepass) {
+			GlState.getInstance().depthFunc(GLES20.GL_LESS);
+		}
+		clear();
+	}
+
+	private Command command(long key) {
+		return commands.get((int) (key & (MAX_COMMANDS - 1)));
+	}
+
+	private void draw(Command command) {
+		if (overdrawMode) {
+			geometryPass.draw(command);
+		} else {
+			command.submitter.submit(command);
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			commands.get(i).submitter = null;
+		}
+		size = 0;
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class FrameCapture {
+	private static final String TAG = FrameCapture.class.getSimpleName();
+
+	public interface Callback {
+		// Оба вызова приходят из потока кодирования
+		void onCaptured(File file, long captureMillis);
+
+		void onCaptureFailed(File file, Exception exception);
+	}
+
+	// Кольцо буферов позволяет снять несколько кадров подряд, не дожидаясь чтения предыдущих
+	private static final int PBO_COUNT = 3;
+	// Если забор так и не сработал, буфер отображается принудительно, даже ценой ожидания
+	private static final int MAX_FRAMES_IN_FLIGHT = 3;
+	private static final int JPEG_QUALITY = 90;
+
+	private static final class Request {
+		File file;
+		Callback callback;
+		long requestedMillis;
+	}
+
+	private static final class Slot {
+		int buffer;
+		long fence;
+		int width;
+		int height;
+		int framesInFlight;
+		Request request;
+	}
+
+	private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<>();
+	// Буферы пикселей возвращаются из потока кодирования и переиспользуются для следующих снимков
+	private final ConcurrentLinkedQueue<ByteBuffer> pixelPool = new ConcurrentLinkedQueue<>();
+	private final ExecutorService encoder = Executors.newSingleThreadExecutor();
+	private final Slot[] slots = new Slot[PBO_COUNT];
+
+	private boolean pixelBuffers;
+	private int viewportWidth = 1;
+	private int viewportHeight = 1;
+	private long capturedFrames;
+	private long forcedMaps;
+
+	public FrameCapture() {
+		for (int i = 0; i < PBO_COUNT; i++) {
+			slots[i] = new Slot();
+		}
+	}
+
+	public void createOnGlThread() {
+		for (Slot slot : slots) {
+			if (slot.request != null) {
+				// Буферы прежнего контекста пропали вместе с ним, снимок придётся повторить
+				deliverFailure(slot.request, new IOException("GL context lost"));
+			}
+			slot.buffer = 0;
+			slot.fence = 0;
+			slot.request = null;
+		}
+		pixelBuffers = GlState.getInstance().isGles3();
+		if (!pixelBuffers) {
+			Log.i(TAG, "No pixel buffer objects on GLES 2.0, frames are read synchronously");
+			return;
+		}
+		int[] buffers = new int[PBO_COUNT];
+		GLES20.glGenBuffers(PBO_COUNT, buffers, 0);
+		for (int i = 0; i < PBO_COUNT; i++) {
+			slots[i].buffer = buffers[i];
+		}
+	}
+
+	public void release() {
+		if (!pixelBuffers) {
+			return;
+		}
+		for (Slot slot : slots) {
+			if (slot.fence != 0) {
+				GLES30.glDeleteSync(slot.fence);
+				slot.fence = 0;
+			}
+			GlState.getInstance().deleteBuffers(slot.buffer);
+			slot.buffer = 0;
+			slot.request = null;
+		}
+		pixelBuffers = false;
+	}
+
+	public void shutdown() {
+		encoder.shutdown();
+	}
+
+	public void setViewportSize(int width, int height) {
+		viewportWidth = Math.max(width, 1);
+		viewportHeight = Math.max(height, 1);
+	}
+
+	// Из любого потока: кадр будет снят в конце ближайшего onDrawFrame
+	public void request(File file, Callback callback) {
+		Request request = new Request();
+		request.file = file;
+		request.callback = callback;
+		request.requestedMillis = SystemClock.elapsedRealtime();
+		requests.add(request);
+	}
+
+	public long getCapturedFrames() {
+		return capturedFrames;
+	}
+
+	public long getForcedMaps() {
+		return forcedMaps;
+	}
+
+	// Вызывается в конце кадра, когда итоговое изображение уже собрано в основном буфере
+	public void onFrameEnd() {
+		if (!pixelBuffers) {
+			Request request = requests.poll();
+			if (request != null) {
+				readSynchronously(request);
+			}
+			return;
+		}
+		for (Slot slot : slots) {
+			if (slot.request != null) {
+				collect(slot);
+			}
+		}
+		if (requests.isEmpty()) {
+			return;
+		}
+		for (Slot slot : slots) {
+			if (slot.request == null) {
+				startRead(slot, requests.poll());
+				break;
+			}
+		}
+	}
+
+	private void startRead(Slot slot, Request request) {
+		slot.request = request;
+		slot.width = viewportWidth;
+		slot.height = viewportHeight;
+		slot.framesInFlight = 0;
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.buffer);
+		GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, slot.width * slot.height * 4, null, GLES30.GL_STREAM_READ);
+		// С привязанным буфером чтение только ставится в очередь GPU и сразу возвращает управление
+		GLES30.glReadPixels(0, 0, slot.width, slot.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+		int error = GLES20.glGetError();
+		if (error != GLES20.GL_NO_ERROR) {
+			gl.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+			slot.request = null;
+			fail(request, error);
+			return;
+		}
+		slot.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		gl.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+	}
+
+	private void fail(Request request, int error) {
+		// Неудачный снимок не должен ронять кадр, поэтому ошибка уходит только в обратный вызов
+		Log.e(TAG, "Frame capture read: glError " + error);
+		deliverFailure(request, new IOException("Frame capture read: glError " + error));
+	}
+
+	private void deliverFailure(final Request request, final Exception exception) {
+		// Ошибки, найденные в потоке GL, идут через ту же очередь, что и готовые снимки
+		encoder.execute(new Runnable() {
+			@Override
+			public void run() {
+				request.callback.onCaptureFailed(request.file, exception);
+			}
+		});
+	}
+
+	private void collect(Slot slot) {
+		slot.framesInFlight++;
+		int status = GLES30.glClientWaitSync(slot.fence, 0, 0);
+		boolean signaled = status == GLES30.GL_ALREADY_SIGNALED || status == GLES30.GL_CONDITION_SATISFIED;
+		if (!signaled) {
+			if (slot.framesInFlight < MAX_FRAMES_IN_FLIGHT) {
+				return;
+			}
+			forcedMaps++;
+		}
+		GLES30.glDeleteSync(slot.fence);
+		slot.fence = 0;
+		int bytes = slot.width * slot.height * 4;
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.buffer);
+		ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, bytes,
+				GLES30.GL_MAP_READ_BIT);
+		Request request = slot.request;
+		slot.request = null;
+		if (mapped == null) {
+			gl.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+			deliverFailure(request, new IOException("Pixel buffer could not be mapped"));
+			return;
+		}
+		// Копирование отображённой памяти в буфер, все преобразования дальше идут в потоке кодирования
+		ByteBuffer pixels = obtainPixels(bytes);
+		pixels.put(mapped);
+		pixels.flip();
+		GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+		gl.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+		encode(request, pixels, slot.width, slot.height);
+	}
+
+	private void readSynchronously(Request request) {
+		// Без буферов пикселей чтение ждёт конца кадра, зато только один раз на снимок
+		int width = viewportWidth;
+		int height = viewportHeight;
+		ByteBuffer pixels = obtainPixels(width * height * 4);
+		GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+		int error = GLES20.glGetError();
+		if (error != GLES20.GL_NO_ERROR) {
+			pixelPool.offer(pixels);
+			fail(request, error);
+			return;
+		}
+		encode(request, pixels, width, height);
+	}
+
+	private ByteBuffer obtainPixels(int bytes) {
+		ByteBuffer pixels = pixelPool.poll();
+		if (pixels == null || pixels.capacity() < bytes) {
+			pixels = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		}
+		pixels.clear();
+		pixels.limit(bytes);
+		return pixels;
+	}
+
+	private void encode(final Request request, final ByteBuffer pixels, final int width, final int height) {
+		capturedFrames++;
+		encoder.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap raw = null;
+				Bitmap flipped = null;
+				try {
+					raw = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+					pixels.rewind();
+					raw.copyPixelsFromBuffer(pixels);
+					pixelPool.offer(pixels);
+					// Строки в GL идут снизу вверх
+					Matrix flip = new Matrix();
+					flip.preScale(1.0f, -1.0f);
+					flipped = Bitmap.createBitmap(raw, 0, 0, width, height, flip, false);
+					boolean png = request.file.getName().endsWith(".png");
+					try (OutputStream output = new FileOutputStream(request.file)) {
+						flipped.compress(png ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, JPEG_QUALITY,
+								output);
+					}
+					request.callback.onCaptured(request.file, SystemClock.elapsedRealtime() - request.requestedMillis);
+				} catch (IOException | RuntimeException e) {
+					Log.e(TAG, "Frame capture failed", e);
+					request.callback.onCaptureFailed(request.file, e);
+				} finally {
+					if (raw != null) {
+						raw.recycle();
+					}
+					if (flipped != null) {
+						flipped.recycle();
+					}
+				}
+			}
+		});
+	}
+}
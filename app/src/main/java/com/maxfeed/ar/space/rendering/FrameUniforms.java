@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+public final class FrameUniforms {
+	private static final String TAG = FrameUniforms.class.getSimpleName();
+
+	public static final int FRAME_BINDING = 0;
+	public static final int OBJECT_BINDING = 1;
+
+	private static final String FRAME_BLOCK_NAME = "FrameUniforms";
+	private static final String OBJECT_BLOCK_NAME = "ObjectUniforms";
+
+	// Раскладка std140: view, projection, направление света и цветокоррекция
+	private static final int FRAME_BLOCK_SIZE = 64 + 64 + 16 + 16;
+	private static final int COLOR_CORRECTION_OFFSET = 64 + 64 + 16;
+	// Раскладка std140: modelView, параметры материала и цвет объекта
+	private static final int OBJECT_BLOCK_SIZE = 64 + 16 + 16;
+	private static final int INITIAL_OBJECT_SLOTS = 64;
+
+	private static final FrameUniforms INSTANCE = new FrameUniforms();
+
+	private final float[] worldLightDirection = new float[4];
+	private final float[] viewLightDirection = new float[4];
+	private final float[] colorCorrection = new float[4];
+	private int lightVersion = -1;
+	private int uploadedLightVersion;
+	private final FloatBuffer frameData = ByteBuffer.allocateDirect(FRAME_BLOCK_SIZE).order(ByteOrder.nativeOrder())
+			.asFloatBuffer();
+	private ByteBuffer objectData;
+	private FloatBuffer objectFloats;
+
+	private int frameBuffer;
+	private int objectBuffer;
+	private int objectStride;
+	private int objectBufferBytes;
+	private int objectCount;
+	private int uploadedCount;
+
+	public static FrameUniforms getInstance() {
+		return INSTANCE;
+	}
+
+	private FrameUniforms() {}
+
+	public void createOnGlThread() {
+		frameBuffer = 0;
+		objectBuffer = 0;
+		if (!GlState.getInstance().isGles3()) {
+			return;
+		}
+		int[] alignment = new int[1];
+		GLES20.glGetIntegerv(GLES30.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, alignment, 0);
+		int align = Math.max(alignment[0], 16);
+		objectStride = (OBJECT_BLOCK_SIZE + align - 1) / align * align;
+		if (objectData == null || objectData.capacity() % objectStride != 0) {
+			allocateObjectData(INITIAL_OBJECT_SLOTS);
+		}
+		int[] buffers = new int[2];
+		GLES20.glGenBuffers(2, buffers, 0);
+		frameBuffer = buffers[0];
+		objectBuffer = buffers[1];
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES30.GL_UNIFORM_BUFFER, frameBuffer);
+		GLES20.glBufferData(GLES30.GL_UNIFORM_BUFFER, FRAME_BLOCK_SIZE, null, GLES20.GL_DYNAMIC_DRAW);
+		objectBufferBytes = objectData.capacity();
+		gl.bindBuffer(GLES30.GL_UNIFORM_BUFFER, objectBuffer);
+		GLES20.glBufferData(GLES30.GL_UNIFORM_BUFFER, objectBufferBytes, null, GLES20.GL_STREAM_DRAW);
+		objectCount = 0;
+		uploadedCount = 0;
+		uploadedLightVersion = -1;
+		ShaderUtil.checkGLError(TAG, "Uniform buffer alloc");
+	}
+
+	public void release() {
+		if (frameBuffer != 0) {
+			GlState.getInstance().deleteBuffers(frameBuffer, objectBuffer);
+		}
+		frameBuffer = 0;
+		objectBuffer = 0;
+	}
+
+	public boolean isEnabled() {
+		return frameBuffer != 0;
+	}
+
+	public static void bindBlocks(int program) {
+		// Номера привязки постоянны, поэтому программа настраивается один раз при сборке
+		int frameIndex = GLES30.glGetUniformBlockIndex(program, FRAME_BLOCK_NAME);
+		if (frameIndex != GLES30.GL_INVALID_INDEX) {
+			GLES30.glUniformBlockBinding(program, frameIndex, FRAME_BINDING);
+		}
+		int objectIndex = GLES30.glGetUniformBlockIndex(program, OBJECT_BLOCK_NAME);
+		if (objectIndex != GLES30.GL_INVALID_INDEX) {
+			GLES30.glUniformBlockBinding(program, objectIndex, OBJECT_BINDING);
+		}
+	}
+
+	public void beginFrame(float[] viewMatrix, float[] projectionMatrix, LightEstimator lightEstimator) {
+		lightVersion = lightEstimator.getVersion();
+		System.arraycopy(lightEstimator.getColorCorrection(), 0, colorCorrection, 0, 4);
+		// Направление света в пространстве камеры одно на кадр для всех объектов
+		System.arraycopy(lightEstimator.getLightDirection(), 0, worldLightDirection, 0, 3);
+		Matrix.multiplyMV(viewLightDirection, 0, viewMatrix, 0, worldLightDirection, 0);
+		float reciprocalLength = 1.0f / (float) Math.sqrt(viewLightDirection[0] * viewLightDirection[0]
+				+ viewLightDirection[1] * viewLightDirection[1] + viewLightDirection[2] * viewLightDirection[2]);
+		viewLightDirection[0] *= reciprocalLength;
+		viewLightDirection[1] *= reciprocalLength;
+		viewLightDirection[2] *= reciprocalLength;
+		viewLightDirection[3] = 1.0f;
+		objectCount = 0;
+		uploadedCount = 0;
+		if (!isEnabled()) {
+			return;
+		}
+		frameData.position(0);
+		frameData.put(viewMatrix, 0, 16);
+		frameData.put(projectionMatrix, 0, 16);
+		frameData.put(viewLightDirection, 0, 4);
+		frameData.put(colorCorrection, 0, 4);
+		frameData.position(0);
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES30.GL_UNIFORM_BUFFER, frameBuffer);
+		// Цветокоррекция меняется реже камеры и догружается только с новой версией оценки света
+		boolean lightChanged = lightVersion != uploadedLightVersion;
+		GLES20.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, 0,
+				lightChanged ? FRAME_BLOCK_SIZE : COLOR_CORRECTION_OFFSET, frameData);
+		uploadedLightVersion = lightVersion;
+		gl.bindUniformRange(FRAME_BINDING, frameBuffer, 0, FRAME_BLOCK_SIZE);
+		// Переразметка отдаёт драйверу новую память, пока прошлый кадр ещё читает старую
+		gl.bindBuffer(GLES30.GL_UNIFORM_BUFFER, objectBuffer);
+		GLES20.glBufferData(GLES30.GL_UNIFORM_BUFFER, objectBufferBytes, null, GLES20.GL_STREAM_DRAW);
+	}
+
+	public float[] getViewLightDirection() {
+		return viewLightDirection;
+	}
+
+	public float[] getColorCorrection() {
+		return colorCorrection;
+	}
+
+	public int getLightVersion() {
+		return lightVersion;
+	}
+
+	public int addObject(float[] modelView, float ambient, float diffuse, float specular, float specularPower,
+			float[] color) {
+		if ((objectCount + 1) * objectStride > objectData.capacity()) {
+			allocateObjectData(objectData.capacity() / objectStride * 2);
+		}
+		int slot = objectCount++;
+		int base = slot * objectStride / 4;
+		objectFloats.position(base);
+		objectFloats.put(modelView, 0, 16);
+		objectFloats.put(ambient).put(diffuse).put(specular).put(specularPower);
+		objectFloats.put(color, 0, 4);
+		return slot;
+	}
+
+	public void bindObject(int slot) {
+		GlState gl = GlState.getInstance();
+		if (slot >= uploadedCount) {
+			// Всё, что накопилось с прошлой загрузки, уходит в буфер одним вызовом
+			gl.bindBuffer(GLES30.GL_UNIFORM_BUFFER, objectBuffer);
+			if (objectBufferBytes < objectData.capacity()) {
+				objectBufferBytes = objectData.capacity();
+				GLES20.glBufferData(GLES30.GL_UNIFORM_BUFFER, objectBufferBytes, null, GLES20.GL_STREAM_DRAW);
+				uploadedCount = 0;
+			}
+			int offset = uploadedCount * objectStride;
+			objectData.limit(objectCount * objectStride);
+			objectData.position(offset);
+			GLES20.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, offset, objectData.remaining(), objectData);
+			objectData.clear();
+			uploadedCount = objectCount;
+		}
+		gl.bindUniformRange(OBJECT_BINDING, objectBuffer, slot * objectStride, OBJECT_BLOCK_SIZE);
+	}
+
+	private void allocateObjectData(int slots) {
+		ByteBuffer data = ByteBuffer.allocateDirect(slots * objectStride).order(ByteOrder.nativeOrder());
+		if (objectData != null && objectData.capacity() <= data.capacity()) {
+			objectData.clear();
+			data.put(objectData);
+			data.clear();
+		}
+		objectData = data;
+		objectFloats = data.asFloatBuffer();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class GeometryPass {
+	private static final String TAG = GeometryPass.class.getSimpleName();
+
+	private static final String VERTEX_SHADER_NAME = "shaders/geometry.vert";
+	private static final String FRAGMENT_SHADER_NAME = "shaders/geometry.frag";
+
+	// Каждый затенённый фрагмент добавляет 1/16 к красному каналу, 16 слоёв дают насыщенный цвет
+	private static final int OVERDRAW_LAYERS = 16;
+	private static final float OVERDRAW_STEP = 1.0f / OVERDRAW_LAYERS;
+
+	private int program;
+	private boolean uniformBlocks;
+	private int modelViewProjectionUniform;
+	private int colorUniform;
+	private ByteBuffer readback;
+
+	public void createOnGlThread(Context context) throws IOException {
+		Map<String, Integer> defineValuesMap = new TreeMap<>();
+		uniformBlocks = FrameUniforms.getInstance().isEnabled();
+		defineValuesMap.put(ShaderUtil.UNIFORM_BLOCKS_SHADER_FLAG, uniformBlocks ? 1 : 0);
+		int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME,
+				defineValuesMap);
+		int fragmentShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME,
+				defineValuesMap);
+		// Позиция на нулевом номере, как и в программах объектов, поэтому подходят их VAO
+		program = ShaderUtil.createProgram(TAG, vertexShader, fragmentShader, "a_Position");
+		GlState.getInstance().useProgram(program);
+		if (uniformBlocks) {
+			FrameUniforms.bindBlocks(program);
+		} else {
+			modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+		}
+		colorUniform = GLES20.glGetUniformLocation(program, "u_Color");
+		ShaderUtil.checkGLError(TAG, "Program creation");
+	}
+
+	public void release() {
+		GlState.getInstance().deleteProgram(program);
+		program = 0;
+		readback = null;
+	}
+
+	public void beginDepth() {
+		GlState gl = GlState.getInstance();
+		gl.useProgram(program);
+		gl.setColorMask(false);
+		gl.setBlend(false);
+		gl.setDepthTest(true);
+		gl.setDepthMask(true);
+		gl.depthFunc(GLES20.GL_LESS);
+	}
+
+	public void endDepth() {
+		GlState gl = GlState.getInstance();
+		gl.setColorMask(true);
+		// Цветовой проход сравнивает с уже записанной глубиной, поэтому равенство должно проходить
+		gl.depthFunc(GLES20.GL_LEQUAL);
+	}
+
+	public void beginOverdraw() {
+		GlState gl = GlState.getInstance();
+		gl.useProgram(program);
+		GLES20.glUniform4f(colorUniform, OVERDRAW_STEP, OVERDRAW_STEP * 0.25f, 0.0f, OVERDRAW_STEP);
+		gl.setBlend(true);
+		gl.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+		gl.setDepthTest(true);
+		gl.setDepthMask(true);
+	}
+
+	public void draw(DrawList.Command command) {
+		if (uniformBlocks) {
+			FrameUniforms.getInstance().bindObject(command.uniformSlot);
+		} else {
+			GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, command.modelViewProjection, 0);
+		}
+		command.submitter.submitGeometry(command);
+	}
+
+	public float measureOverdraw(int width, int height) {
+		// Дорогое чтение всего буфера, только для отладочного режима
+		int bytes = width * height * 4;
+		if (readback == null || readback.capacity() < bytes) {
+			readback = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		}
+		readback.clear();
+		GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, readback);
+		long layers = 0;
+		int covered = 0;
+		for (int i = 0; i < bytes; i += 4) {
+			int red = readback.get(i) & 0xFF;
+			if (red != 0) {
+				layers += Math.round(red * OVERDRAW_LAYERS / 255.0f);
+				covered++;
+			}
+		}
+		return covered == 0 ? 0 : (float) layers / covered;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+public class GlContextFactory implements GLSurfaceView.EGLContextFactory, GLSurfaceView.EGLConfigChooser {
+	private static final String TAG = GlContextFactory.class.getSimpleName();
+
+	private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+	private static final int EGL_OPENGL_ES2_BIT = 0x0004;
+	private static final int EGL_OPENGL_ES3_BIT = 0x0040;
+	private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+	private final int redSize;
+	private final int greenSize;
+	private final int blueSize;
+	private final int alphaSize;
+	private final int depthSize;
+	private final int stencilSize;
+
+	public GlContextFactory(int redSize, int greenSize, int blueSize, int alphaSize, int depthSize, int stencilSize) {
+		this.redSize = redSize;
+		this.greenSize = greenSize;
+		this.blueSize = blueSize;
+		this.alphaSize = alphaSize;
+		this.depthSize = depthSize;
+		this.stencilSize = stencilSize;
+	}
+
+	@Override
+	public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+		// Записываемая конфигурация нужна, чтобы тот же контекст мог рисовать в поверхность кодировщика видео
+		EGLConfig config = chooseConfig(egl, display, EGL_OPENGL_ES3_BIT, true);
+		if (config == null) {
+			config = chooseConfig(egl, display, EGL_OPENGL_ES3_BIT, false);
+		}
+		if (config == null) {
+			config = chooseConfig(egl, display, EGL_OPENGL_ES2_BIT, false);
+		}
+		if (config == null) {
+			throw new IllegalArgumentException("No EGL config matches the requested sizes");
+		}
+		return config;
+	}
+
+	private EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, int renderableType, boolean recordable) {
+		int[] attributes = { EGL10.EGL_RED_SIZE, redSize, EGL10.EGL_GREEN_SIZE, greenSize, EGL10.EGL_BLUE_SIZE,
+				blueSize, EGL10.EGL_ALPHA_SIZE, alphaSize, EGL10.EGL_DEPTH_SIZE, depthSize, EGL10.EGL_STENCIL_SIZE,
+				stencilSize, EGL10.EGL_RENDERABLE_TYPE, renderableType,
+				recordable ? EGL_RECORDABLE_ANDROID : EGL10.EGL_NONE, 1, EGL10.EGL_NONE };
+		int[] count = new int[1];
+		if (!egl.eglChooseConfig(display, attributes, null, 0, count) || count[0] == 0) {
+			return null;
+		}
+		EGLConfig[] configs = new EGLConfig[count[0]];
+		egl.eglChooseConfig(display, attributes, configs, configs.length, count);
+		// eglChooseConfig отдаёт конфигурации и с большей глубиной цвета, берём точное совпадение
+		for (EGLConfig config : configs) {
+			if (attribute(egl, display, config, EGL10.EGL_RED_SIZE) == redSize
+					&& attribute(egl, display, config, EGL10.EGL_GREEN_SIZE) == greenSize
+					&& attribute(egl, display, config, EGL10.EGL_BLUE_SIZE) == blueSize
+					&& attribute(egl, display, config, EGL10.EGL_ALPHA_SIZE) == alphaSize
+					&& attribute(egl, display, config, EGL10.EGL_DEPTH_SIZE) >= depthSize
+					&& attribute(egl, display, config, EGL10.EGL_STENCIL_SIZE) >= stencilSize) {
+				return config;
+			}
+		}
+		return null;
+	}
+
+	private static int attribute(EGL10 egl, EGLDisplay display, EGLConfig config, int attribute) {
+		int[] value = new int[1];
+		return egl.eglGetConfigAttrib(display, config, attribute, value) ? value[0] : 0;
+	}
+
+	@Override
+	public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+		// Сначала пробуем GLES 3.0 ради VAO и UBO, на старых устройствах остаётся GLES 2.0
+		for (int version = 3; version >= 2; version--) {
+			int[] attributes = { EGL_CONTEXT_CLIENT_VERSION, version, EGL10.EGL_NONE };
+			EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attributes);
+			if (context != null && context != EGL10.EGL_NO_CONTEXT) {
+				Log.i(TAG, "Created GLES " + version + " context");
+				return context;
+			}
+			Log.w(TAG, "Unable to create GLES " + version + " context, error " + egl.eglGetError());
+		}
+		return EGL10.EGL_NO_CONTEXT;
+	}
+
+	@Override
+	public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+		if (!egl.eglDestroyContext(display, context)) {
+			throw new RuntimeException("eglDestroyContext failed: " + egl.eglGetError());
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import java.util.Arrays;
+
+public final class GlState {
+	private static final int UNKNOWN = -1;
+	private static final int MAX_TEXTURE_UNITS = 8;
+	private static final int MAX_ATTRIBUTES = 16;
+	private static final int MAX_UNIFORM_BINDINGS = 4;
+
+	private static final GlState INSTANCE = new GlState();
+
+	private boolean gles3;
+	private int vertexArray;
+	private int defaultEnabledAttributes;
+	private int defaultKnownAttributes;
+	private int defaultElementArrayBuffer;
+
+	private int program;
+	private int activeTexture;
+	private final int[] textures2d = new int[MAX_TEXTURE_UNITS];
+	private final int[] texturesExternal = new int[MAX_TEXTURE_UNITS];
+	private int arrayBuffer;
+	private int elementArrayBuffer;
+	private int uniformBuffer;
+	private int pixelPackBuffer;
+	private final int[] uniformBindings = new int[MAX_UNIFORM_BINDINGS];
+	private final int[] uniformOffsets = new int[MAX_UNIFORM_BINDINGS];
+	private int blend;
+	private int blendSource;
+	private int blendDestination;
+	private int depthTest;
+	private int depthMask;
+	private int depthFunc;
+	private int colorMask;
+	private final float[] clearColor = new float[4];
+	private int enabledAttributes;
+	private int knownAttributes;
+
+	private int issuedCalls;
+	private int skippedCalls;
+
+	public static GlState getInstance() {
+		return INSTANCE;
+	}
+
+	private GlState() {
+		invalidate();
+	}
+
+	public void onContextCreated() {
+		String version = GLES20.glGetString(GLES20.GL_VERSION);
+		gles3 = version != null && version.startsWith("OpenGL ES 3");
+		invalidate();
+	}
+
+	public boolean isGles3() {
+		return gles3;
+	}
+
+	public void invalidate() {
+		// Состояние контекста неизвестно, поэтому следующий вызов каждого вида уйдёт в драйвер
+		vertexArray = 0;
+		program = UNKNOWN;
+		activeTexture = UNKNOWN;
+		Arrays.fill(textures2d, UNKNOWN);
+		Arrays.fill(texturesExternal, UNKNOWN);
+		arrayBuffer = UNKNOWN;
+		elementArrayBuffer = UNKNOWN;
+		uniformBuffer = UNKNOWN;
+		pixelPackBuffer = UNKNOWN;
+		Arrays.fill(uniformBindings, UNKNOWN);
+		Arrays.fill(uniformOffsets, UNKNOWN);
+		blend = UNKNOWN;
+		blendSource = UNKNOWN;
+		blendDestination = UNKNOWN;
+		depthTest = UNKNOWN;
+		depthMask = UNKNOWN;
+		depthFunc = UNKNOWN;
+		colorMask = UNKNOWN;
+		Arrays.fill(clearColor, UNKNOWN);
+		enabledAttributes = 0;
+		knownAttributes = 0;
+	}
+
+	public void useProgram(int program) {
+		if (this.program == program) {
+			skippedCalls++;
+			return;
+		}
+		this.program = program;
+		issuedCalls++;
+		GLES20.glUseProgram(program);
+	}
+
+	public void bindTexture(int unit, int target, int texture) {
+		int[] bound = target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES ? texturesExternal : textures2d;
+		if (unit < MAX_TEXTURE_UNITS && bound[unit] == texture) {
+			skippedCalls++;
+			return;
+		}
+		activeTexture(unit);
+		if (unit < MAX_TEXTURE_UNITS) {
+			bound[unit] = texture;
+		}
+		issuedCalls++;
+		GLES20.glBindTexture(target, texture);
+	}
+
+	public void activeTexture(int unit) {
+		if (activeTexture == unit) {
+			skippedCalls++;
+			return;
+		}
+		activeTexture = unit;
+		issuedCalls++;
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+	}
+
+	public void bindBuffer(int target, int buffer) {
+		if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+			if (elementArrayBuffer == buffer) {
+				skippedCalls++;
+				return;
+			}
+			elementArrayBuffer = buffer;
+		} else if (target == GLES30.GL_UNIFORM_BUFFER) {
+			if (uniformBuffer == buffer) {
+				skippedCalls++;
+				return;
+			}
+			uniformBuffer = buffer;
+		} else if (target == GLES30.GL_PIXEL_PACK_BUFFER) {
+			if (pixelPackBuffer == buffer) {
+				skippedCalls++;
+				return;
+			}
+			pixelPackBuffer = buffer;
+		} else {
+			if (arrayBuffer == buffer) {
+				skippedCalls++;
+				return;
+			}
+			arrayBuffer = buffer;
+		}
+		issuedCalls++;
+		GLES20.glBindBuffer(target, buffer);
+	}
+
+	public void bindUniformRange(int binding, int buffer, int offset, int size) {
+		if (binding < MAX_UNIFORM_BINDINGS && uniformBindings[binding] == buffer && uniformOffsets[binding] == offset) {
+			skippedCalls++;
+			return;
+		}
+		if (binding < MAX_UNIFORM_BINDINGS) {
+			uniformBindings[binding] = buffer;
+			uniformOffsets[binding] = offset;
+		}
+		// Привязка диапазона заодно меняет и общую точку GL_UNIFORM_BUFFER
+		uniformBuffer = buffer;
+		issuedCalls++;
+		GLES30.glBindBufferRange(GLES30.GL_UNIFORM_BUFFER, binding, buffer, offset, size);
+	}
+
+	public void setBlend(boolean enabled) {
+		int value = enabled ? 1 : 0;
+		if (blend == value) {
+			skippedCalls++;
+			return;
+		}
+		blend = value;
+		issuedCalls++;
+		if (enabled) {
+			GLES20.glEnable(GLES20.GL_BLEND);
+		} else {
+			GLES20.glDisable(GLES20.GL_BLEND);
+		}
+	}
+
+	public void blendFunc(int source, int destination) {
+		if (blendSource == source && blendDestination == destination) {
+			skippedCalls++;
+			return;
+		}
+		blendSource = source;
+		blendDestination = destination;
+		issuedCalls++;
+		GLES20.glBlendFunc(source, destination);
+	}
+
+	public void setDepthTest(boolean enabled) {
+		int value = enabled ? 1 : 0;
+		if (depthTest == value) {
+			skippedCalls++;
+			return;
+		}
+		depthTest = value;
+		issuedCalls++;
+		if (enabled) {
+			GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+		} else {
+			GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+		}
+	}
+
+	public void setDepthMask(boolean enabled) {
+		int value = enabled ? 1 : 0;
+		if (depthMask == value) {
+			skippedCalls++;
+			return;
+		}
+		depthMask = value;
+		issuedCalls++;
+		GLES20.glDepthMask(enabled);
+	}
+
+	public void depthFunc(int func) {
+		if (depthFunc == func) {
+			skippedCalls++;
+			return;
+		}
+		depthFunc = func;
+		issuedCalls++;
+		GLES20.glDepthFunc(func);
+	}
+
+	public void setColorMask(boolean enabled) {
+		int value = enabled ? 1 : 0;
+		if (colorMask == value) {
+			skippedCalls++;
+			return;
+		}
+		colorMask = value;
+		issuedCalls++;
+		GLES20.glColorMask(enabled, enabled, enabled, enabled);
+	}
+
+	public void clearColor(float red, float green, float blue, float alpha) {
+		if (clearColor[0] == red && clearColor[1] == green && clearColor[2] == blue && clearColor[3] == alpha) {
+			skippedCalls++;
+			return;
+		}
+		clearColor[0] = red;
+		clearColor[1] = green;
+		clearColor[2] = blue;
+		clearColor[3] = alpha;
+		issuedCalls++;
+		GLES20.glClearColor(red, green, blue, alpha);
+	}
+
+	public void bindVertexArray(int vertexArray) {
+		if (this.vertexArray == vertexArray) {
+			skippedCalls++;
+			return;
+		}
+		// Включённые массивы и буфер индексов хранятся в VAO, поэтому кеш основного VAO откладывается
+		if (this.vertexArray == 0) {
+			defaultEnabledAttributes = enabledAttributes;
+			defaultKnownAttributes = knownAttributes;
+			defaultElementArrayBuffer = elementArrayBuffer;
+		}
+		if (vertexArray == 0) {
+			enabledAttributes = defaultEnabledAttributes;
+			knownAttributes = defaultKnownAttributes;
+			elementArrayBuffer = defaultElementArrayBuffer;
+		} else {
+			enabledAttributes = 0;
+			knownAttributes = 0;
+			elementArrayBuffer = UNKNOWN;
+		}
+		this.vertexArray = vertexArray;
+		issuedCalls++;
+		GLES30.glBindVertexArray(vertexArray);
+	}
+
+	public int createVertexArray() {
+		int[] ids = new int[1];
+		GLES30.glGenVertexArrays(1, ids, 0);
+		return ids[0];
+	}
+
+	public void deleteVertexArray(int vertexArray) {
+		if (vertexArray == 0 || !gles3) {
+			return;
+		}
+		if (this.vertexArray == vertexArray) {
+			bindVertexArray(0);
+		}
+		GLES30.glDeleteVertexArrays(1, new int[] { vertexArray }, 0);
+	}
+
+	public void useAttributes(int mask) {
+		// Включены ровно те массивы атрибутов, что есть в маске, вызов уходит только при смене состояния
+		for (int index = 0; index < MAX_ATTRIBUTES; index++) {
+			int bit = 1 << index;
+			boolean wanted = (mask & bit) != 0;
+			boolean known = (knownAttributes & bit) != 0;
+			boolean enabled = (enabledAttributes & bit) != 0;
+			if (known && wanted == enabled) {
+				continue;
+			}
+			issuedCalls++;
+			if (wanted) {
+				GLES20.glEnableVertexAttribArray(index);
+				enabledAttributes |= bit;
+			} else {
+				GLES20.glDisableVertexAttribArray(index);
+				enabledAttributes &= ~bit;
+			}
+			knownAttributes |= bit;
+		}
+	}
+
+	public static int attributeBit(int location) {
+		return location >= 0 ? 1 << location : 0;
+	}
+
+	public void deleteProgram(int program) {
+		if (program == 0) {
+			return;
+		}
+		if (this.program == program) {
+			this.program = UNKNOWN;
+		}
+		GLES20.glDeleteProgram(program);
+	}
+
+	public void deleteTexture(int texture) {
+		if (texture == 0) {
+			return;
+		}
+		// Удалённая текстура отвязывается драйвером, а её имя может достаться новой
+		for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+			if (textures2d[unit] == texture) {
+				textures2d[unit] = UNKNOWN;
+			}
+			if (texturesExternal[unit] == texture) {
+				texturesExternal[unit] = UNKNOWN;
+			}
+		}
+		GLES20.glDeleteTextures(1, new int[] { texture }, 0);
+	}
+
+	public void deleteBuffers(int... buffers) {
+		for (int buffer : buffers) {
+			if (arrayBuffer == buffer) {
+				arrayBuffer = UNKNOWN;
+			}
+			if (elementArrayBuffer == buffer) {
+				elementArrayBuffer = UNKNOWN;
+			}
+			if (uniformBuffer == buffer) {
+				uniformBuffer = UNKNOWN;
+			}
+			if (pixelPackBuffer == buffer) {
+				pixelPackBuffer = UNKNOWN;
+			}
+			for (int binding = 0; binding < MAX_UNIFORM_BINDINGS; binding++) {
+				if (uniformBindings[binding] == buffer) {
+					uniformBindings[binding] = UNKNOWN;
+				}
+			}
+		}
+		GLES20.glDeleteBuffers(buffers.length, buffers, 0);
+	}
+
+	public int getIssuedCalls() {
+		return issuedCalls;
+	}
+
+	public int getSkippedCalls() {
+		return skippedCalls;
+	}
+
+	public void resetCounters() {
+		issuedCalls = 0;
+		skippedCalls = 0;
+	}
+}
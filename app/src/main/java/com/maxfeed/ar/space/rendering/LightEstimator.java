@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import com.google.ar.core.Config;
+import com.google.ar.core.Frame;
+import com.google.ar.core.LightEstimate;
+
+public class LightEstimator {
+	// За это время сглаженное значение проходит примерно две трети пути к новой оценке
+	private static final float SMOOTHING_SECONDS = 0.25f;
+	// Изменения меньше порога глазу не видны и не стоят загрузки юниформов
+	private static final float CHANGE_EPSILON = 0.002f;
+	private static final float MIDDLE_GRAY_GAMMA = 0.466f;
+	private static final float MAX_HDR_INTENSITY = 2.0f;
+
+	private static final float[] DEFAULT_LIGHT_DIRECTION = new float[] { 0.250f, 0.866f, 0.433f };
+
+	private Config.LightEstimationMode mode = Config.LightEstimationMode.AMBIENT_INTENSITY;
+
+	private final float[] estimate = new float[4];
+	private final float[] smoothedColorCorrection = new float[] { 1.0f, 1.0f, 1.0f, MIDDLE_GRAY_GAMMA };
+	private final float[] smoothedDirection = new float[3];
+	private final float[] colorCorrection = new float[] { 1.0f, 1.0f, 1.0f, MIDDLE_GRAY_GAMMA };
+	private final float[] lightDirection = new float[3];
+
+	private boolean hasEstimate;
+	private long lastTimestamp;
+	private int version;
+	private int invalidFrames;
+
+	public LightEstimator() {
+		System.arraycopy(DEFAULT_LIGHT_DIRECTION, 0, smoothedDirection, 0, 3);
+		System.arraycopy(DEFAULT_LIGHT_DIRECTION, 0, lightDirection, 0, 3);
+	}
+
+	public void setMode(Config.LightEstimationMode mode) {
+		// Новый режим вступает в силу со следующим configure
+		this.mode = mode;
+		hasEstimate = false;
+	}
+
+	public Config.LightEstimationMode getMode() {
+		return mode;
+	}
+
+	public void configure(Config config) {
+		config.setLightEstimationMode(mode);
+	}
+
+	public void update(Frame frame) {
+		LightEstimate lightEstimate = frame.getLightEstimate();
+		if (lightEstimate.getState() != LightEstimate.State.VALID) {
+			// Недействительная оценка не трогает последнее хорошее значение, иначе освещение мигает
+			invalidFrames++;
+			return;
+		}
+		long timestamp = frame.getTimestamp();
+		float blend;
+		if (!hasEstimate) {
+			blend = 1.0f;
+		} else {
+			float seconds = Math.max(0, timestamp - lastTimestamp) / 1e9f;
+			blend = 1.0f - (float) Math.exp(-seconds / SMOOTHING_SECONDS);
+		}
+		if (mode == Config.LightEstimationMode.ENVIRONMENTAL_HDR) {
+			readHdrEstimate(lightEstimate, blend);
+		} else if (mode == Config.LightEstimationMode.AMBIENT_INTENSITY) {
+			lightEstimate.getColorCorrection(estimate, 0);
+		} else {
+			return;
+		}
+		hasEstimate = true;
+		lastTimestamp = timestamp;
+		for (int i = 0; i < 4; i++) {
+			smoothedColorCorrection[i] += (estimate[i] - smoothedColorCorrection[i]) * blend;
+		}
+		publish();
+	}
+
+	private void readHdrEstimate(LightEstimate lightEstimate, float blend) {
+		// Цвет основного источника раскладывается на оттенок и яркость, как у оценки AMBIENT_INTENSITY
+		float[] intensity = lightEstimate.getEnvironmentalHdrMainLightIntensity();
+		float[] direction = lightEstimate.getEnvironmentalHdrMainLightDirection();
+		float peak = Math.max(intensity[0], Math.max(intensity[1], intensity[2]));
+		if (peak > 0) {
+			estimate[0] = intensity[0] / peak;
+			estimate[1] = intensity[1] / peak;
+			estimate[2] = intensity[2] / peak;
+		} else {
+			estimate[0] = 1.0f;
+			estimate[1] = 1.0f;
+			estimate[2] = 1.0f;
+		}
+		estimate[3] = MIDDLE_GRAY_GAMMA * Math.min(peak, MAX_HDR_INTENSITY);
+		for (int i = 0; i < 3; i++) {
+			smoothedDirection[i] += (direction[i] - smoothedDirection[i]) * blend;
+		}
+	}
+
+	private void publish() {
+		boolean changed = false;
+		for (int i = 0; i < 4; i++) {
+			if (Math.abs(smoothedColorCorrection[i] - colorCorrection[i]) > CHANGE_EPSILON) {
+				changed = true;
+				break;
+			}
+		}
+		float length = (float) Math.sqrt(smoothedDirection[0] * smoothedDirection[0]
+				+ smoothedDirection[1] * smoothedDirection[1] + smoothedDirection[2] * smoothedDirection[2]);
+		if (length > 0) {
+			for (int i = 0; i < 3; i++) {
+				float value = smoothedDirection[i] / length;
+				if (Math.abs(value - lightDirection[i]) > CHANGE_EPSILON) {
+					changed = true;
+				}
+			}
+		}
+		if (!changed) {
+			return;
+		}
+		System.arraycopy(smoothedColorCorrection, 0, colorCorrection, 0, 4);
+		if (length > 0) {
+			for (int i = 0; i < 3; i++) {
+				lightDirection[i] = smoothedDirection[i] / length;
+			}
+		}
+		version++;
+	}
+
+	public float[] getColorCorrection() {
+		return colorCorrection;
+	}
+
+	public float[] getLightDirection() {
+		return lightDirection;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getInvalidFrames() {
+		return invalidFrames;
+	}
+}
@@ -16,22 +16,13 @@
 package com.maxfeed.ar.space.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
-import de.javagl.obj.Obj;
-import de.javagl.obj.ObjData;
-import de.javagl.obj.ObjReader;
-import de.javagl.obj.ObjUtils;
+import com.maxfeed.ar.space.util.BoundingVolumeTree;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -48,18 +39,18 @@ public class ObjectRenderer {
 	private static final int COORDS_PER_VERTEX = 3;
 	private static final float[] DEFAULT_COLOR = new float[] { 0f, 0f, 0f, 0f };
 
-	private static final float[] LIGHT_DIRECTION = new float[] { 0.250f, 0.866f, 0.433f, 0.0f };
-	private final float[] viewLightDirection = new float[4];
-
 	private int vertexBufferId;
 	private int verticesBaseAddress;
 	private int texCoordsBaseAddress;
 	private int normalsBaseAddress;
 	private int indexBufferId;
 	private int indexCount;
+	private int vertexArray;
 
 	private int program;
-	private final int[] textures = new int[1];
+	private boolean uniformBlocks;
+	private int uploadedLightVersion;
+	private TextureManager.Texture diffuseTexture;
 
 	private int modelViewUniform;
 	private int modelViewProjectionUniform;
@@ -77,8 +68,23 @@ public class ObjectRenderer {
 	private BlendMode blendMode = null;
 
 	private final float[] modelMatrix = new float[16];
-	private final float[] modelViewMatrix = new float[16];
-	private final float[] modelViewProjectionMatrix = new float[16];
+	// Габариты меша в его собственных координатах: minX, minY, minZ, maxX, maxY, maxZ
+	private final float[] bounds = new float[6];
+	private final DrawList.Command immediateCommand = new DrawList.Command();
+	private int attributeMask;
+
+	private final DrawList.Submitter submitter = new DrawList.Submitter() {
+		@Override
+		public void submit(DrawList.Command command) {
+			ObjectRenderer.this.submit(command);
+		}
+
+		@Override
+		public void submitGeometry(DrawList.Command command) {
+			bindGeometry();
+			GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+		}
+	};
 
 	private float ambient = 0.3f;
 	private float diffuse = 1.0f;
@@ -93,31 +99,22 @@ public class ObjectRenderer {
 
 	public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
 			throws IOException {
-		compileAndLoadShaderProgram(context);
-		Bitmap textureBitmap = BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glGenTextures(textures.length, textures, 0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-		GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-		textureBitmap.recycle();
-		ShaderUtil.checkGLError(TAG, "Texture loading");
-		InputStream objInputStream = context.getAssets().open(objAssetName);
-		Obj obj = ObjReader.read(objInputStream);
-		obj = ObjUtils.convertToRenderable(obj);
-		IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
-		FloatBuffer vertices = ObjData.getVertices(obj);
-		FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
-		FloatBuffer normals = ObjData.getNormals(obj);
-		ShortBuffer indices = ByteBuffer.allocateDirect(2 * wideIndices.limit()).order(ByteOrder.nativeOrder())
-				.asShortBuffer();
-		while (wideIndices.hasRemaining()) {
-			indices.put((short) wideIndices.get());
+		if (diffuseTexture != null) {
+			// Контекст пересоздан, старые объекты погибли вместе с ним
+			TextureManager.getInstance().release(diffuseTexture);
 		}
-		indices.rewind();
+		program = 0;
+		vertexBufferId = 0;
+		vertexArray = 0;
+		compileAndLoadShaderProgram(context);
+		diffuseTexture = TextureManager.getInstance().acquireAsset(context, diffuseTextureAssetName);
+		TextureManager.getInstance().load(diffuseTexture);
+		AssetCache.Mesh mesh = AssetCache.getInstance().getMesh(context, objAssetName);
+		FloatBuffer vertices = mesh.getVertices();
+		FloatBuffer texCoords = mesh.getTexCoords();
+		FloatBuffer normals = mesh.getNormals();
+		ShortBuffer indices = mesh.getIndices();
+		computeBounds(vertices);
 		int[] buffers = new int[2];
 		GLES20.glGenBuffers(2, buffers, 0);
 		vertexBufferId = buffers[0];
@@ -126,20 +123,70 @@ public class ObjectRenderer {
 		texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
 		normalsBaseAddress = texCoordsBaseAddress + 4 * texCoords.limit();
 		final int totalBytes = normalsBaseAddress + 4 * normals.limit();
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+		GlState.getInstance().bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
 		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
 		GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, verticesBaseAddress, 4 * vertices.limit(), vertices);
 		GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, texCoordsBaseAddress, 4 * texCoords.limit(), texCoords);
 		GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, normalsBaseAddress, 4 * normals.limit(), normals);
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		GlState.getInstance().bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
 		indexCount = indices.limit();
 		GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * indexCount, indices, GLES20.GL_STATIC_DRAW);
-		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 		ShaderUtil.checkGLError(TAG, "OBJ buffer load");
+		setupVertexArray();
 		Matrix.setIdentityM(modelMatrix, 0);
 	}
 
+	private void setupVertexArray() {
+		GlState gl = GlState.getInstance();
+		gl.deleteVertexArray(vertexArray);
+		vertexArray = 0;
+		if (!gl.isGles3()) {
+			return;
+		}
+		// Привязки атрибутов и буфер индексов записываются в VAO один раз и потом включаются одним вызовом
+		vertexArray = gl.createVertexArray();
+		gl.bindVertexArray(vertexArray);
+		bindAttributes();
+		gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		gl.bindVertexArray(0);
+		ShaderUtil.checkGLError(TAG, "Vertex array setup");
+	}
+
+	private void bindGeometry() {
+		GlState gl = GlState.getInstance();
+		if (vertexArray != 0) {
+			gl.bindVertexArray(vertexArray);
+		} else {
+			gl.bindVertexArray(0);
+			bindAttributes();
+			gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		}
+	}
+
+	private void bindAttributes() {
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+		GLES20.glVertexAttribPointer(positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0,
+				verticesBaseAddress);
+		GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
+		GLES20.glVertexAttribPointer(texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
+		gl.useAttributes(attributeMask);
+	}
+
+	public void release() {
+		GlState.getInstance().deleteVertexArray(vertexArray);
+		vertexArray = 0;
+		GlState.getInstance().deleteProgram(program);
+		GlState.getInstance().deleteBuffers(vertexBufferId, indexBufferId);
+		program = 0;
+		vertexBufferId = 0;
+		indexBufferId = 0;
+		if (diffuseTexture != null) {
+			TextureManager.getInstance().release(diffuseTexture);
+			diffuseTexture = null;
+		}
+	}
+
 	public void setBlendMode(BlendMode blendMode) {
 		this.blendMode = blendMode;
 	}
@@ -155,31 +202,77 @@ public class ObjectRenderer {
 	private void compileAndLoadShaderProgram(Context context) throws IOException {
 		Map<String, Integer> defineValuesMap = new TreeMap<>();
 		defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 1 : 0);
-		final int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+		uniformBlocks = FrameUniforms.getInstance().isEnabled();
+		defineValuesMap.put(ShaderUtil.UNIFORM_BLOCKS_SHADER_FLAG, uniformBlocks ? 1 : 0);
+		final int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME,
+				defineValuesMap);
 		final int fragmentShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER,
 				FRAGMENT_SHADER_NAME, defineValuesMap);
-		program = GLES20.glCreateProgram();
-		GLES20.glAttachShader(program, vertexShader);
-		GLES20.glAttachShader(program, fragmentShader);
-		GLES20.glLinkProgram(program);
-		GLES20.glUseProgram(program);
+		GlState gl = GlState.getInstance();
+		if (program != 0) {
+			gl.deleteProgram(program);
+		}
+		// Позиция на нулевом номере нужна проходу глубины, который рисует через тот же VAO
+		program = ShaderUtil.createProgram(TAG, vertexShader, fragmentShader, "a_Position");
+		uploadedLightVersion = -1;
+		gl.useProgram(program);
 		ShaderUtil.checkGLError(TAG, "Program creation");
-		modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
-		modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+		if (uniformBlocks) {
+			FrameUniforms.bindBlocks(program);
+		} else {
+			modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
+			modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+			lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
+			materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
+			colorCorrectionParameterUniform = GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+			colorUniform = GLES20.glGetUniformLocation(program, "u_ObjColor");
+		}
 		positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
 		normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
 		texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
 		textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
-		lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
-		materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
-		colorCorrectionParameterUniform = GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
-		colorUniform = GLES20.glGetUniformLocation(program, "u_ObjColor");
+		attributeMask = GlState.attributeBit(positionAttribute) | GlState.attributeBit(normalAttribute)
+				| GlState.attributeBit(texCoordAttribute);
+		// Сэмплеры привязаны к постоянным блокам, поэтому задаются один раз при сборке программы
+		GLES20.glUniform1i(textureUniform, 0);
 		if (useDepthForOcclusion) {
 			depthTextureUniform = GLES20.glGetUniformLocation(program, "u_DepthTexture");
 			depthUvTransformUniform = GLES20.glGetUniformLocation(program, "u_DepthUvTransform");
 			depthAspectRatioUniform = GLES20.glGetUniformLocation(program, "u_DepthAspectRatio");
+			GLES20.glUniform1i(depthTextureUniform, 1);
 		}
 		ShaderUtil.checkGLError(TAG, "Program parameters");
+		if (vertexBufferId != 0) {
+			// Расположение атрибутов в новой программе может отличаться
+			setupVertexArray();
+		}
+	}
+
+	private void computeBounds(FloatBuffer vertices) {
+		// Считается один раз при загрузке, дальше коробка только переносится матрицей модели
+		for (int i = 0; i < 3; i++) {
+			bounds[i] = Float.MAX_VALUE;
+			bounds[i + 3] = -Float.MAX_VALUE;
+		}
+		int limit = vertices.limit();
+		for (int i = 0; i < limit; i += COORDS_PER_VERTEX) {
+			for (int axis = 0; axis < 3; axis++) {
+				float value = vertices.get(i + axis);
+				bounds[axis] = Math.min(bounds[axis], value);
+				bounds[axis + 3] = Math.max(bounds[axis + 3], value);
+			}
+		}
+		if (limit == 0) {
+			Arrays.fill(bounds, 0.0f);
+		}
+	}
+
+	public float[] getBounds() {
+		return bounds;
+	}
+
+	public void getWorldBounds(float[] out) {
+		BoundingVolumeTree.transformBounds(modelMatrix, bounds, out);
 	}
 
 	public void updateModelMatrix(float[] modelMatrix, float scaleFactor) {
@@ -198,77 +291,98 @@ public class ObjectRenderer {
 		this.specularPower = specularPower;
 	}
 
-	public void draw(float[] cameraView, float[] cameraPerspective, float[] colorCorrectionRgba) {
-		draw(cameraView, cameraPerspective, colorCorrectionRgba, DEFAULT_COLOR);
+	public void draw(float[] cameraView, float[] cameraPerspective) {
+		draw(cameraView, cameraPerspective, DEFAULT_COLOR);
+	}
+
+	public void draw(float[] cameraView, float[] cameraPerspective, float[] objColor) {
+		int texture = TextureManager.getInstance().use(diffuseTexture);
+		if (texture == 0) {
+			return;
+		}
+		prepare(immediateCommand, cameraView, cameraPerspective, objColor);
+		immediateCommand.texture = texture;
+		submit(immediateCommand);
+	}
+
+	public void enqueue(DrawList drawList, float[] cameraView, float[] cameraPerspective, float[] objColor) {
+		int texture = TextureManager.getInstance().use(diffuseTexture);
+		if (texture == 0) {
+			// Текстура вытеснена и ещё грузится в фоне, объект пропускает несколько кадров
+			return;
+		}
+		DrawList.Command command = drawList.add(submitter, program, texture, blendKey());
+		prepare(command, cameraView, cameraPerspective, objColor);
+	}
+
+	private void prepare(DrawList.Command command, float[] cameraView, float[] cameraPerspective,
+			float[] objColor) {
+		Matrix.multiplyMM(command.modelView, 0, cameraView, 0, modelMatrix, 0);
+		if (uniformBlocks) {
+			// Камера, свет и цветокоррекция уже лежат в буфере кадра, объекту остаётся только своя часть
+			command.uniformSlot = FrameUniforms.getInstance().addObject(command.modelView, ambient, diffuse, specular,
+					specularPower, objColor);
+			return;
+		}
+		Matrix.multiplyMM(command.modelViewProjection, 0, cameraPerspective, 0, command.modelView, 0);
+		System.arraycopy(FrameUniforms.getInstance().getViewLightDirection(), 0, command.lighting, 0, 4);
+		System.arraycopy(objColor, 0, command.color, 0, 4);
+	}
+
+	private int blendKey() {
+		if (blendMode == null) {
+			return DrawList.BLEND_NONE;
+		}
+		return blendMode == BlendMode.Shadow ? DrawList.BLEND_SHADOW : DrawList.BLEND_ALPHA;
 	}
 
-	public void draw(float[] cameraView, float[] cameraPerspective, float[] colorCorrectionRgba, float[] objColor) {
+	private void submit(DrawList.Command command) {
 		ShaderUtil.checkGLError(TAG, "Before draw");
-		Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
-		Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
-		GLES20.glUseProgram(program);
-		Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
-		normalizeVec3(viewLightDirection);
-		GLES20.glUniform4f(lightingParametersUniform, viewLightDirection[0], viewLightDirection[1],
-				viewLightDirection[2], 1.f);
-		GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
-		GLES20.glUniform4fv(colorUniform, 1, objColor, 0);
-		GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-		GLES20.glUniform1i(textureUniform, 0);
+		GlState gl = GlState.getInstance();
+		gl.useProgram(program);
+		if (uniformBlocks) {
+			FrameUniforms.getInstance().bindObject(command.uniformSlot);
+		} else {
+			GLES20.glUniform4fv(lightingParametersUniform, 1, command.lighting, 0);
+			// Цветокоррекция одна на кадр и хранится в программе, пока оценка света не изменится
+			FrameUniforms frameUniforms = FrameUniforms.getInstance();
+			if (uploadedLightVersion != frameUniforms.getLightVersion()) {
+				GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, frameUniforms.getColorCorrection(), 0);
+				uploadedLightVersion = frameUniforms.getLightVersion();
+			}
+			GLES20.glUniform4fv(colorUniform, 1, command.color, 0);
+			GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
+			GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, command.modelView, 0);
+			GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, command.modelViewProjection, 0);
+		}
+		gl.bindTexture(0, GLES20.GL_TEXTURE_2D, command.texture);
 		if (useDepthForOcclusion) {
-			GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
-			GLES20.glUniform1i(depthTextureUniform, 1);
+			gl.bindTexture(1, GLES20.GL_TEXTURE_2D, depthTextureId);
 			GLES20.glUniformMatrix3fv(depthUvTransformUniform, 1, false, uvTransform, 0);
 			GLES20.glUniform1f(depthAspectRatioUniform, depthAspectRatio);
 		}
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-		GLES20.glVertexAttribPointer(positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0,
-				verticesBaseAddress);
-		GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
-		GLES20.glVertexAttribPointer(texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-		GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
-		GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
-		GLES20.glEnableVertexAttribArray(positionAttribute);
-		GLES20.glEnableVertexAttribArray(normalAttribute);
-		GLES20.glEnableVertexAttribArray(texCoordAttribute);
+		bindGeometry();
+		gl.setDepthTest(true);
 		if (blendMode != null) {
-			GLES20.glEnable(GLES20.GL_BLEND);
+			gl.setBlend(true);
 			switch (blendMode) {
 			case Shadow:
-				GLES20.glDepthMask(false);
-				GLES20.glBlendFunc(GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+				gl.setDepthMask(false);
+				gl.blendFunc(GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 				break;
 			case AlphaBlending:
-				GLES20.glDepthMask(true);
-				GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+				gl.setDepthMask(true);
+				gl.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 				break;
 			}
+		} else {
+			gl.setBlend(false);
+			gl.setDepthMask(true);
 		}
-		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
 		GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
-		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-		if (blendMode != null) {
-			GLES20.glDisable(GLES20.GL_BLEND);
-			GLES20.glDepthMask(true);
-		}
-		GLES20.glDisableVertexAttribArray(positionAttribute);
-		GLES20.glDisableVertexAttribArray(normalAttribute);
-		GLES20.glDisableVertexAttribArray(texCoordAttribute);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 		ShaderUtil.checkGLError(TAG, "After draw");
 	}
 
-	private static void normalizeVec3(float[] v) {
-		float reciprocalLength = 1.0f / (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
-		v[0] *= reciprocalLength;
-		v[1] *= reciprocalLength;
-		v[2] *= reciprocalLength;
-	}
-
 	public void setUvTransformMatrix(float[] transform) {
 		uvTransform = transform;
 	}
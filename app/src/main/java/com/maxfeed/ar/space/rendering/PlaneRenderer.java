@@ -16,10 +16,7 @@
 package com.maxfeed.ar.space.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import com.google.ar.core.Plane;
 import com.google.ar.core.Pose;
@@ -36,6 +33,10 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.function.ToDoubleFunction;
 import java.util.function.ToIntFunction;
@@ -67,7 +68,7 @@ public class PlaneRenderer {
 	private static final float[] GRID_CONTROL = { 0.2f, 0.4f, 2.0f, 1.5f };
 
 	private int planeProgram;
-	private final int[] textures = new int[1];
+	private TextureManager.Texture gridTexture;
 
 	private int planeXZPositionAlphaAttribute;
 	private int planeModelUniform;
@@ -77,40 +78,59 @@ public class PlaneRenderer {
 	private int gridControlUniform;
 	private int planeUvMatrixUniform;
 
-	private FloatBuffer vertexBuffer = ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
-			.order(ByteOrder.nativeOrder()).asFloatBuffer();
-	private ShortBuffer indexBuffer = ByteBuffer.allocateDirect(INITIAL_INDEX_BUFFER_SIZE_BYTES)
-			.order(ByteOrder.nativeOrder()).asShortBuffer();
+	private static final class PlaneMesh {
+		FloatBuffer vertexBuffer = ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		ShortBuffer indexBuffer = ByteBuffer.allocateDirect(INITIAL_INDEX_BUFFER_SIZE_BYTES)
+				.order(ByteOrder.nativeOrder()).asShortBuffer();
+		PlaneState owner;
+	}
+
+	private static final class PlaneState {
+		final int index;
+		float[] polygon;
+		float extentX;
+		float extentZ;
+		PlaneMesh mesh;
+		boolean pending;
+		boolean dirty;
+
+		PlaneState(int index) {
+			this.index = index;
+		}
+	}
+
+	// Сетки строятся в фоне, поток рисования только подменяет готовые
+	private final Queue<PlaneMesh> meshPool = new ConcurrentLinkedQueue<>();
+	private final Queue<PlaneMesh> finishedMeshes = new ConcurrentLinkedQueue<>();
+	private ExecutorService triangulator;
 
 	private final float[] modelMatrix = new float[16];
 	private final float[] modelViewMatrix = new float[16];
 	private final float[] modelViewProjectionMatrix = new float[16];
 	private final float[] planeAngleUvMatrix = new float[4];
 
-	private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
+	private final Map<Plane, PlaneState> planeStates = new HashMap<>();
+	private int nextPlaneIndex;
 
 	public PlaneRenderer() {
 	}
 
 	public void createOnGlThread(Context context, String gridDistanceTextureName) throws IOException {
+		if (triangulator == null) {
+			int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+			triangulator = Executors.newFixedThreadPool(threads);
+		}
+		if (gridTexture != null) {
+			TextureManager.getInstance().release(gridTexture);
+		}
 		int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
 		int passthroughShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-		planeProgram = GLES20.glCreateProgram();
-		GLES20.glAttachShader(planeProgram, vertexShader);
-		GLES20.glAttachShader(planeProgram, passthroughShader);
-		GLES20.glLinkProgram(planeProgram);
-		GLES20.glUseProgram(planeProgram);
+		planeProgram = ShaderUtil.createProgram(TAG, vertexShader, passthroughShader);
+		GlState.getInstance().useProgram(planeProgram);
 		ShaderUtil.checkGLError(TAG, "Program creation");
-		Bitmap textureBitmap = BitmapFactory.decodeStream(context.getAssets().open(gridDistanceTextureName));
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glGenTextures(textures.length, textures, 0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-		GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-		ShaderUtil.checkGLError(TAG, "Texture loading");
+		gridTexture = TextureManager.getInstance().acquireAsset(context, gridDistanceTextureName);
+		TextureManager.getInstance().load(gridTexture);
 		planeXZPositionAlphaAttribute = GLES20.glGetAttribLocation(planeProgram, "a_XZPositionAlpha");
 		planeModelUniform = GLES20.glGetUniformLocation(planeProgram, "u_Model");
 		planeNormalUniform = GLES20.glGetUniformLocation(planeProgram, "u_Normal");
@@ -118,47 +138,143 @@ public class PlaneRenderer {
 		textureUniform = GLES20.glGetUniformLocation(planeProgram, "u_Texture");
 		gridControlUniform = GLES20.glGetUniformLocation(planeProgram, "u_gridControl");
 		planeUvMatrixUniform = GLES20.glGetUniformLocation(planeProgram, "u_PlaneUvMatrix");
+		// Параметры, не меняющиеся между кадрами, задаются один раз при сборке программы
+		GLES20.glUniform1i(textureUniform, 0);
+		GLES20.glUniform4fv(gridControlUniform, 1, GRID_CONTROL, 0);
 		ShaderUtil.checkGLError(TAG, "Program parameters");
 	}
 
-	private void updatePlaneParameters(float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-		System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
-		if (boundary == null) {
-			vertexBuffer.limit(0);
-			indexBuffer.limit(0);
+	public void release() {
+		GlState.getInstance().deleteProgram(planeProgram);
+		planeProgram = 0;
+		if (gridTexture != null) {
+			TextureManager.getInstance().release(gridTexture);
+			gridTexture = null;
+		}
+		if (triangulator != null) {
+			triangulator.shutdownNow();
+			triangulator = null;
+		}
+		planeStates.clear();
+		finishedMeshes.clear();
+		meshPool.clear();
+	}
+
+	private void updatePlaneMesh(Plane plane) {
+		PlaneState state = planeStates.get(plane);
+		if (state == null) {
+			state = new PlaneState(nextPlaneIndex++);
+			planeStates.put(plane, state);
+		}
+		FloatBuffer boundary = plane.getPolygon();
+		float extentX = plane.getExtentX();
+		float extentZ = plane.getExtentZ();
+		if (state.polygon != null && extentX == state.extentX && extentZ == state.extentZ
+				&& samePolygon(state.polygon, boundary)) {
+			return;
+		}
+		state.extentX = extentX;
+		state.extentZ = extentZ;
+		state.polygon = new float[boundary == null ? 0 : boundary.limit()];
+		if (boundary != null) {
+			boundary.rewind();
+			boundary.get(state.polygon);
+		}
+		if (state.pending) {
+			// Текущая сборка устарела, перестроим сразу после её завершения
+			state.dirty = true;
 			return;
 		}
-		boundary.rewind();
-		int boundaryVertices = boundary.limit() / 2;
+		submit(state);
+	}
+
+	private void submit(final PlaneState state) {
+		state.pending = true;
+		state.dirty = false;
+		final float[] polygon = state.polygon;
+		final float extentX = state.extentX;
+		final float extentZ = state.extentZ;
+		triangulator.execute(new Runnable() {
+			@Override
+			public void run() {
+				PlaneMesh mesh = meshPool.poll();
+				if (mesh == null) {
+					mesh = new PlaneMesh();
+				}
+				mesh.owner = state;
+				triangulate(mesh, polygon, extentX, extentZ);
+				finishedMeshes.add(mesh);
+			}
+		});
+	}
+
+	private void swapFinishedMeshes() {
+		PlaneMesh mesh;
+		while ((mesh = finishedMeshes.poll()) != null) {
+			PlaneState state = mesh.owner;
+			mesh.owner = null;
+			if (state.mesh != null) {
+				meshPool.add(state.mesh);
+			}
+			state.mesh = mesh;
+			state.pending = false;
+			if (state.dirty && triangulator != null) {
+				submit(state);
+			}
+		}
+	}
+
+	private static boolean samePolygon(float[] polygon, FloatBuffer boundary) {
+		if (boundary == null) {
+			return polygon.length == 0;
+		}
+		if (boundary.limit() != polygon.length) {
+			return false;
+		}
+		for (int i = 0; i < polygon.length; i++) {
+			if (boundary.get(i) != polygon[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void triangulate(PlaneMesh mesh, float[] boundary, float extentX, float extentZ) {
+		int boundaryVertices = boundary.length / 2;
 		int numVertices;
 		int numIndices;
 		numVertices = boundaryVertices * VERTS_PER_BOUNDARY_VERT;
 		numIndices = boundaryVertices * INDICES_PER_BOUNDARY_VERT;
-		if (vertexBuffer.capacity() < numVertices * COORDS_PER_VERTEX) {
-			int size = vertexBuffer.capacity();
+		if (mesh.vertexBuffer.capacity() < numVertices * COORDS_PER_VERTEX) {
+			int size = mesh.vertexBuffer.capacity();
 			while (size < numVertices * COORDS_PER_VERTEX) {
 				size *= 2;
 			}
-			vertexBuffer = ByteBuffer.allocateDirect(BYTES_PER_FLOAT * size).order(ByteOrder.nativeOrder())
+			mesh.vertexBuffer = ByteBuffer.allocateDirect(BYTES_PER_FLOAT * size).order(ByteOrder.nativeOrder())
 					.asFloatBuffer();
 		}
+		FloatBuffer vertexBuffer = mesh.vertexBuffer;
 		vertexBuffer.rewind();
 		vertexBuffer.limit(numVertices * COORDS_PER_VERTEX);
-		if (indexBuffer.capacity() < numIndices) {
-			int size = indexBuffer.capacity();
+		if (mesh.indexBuffer.capacity() < numIndices) {
+			int size = mesh.indexBuffer.capacity();
 			while (size < numIndices) {
 				size *= 2;
 			}
-			indexBuffer = ByteBuffer.allocateDirect(BYTES_PER_SHORT * size).order(ByteOrder.nativeOrder())
+			mesh.indexBuffer = ByteBuffer.allocateDirect(BYTES_PER_SHORT * size).order(ByteOrder.nativeOrder())
 					.asShortBuffer();
 		}
+		ShortBuffer indexBuffer = mesh.indexBuffer;
 		indexBuffer.rewind();
 		indexBuffer.limit(numIndices);
+		if (boundaryVertices == 0) {
+			return;
+		}
 		float xScale = Math.max((extentX - 2 * FADE_RADIUS_M) / extentX, 0.0f);
 		float zScale = Math.max((extentZ - 2 * FADE_RADIUS_M) / extentZ, 0.0f);
-		while (boundary.hasRemaining()) {
-			float x = boundary.get();
-			float z = boundary.get();
+		for (int i = 0; i < boundaryVertices; i++) {
+			float x = boundary[i * 2];
+			float z = boundary[i * 2 + 1];
 			vertexBuffer.put(x);
 			vertexBuffer.put(z);
 			vertexBuffer.put(0.0f);
@@ -181,9 +297,11 @@ public class PlaneRenderer {
 		}
 	}
 
-	private void draw(float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
+	private void draw(PlaneMesh mesh, float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
 		Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
 		Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
+		FloatBuffer vertexBuffer = mesh.vertexBuffer;
+		ShortBuffer indexBuffer = mesh.indexBuffer;
 		vertexBuffer.rewind();
 		GLES20.glVertexAttribPointer(planeXZPositionAlphaAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
 				BYTES_PER_FLOAT * COORDS_PER_VERTEX, vertexBuffer);
@@ -206,11 +324,24 @@ public class PlaneRenderer {
 	}
 
 	public void drawPlanes(Collection<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
+		swapFinishedMeshes();
 		List<SortablePlane> sortedPlanes = new ArrayList<>();
 		for (Plane plane : allPlanes) {
-			if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
+			if (plane.getTrackingState() == TrackingState.STOPPED || plane.getSubsumedBy() != null) {
+				PlaneState state = planeStates.get(plane);
+				// Сетку, которая ещё строится, вернёт в пул обработчик готовых сеток
+				if (state != null && !state.pending) {
+					planeStates.remove(plane);
+					if (state.mesh != null) {
+						meshPool.add(state.mesh);
+					}
+				}
 				continue;
 			}
+			if (plane.getTrackingState() != TrackingState.TRACKING) {
+				continue;
+			}
+			updatePlaneMesh(plane);
 			float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
 			if (distance < 0) {
 				continue;
@@ -264,31 +395,37 @@ public class PlaneRenderer {
 				throw new UnsupportedOperationException();
 			}
 		});
+		int gridTextureId = TextureManager.getInstance().use(gridTexture);
+		if (gridTextureId == 0) {
+			// Сетка вытеснена и грузится в фоне, без неё плоскости получились бы чёрными
+			return;
+		}
 		float[] cameraView = new float[16];
 		cameraPose.inverse().toMatrix(cameraView, 0);
-		GLES20.glDepthMask(false);
-		GLES20.glEnable(GLES20.GL_BLEND);
-		GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-		GLES20.glUseProgram(planeProgram);
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-		GLES20.glUniform1i(textureUniform, 0);
-		GLES20.glUniform4fv(gridControlUniform, 1, GRID_CONTROL, 0);
-		GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
+		GlState gl = GlState.getInstance();
+		gl.setDepthTest(true);
+		gl.setDepthMask(false);
+		gl.setBlend(true);
+		gl.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+		gl.useProgram(planeProgram);
+		gl.bindTexture(0, GLES20.GL_TEXTURE_2D, gridTextureId);
+		// Вершины и индексы плоскостей лежат в памяти процесса, а такие массивы работают только без VAO
+		gl.bindVertexArray(0);
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		gl.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+		gl.useAttributes(GlState.attributeBit(planeXZPositionAlphaAttribute));
 		ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
 		for (SortablePlane sortedPlane : sortedPlanes) {
 			Plane plane = sortedPlane.plane;
-			float[] planeMatrix = new float[16];
-			plane.getCenterPose().toMatrix(planeMatrix, 0);
+			PlaneState state = planeStates.get(plane);
+			// Пока первая сетка не готова, рисовать нечего, дальше рисуется последняя готовая
+			if (state == null || state.mesh == null) {
+				continue;
+			}
+			plane.getCenterPose().toMatrix(modelMatrix, 0);
 			float[] normal = new float[3];
 			plane.getCenterPose().getTransformedAxis(1, 1.0f, normal, 0);
-			updatePlaneParameters(planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
-			Integer planeIndex = planeIndexMap.get(plane);
-			if (planeIndex == null) {
-				planeIndex = planeIndexMap.size();
-				planeIndexMap.put(plane, planeIndex);
-			}
-			float angleRadians = planeIndex * 0.144f;
+			float angleRadians = state.index * 0.144f;
 			float uScale = DOTS_PER_METER;
 			float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
 			planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
@@ -296,13 +433,9 @@ public class PlaneRenderer {
 			planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
 			planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
 			GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
-			draw(cameraView, cameraPerspective, normal);
+			draw(state.mesh, cameraView, cameraPerspective, normal);
 		}
-		GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-		GLES20.glDisable(GLES20.GL_BLEND);
-		GLES20.glDepthMask(true);
-		ShaderUtil.checkGLError(TAG, "Cleaning up after drawing planes");
+		ShaderUtil.checkGLError(TAG, "Drawing planes");
 	}
 
 	public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
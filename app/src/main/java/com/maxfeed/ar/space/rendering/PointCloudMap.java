@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import com.maxfeed.ar.space.util.VoxelKeys;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+public class PointCloudMap {
+	private static final float MIN_CONFIDENCE = 0.05f;
+
+	private final float voxelSize;
+	private final int maxPoints;
+
+	// Точки хранятся плотно в примитивных массивах, хеш-таблица хранит только номер точки
+	private final float[] x;
+	private final float[] y;
+	private final float[] z;
+	private final float[] confidence;
+	private final long[] pointKeys;
+	private int size;
+
+	private final long[] tableKeys;
+	private final int[] tableIndices;
+	private final int tableMask;
+
+	private int rejectedCount;
+
+	public PointCloudMap(float voxelSize, int maxPoints) {
+		this.voxelSize = voxelSize;
+		this.maxPoints = maxPoints;
+		x = new float[maxPoints];
+		y = new float[maxPoints];
+		z = new float[maxPoints];
+		confidence = new float[maxPoints];
+		pointKeys = new long[maxPoints];
+		int tableSize = Integer.highestOneBit(maxPoints * 2 - 1) << 1;
+		tableKeys = new long[tableSize];
+		tableIndices = new int[tableSize];
+		tableMask = tableSize - 1;
+		Arrays.fill(tableKeys, VoxelKeys.EMPTY_KEY);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getMaxPoints() {
+		return maxPoints;
+	}
+
+	public int getRejectedCount() {
+		return rejectedCount;
+	}
+
+	public void clear() {
+		size = 0;
+		Arrays.fill(tableKeys, VoxelKeys.EMPTY_KEY);
+	}
+
+	public void merge(FloatBuffer points) {
+		FloatBuffer source = points.duplicate();
+		while (source.remaining() >= 4) {
+			merge(source.get(), source.get(), source.get(), source.get());
+		}
+	}
+
+	public void merge(float px, float py, float pz, float pointConfidence) {
+		long key = VoxelKeys.key(VoxelKeys.cell(px, voxelSize), VoxelKeys.cell(py, voxelSize),
+				VoxelKeys.cell(pz, voxelSize));
+		int slot = findSlot(key);
+		if (tableKeys[slot] == key) {
+			int index = tableIndices[slot];
+			float current = confidence[index];
+			// Положение усредняется с весом уверенности, уверенность растёт с каждым повторным наблюдением
+			float weight = pointConfidence / (current + pointConfidence + 1e-6f);
+			x[index] += (px - x[index]) * weight;
+			y[index] += (py - y[index]) * weight;
+			z[index] += (pz - z[index]) * weight;
+			confidence[index] = current + pointConfidence * (1.0f - current);
+			return;
+		}
+		if (size == maxPoints) {
+			rejectedCount++;
+			return;
+		}
+		x[size] = px;
+		y[size] = py;
+		z[size] = pz;
+		confidence[size] = pointConfidence;
+		pointKeys[size] = key;
+		tableKeys[slot] = key;
+		tableIndices[slot] = size;
+		size++;
+	}
+
+	public void decay(float factor) {
+		int write = 0;
+		for (int read = 0; read < size; read++) {
+			float value = confidence[read] * factor;
+			if (value < MIN_CONFIDENCE) {
+				continue;
+			}
+			x[write] = x[read];
+			y[write] = y[read];
+			z[write] = z[read];
+			confidence[write] = value;
+			pointKeys[write] = pointKeys[read];
+			write++;
+		}
+		if (write != size) {
+			size = write;
+			rebuildTable();
+		}
+	}
+
+	public int write(FloatBuffer target) {
+		int count = Math.min(size, target.remaining() / 4);
+		for (int i = 0; i < count; i++) {
+			target.put(x[i]).put(y[i]).put(z[i]).put(confidence[i]);
+		}
+		return count;
+	}
+
+	private void rebuildTable() {
+		Arrays.fill(tableKeys, VoxelKeys.EMPTY_KEY);
+		for (int i = 0; i < size; i++) {
+			int slot = findSlot(pointKeys[i]);
+			tableKeys[slot] = pointKeys[i];
+			tableIndices[slot] = i;
+		}
+	}
+
+	private int findSlot(long key) {
+		int slot = VoxelKeys.hash(key) & tableMask;
+		while (tableKeys[slot] != VoxelKeys.EMPTY_KEY && tableKeys[slot] != key) {
+			slot = (slot + 1) & tableMask;
+		}
+		return slot;
+	}
+}
@@ -19,7 +19,12 @@ import android.content.Context;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import com.google.ar.core.PointCloud;
+import com.maxfeed.ar.space.util.VoxelIndex;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 public class PointCloudRenderer {
 	private static final String TAG = PointCloud.class.getSimpleName();
@@ -31,9 +36,22 @@ public class PointCloudRenderer {
 	private static final int FLOATS_PER_POINT = 4;
 	private static final int BYTES_PER_POINT = BYTES_PER_FLOAT * FLOATS_PER_POINT;
 	private static final int INITIAL_BUFFER_POINTS = 1000;
+	// Пока GPU читает один буфер, запись идёт в следующий, и загрузка не ждёт конца отрисовки
+	private static final int BUFFER_RING_SIZE = 3;
 	
-	private int vbo;
-	private int vboSize;
+	private static final float MAP_VOXEL_SIZE = 0.02f;
+	private static final int MAP_MAX_POINTS = 20000;
+	private static final float MAP_CONFIDENCE_DECAY = 0.98f;
+	private static final float INDEX_MIN_CONFIDENCE = 0.3f;
+	
+	public enum Mode {
+		CURRENT_FRAME, ACCUMULATED_MAP
+	}
+	
+	private final int[] vbos = new int[BUFFER_RING_SIZE];
+	private final int[] vboSizes = new int[BUFFER_RING_SIZE];
+	private final int[] vertexArrays = new int[BUFFER_RING_SIZE];
+	private int currentVbo;
 	
 	private int programName;
 	private int positionAttribute;
@@ -44,49 +62,123 @@ public class PointCloudRenderer {
 	private int numPoints = 0;
 	private long lastTimestamp = 0;
 	
+	private Mode mode = Mode.CURRENT_FRAME;
+	private PointCloudMap map;
+	private FloatBuffer mapPoints;
+	private VoxelIndex voxelIndex;
+	
 	public PointCloudRenderer() {}
 	
 	public void createOnGlThread(Context context) throws IOException {
 		ShaderUtil.checkGLError(TAG, "before create");
-		int[] buffers = new int[1];
-		GLES20.glGenBuffers(1, buffers, 0);
-		vbo = buffers[0];
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
-		vboSize = INITIAL_BUFFER_POINTS * BYTES_PER_POINT;
-		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		numPoints = 0;
+		lastTimestamp = 0;
+		currentVbo = 0;
+		GLES20.glGenBuffers(BUFFER_RING_SIZE, vbos, 0);
+		GlState gl = GlState.getInstance();
+		for (int i = 0; i < BUFFER_RING_SIZE; i++) {
+			gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbos[i]);
+			vboSizes[i] = INITIAL_BUFFER_POINTS * BYTES_PER_POINT;
+			GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSizes[i], null, GLES20.GL_STREAM_DRAW);
+		}
 		ShaderUtil.checkGLError(TAG, "buffer alloc");
 		int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
 		int passthroughShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-		programName = GLES20.glCreateProgram();
-		GLES20.glAttachShader(programName, vertexShader);
-		GLES20.glAttachShader(programName, passthroughShader);
-		GLES20.glLinkProgram(programName);
-		GLES20.glUseProgram(programName);
+		programName = ShaderUtil.createProgram(TAG, vertexShader, passthroughShader);
+		gl.useProgram(programName);
 		ShaderUtil.checkGLError(TAG, "program");
 		positionAttribute = GLES20.glGetAttribLocation(programName, "a_Position");
 		colorUniform = GLES20.glGetUniformLocation(programName, "u_Color");
 		modelViewProjectionUniform = GLES20.glGetUniformLocation(programName, "u_ModelViewProjection");
 		pointSizeUniform = GLES20.glGetUniformLocation(programName, "u_PointSize");
 		ShaderUtil.checkGLError(TAG, "program	params");
+		Arrays.fill(vertexArrays, 0);
+		if (gl.isGles3()) {
+			// Переразметка буфера не меняет его имя, поэтому у каждого буфера кольца свой постоянный VAO
+			for (int i = 0; i < BUFFER_RING_SIZE; i++) {
+				vertexArrays[i] = gl.createVertexArray();
+				gl.bindVertexArray(vertexArrays[i]);
+				gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbos[i]);
+				GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
+				gl.useAttributes(GlState.attributeBit(positionAttribute));
+			}
+			gl.bindVertexArray(0);
+			ShaderUtil.checkGLError(TAG, "vertex arrays");
+		}
+	}
+	
+	public void release() {
+		for (int vertexArray : vertexArrays) {
+			GlState.getInstance().deleteVertexArray(vertexArray);
+		}
+		Arrays.fill(vertexArrays, 0);
+		GlState.getInstance().deleteProgram(programName);
+		GlState.getInstance().deleteBuffers(vbos);
+		programName = 0;
+		Arrays.fill(vbos, 0);
+		numPoints = 0;
+		lastTimestamp = 0;
+	}
+	
+	public void setMode(Mode mode) {
+		this.mode = mode;
+		if (mode == Mode.ACCUMULATED_MAP && map == null) {
+			map = new PointCloudMap(MAP_VOXEL_SIZE, MAP_MAX_POINTS);
+			mapPoints = ByteBuffer.allocateDirect(MAP_MAX_POINTS * BYTES_PER_POINT).order(ByteOrder.nativeOrder())
+					.asFloatBuffer();
+		}
+		lastTimestamp = 0;
+	}
+	
+	public Mode getMode() {
+		return mode;
+	}
+	
+	public PointCloudMap getMap() {
+		return map;
+	}
+	
+	public void setVoxelIndex(VoxelIndex voxelIndex) {
+		this.voxelIndex = voxelIndex;
 	}
 	
 	public void update(PointCloud cloud) {
 		if (cloud.getTimestamp() == lastTimestamp) {
 			return;
 		}
-		ShaderUtil.checkGLError(TAG, "before update");
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
 		lastTimestamp = cloud.getTimestamp();
-		numPoints = cloud.getPoints().remaining() / FLOATS_PER_POINT;
-		if (numPoints * BYTES_PER_POINT > vboSize) {
-			while (numPoints * BYTES_PER_POINT > vboSize) {
-				vboSize *= 2;
-			}
-			GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
+		if (voxelIndex != null) {
+			voxelIndex.insert(cloud.getPoints(), INDEX_MIN_CONFIDENCE);
+		}
+		if (programName == 0) {
+			// Без отрисовки облако только пополняет индекс, в видеопамять ничего не грузится
+			return;
+		}
+		FloatBuffer points;
+		if (mode == Mode.ACCUMULATED_MAP) {
+			map.decay(MAP_CONFIDENCE_DECAY);
+			map.merge(cloud.getPoints());
+			mapPoints.clear();
+			map.write(mapPoints);
+			mapPoints.flip();
+			points = mapPoints;
+		} else {
+			points = cloud.getPoints();
 		}
-		GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, cloud.getPoints());
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		upload(points);
+	}
+	
+	private void upload(FloatBuffer points) {
+		ShaderUtil.checkGLError(TAG, "before update");
+		currentVbo = (currentVbo + 1) % BUFFER_RING_SIZE;
+		GlState.getInstance().bindBuffer(GLES20.GL_ARRAY_BUFFER, vbos[currentVbo]);
+		numPoints = points.remaining() / FLOATS_PER_POINT;
+		while (numPoints * BYTES_PER_POINT > vboSizes[currentVbo]) {
+			vboSizes[currentVbo] *= 2;
+		}
+		// Сиротский буфер: драйвер отдаёт новую память, а старую освобождает после отрисовки
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSizes[currentVbo], null, GLES20.GL_STREAM_DRAW);
+		GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, points);
 		ShaderUtil.checkGLError(TAG, "after update");
 	}
 	
@@ -94,16 +186,23 @@ public class PointCloudRenderer {
 		float[] modelViewProjection = new float[16];
 		Matrix.multiplyMM(modelViewProjection, 0, cameraPerspective, 0, cameraView, 0);
 		ShaderUtil.checkGLError(TAG, "Before draw");
-		GLES20.glUseProgram(programName);
-		GLES20.glEnableVertexAttribArray(positionAttribute);
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
-		GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
+		GlState gl = GlState.getInstance();
+		gl.useProgram(programName);
+		gl.setDepthTest(true);
+		gl.setDepthMask(true);
+		gl.setBlend(false);
+		if (vertexArrays[currentVbo] != 0) {
+			gl.bindVertexArray(vertexArrays[currentVbo]);
+		} else {
+			gl.bindVertexArray(0);
+			gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbos[currentVbo]);
+			GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
+			gl.useAttributes(GlState.attributeBit(positionAttribute));
+		}
 		GLES20.glUniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
 		GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
 		GLES20.glUniform1f(pointSizeUniform, 5.0f);
 		GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
-		GLES20.glDisableVertexAttribArray(positionAttribute);
-		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 		ShaderUtil.checkGLError(TAG, "Draw");
 	}
 }
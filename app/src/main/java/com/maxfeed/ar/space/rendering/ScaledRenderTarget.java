@@ -0,0 +1,310 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+public class ScaledRenderTarget {
+	private static final String TAG = ScaledRenderTarget.class.getSimpleName();
+
+	private static final String VERTEX_SHADER_NAME = "shaders/composite.vert";
+	private static final String FRAGMENT_SHADER_NAME = "shaders/composite.frag";
+
+	public static final float DEFAULT_SCALE = 0.75f;
+	private static final float MIN_SCALE = 0.25f;
+	private static final float MAX_SCALE = 1.0f;
+	private static final float SCALE_STEP = 0.05f;
+
+	private static final int DEFAULT_TARGET_FPS = 30;
+	// Решение о масштабе принимается по среднему за окно, а не по отдельным кадрам
+	private static final int ADAPT_WINDOW_FRAMES = 30;
+	// Повышение требует нескольких спокойных окон подряд, иначе масштаб скачет вокруг предела
+	private static final int RAISE_AFTER_WINDOWS = 4;
+	private static final float SLOW_FRAME_RATIO = 1.15f;
+	private static final float FAST_FRAME_RATIO = 1.05f;
+	// Паузы и остановки сессии не говорят о цене рисования
+	private static final long MAX_FRAME_INTERVAL_NANOS = 250_000_000L;
+
+	private static final String COLOR_TEXTURE_KEY = "offscreen color";
+	private static final int BYTES_PER_PIXEL = 4;
+
+	private static final float[] QUAD_COORDS = new float[] { -1.0f, -1.0f, +1.0f, -1.0f, -1.0f, +1.0f, +1.0f, +1.0f };
+
+	private final FloatBuffer quadCoords = ByteBuffer.allocateDirect(QUAD_COORDS.length * 4)
+			.order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+	private volatile float scale = DEFAULT_SCALE;
+	private volatile long frameBudgetNanos = 1_000_000_000L / DEFAULT_TARGET_FPS;
+
+	private long windowNanos;
+	private int windowFrames;
+	private int fastWindows;
+	private int scaleChanges;
+
+	private int program;
+	private int positionAttribute;
+	private int quadBufferId;
+	private int vertexArray;
+
+	private int framebuffer;
+	private TextureManager.Texture colorTexture;
+	private int colorTextureId;
+	private int depthRenderbuffer;
+	private int targetWidth;
+	private int targetHeight;
+	private boolean failed;
+
+	private int viewportWidth = 1;
+	private int viewportHeight = 1;
+	// Рисование идёт во внеэкранный буфер только между begin и end этого кадра
+	private boolean active;
+
+	public ScaledRenderTarget() {
+		quadCoords.put(QUAD_COORDS);
+		quadCoords.position(0);
+	}
+
+	public void createOnGlThread(Context context) throws IOException {
+		int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+		int fragmentShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+		program = ShaderUtil.createProgram(TAG, vertexShader, fragmentShader);
+		GlState gl = GlState.getInstance();
+		gl.useProgram(program);
+		positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
+		GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "u_Texture"), 0);
+		ShaderUtil.checkGLError(TAG, "Program creation");
+
+		int[] buffers = new int[1];
+		GLES20.glGenBuffers(1, buffers, 0);
+		quadBufferId = buffers[0];
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, quadBufferId);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD_COORDS.length * 4, quadCoords, GLES20.GL_STATIC_DRAW);
+		vertexArray = 0;
+		if (gl.isGles3()) {
+			vertexArray = gl.createVertexArray();
+			gl.bindVertexArray(vertexArray);
+			bindAttributes();
+			gl.bindVertexArray(0);
+		}
+		// Старые объекты погибли вместе с контекстом, цель пересоздаётся при первом кадре
+		framebuffer = 0;
+		colorTexture = null;
+		colorTextureId = 0;
+		depthRenderbuffer = 0;
+		targetWidth = 0;
+		targetHeight = 0;
+		failed = false;
+		ShaderUtil.checkGLError(TAG, "Composite setup");
+	}
+
+	public void release() {
+		GlState gl = GlState.getInstance();
+		deleteTarget();
+		gl.deleteVertexArray(vertexArray);
+		if (quadBufferId != 0) {
+			gl.deleteBuffers(quadBufferId);
+		}
+		gl.deleteProgram(program);
+		vertexArray = 0;
+		quadBufferId = 0;
+		program = 0;
+	}
+
+	public void setViewportSize(int width, int height) {
+		viewportWidth = Math.max(width, 1);
+		viewportHeight = Math.max(height, 1);
+	}
+
+	public void setScale(float scale) {
+		this.scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+	}
+
+	public float getScale() {
+		return scale;
+	}
+
+	public void setTargetFps(int fps) {
+		frameBudgetNanos = 1_000_000_000L / Math.max(fps, 1);
+	}
+
+	public int getScaleChanges() {
+		return scaleChanges;
+	}
+
+	public void onFrameInterval(long intervalNanos) {
+		if (intervalNanos <= 0 || intervalNanos > MAX_FRAME_INTERVAL_NANOS) {
+			return;
+		}
+		windowNanos += intervalNanos;
+		if (++windowFrames < ADAPT_WINDOW_FRAMES) {
+			return;
+		}
+		long average = windowNanos / windowFrames;
+		windowNanos = 0;
+		windowFrames = 0;
+		long budget = frameBudgetNanos;
+		float currentScale = scale;
+		float nextScale = currentScale;
+		// Кадр, пришедший позже частоты камеры, снижает разрешение сразу, а запас возвращает его постепенно
+		if (average > budget * SLOW_FRAME_RATIO) {
+			fastWindows = 0;
+			nextScale = currentScale - SCALE_STEP;
+		} else if (average < budget * FAST_FRAME_RATIO) {
+			if (++fastWindows >= RAISE_AFTER_WINDOWS) {
+				fastWindows = 0;
+				nextScale = currentScale + SCALE_STEP;
+			}
+		} else {
+			fastWindows = 0;
+		}
+		setScale(Math.round(nextScale / SCALE_STEP) * SCALE_STEP);
+		if (scale != currentScale) {
+			scaleChanges++;
+			Log.d(TAG, "Render scale " + currentScale + " -> " + scale + " at " + average / 1000 + " us per frame");
+		}
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public int getTargetWidth() {
+		return targetWidth;
+	}
+
+	public int getTargetHeight() {
+		return targetHeight;
+	}
+
+	public void begin() {
+		float currentScale = scale;
+		active = !failed && currentScale < MAX_SCALE;
+		if (!active) {
+			return;
+		}
+		int width = Math.max(1, Math.round(viewportWidth * currentScale));
+		int height = Math.max(1, Math.round(viewportHeight * currentScale));
+		if (width != targetWidth || height != targetHeight) {
+			if (!allocateTarget(width, height)) {
+				active = false;
+				return;
+			}
+		}
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glViewport(0, 0, targetWidth, targetHeight);
+		GlState gl = GlState.getInstance();
+		gl.setDepthMask(true);
+		gl.setColorMask(true);
+		gl.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
+		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+	}
+
+	public void end() {
+		if (!active) {
+			return;
+		}
+		active = false;
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+		// Растяжение до экрана делает билинейная фильтрация текстуры, отдельный проход не нужен
+		GlState gl = GlState.getInstance();
+		gl.useProgram(program);
+		gl.bindTexture(0, GLES20.GL_TEXTURE_2D, colorTextureId);
+		if (vertexArray != 0) {
+			gl.bindVertexArray(vertexArray);
+		} else {
+			gl.bindVertexArray(0);
+			bindAttributes();
+		}
+		gl.setDepthTest(false);
+		gl.setDepthMask(false);
+		gl.setBlend(true);
+		gl.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+		ShaderUtil.checkGLError(TAG, "Composite");
+	}
+
+	private void bindAttributes() {
+		GlState gl = GlState.getInstance();
+		gl.bindBuffer(GLES20.GL_ARRAY_BUFFER, quadBufferId);
+		GLES20.glVertexAttribPointer(positionAttribute, 2, GLES20.GL_FLOAT, false, 0, 0);
+		gl.useAttributes(GlState.attributeBit(positionAttribute));
+	}
+
+	private boolean allocateTarget(int width, int height) {
+		GlState gl = GlState.getInstance();
+		TextureManager textureManager = TextureManager.getInstance();
+		long colorBytes = (long) width * height * BYTES_PER_PIXEL;
+		if (framebuffer == 0) {
+			int[] ids = new int[1];
+			GLES20.glGenFramebuffers(1, ids, 0);
+			framebuffer = ids[0];
+			// Текстура цели занимает ту же видеопамять, что и ресурсы, поэтому учитывается в общем бюджете
+			colorTexture = textureManager.createExternal(COLOR_TEXTURE_KEY, GLES20.GL_TEXTURE_2D, colorBytes);
+			colorTextureId = textureManager.use(colorTexture);
+			GLES20.glGenRenderbuffers(1, ids, 0);
+			depthRenderbuffer = ids[0];
+		}
+		textureManager.resizeExternal(colorTexture, width, height, colorBytes);
+		gl.bindTexture(0, GLES20.GL_TEXTURE_2D, colorTextureId);
+		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA,
+				GLES20.GL_UNSIGNED_BYTE, null);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, depthRenderbuffer);
+		GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width, height);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
+				colorTextureId, 0);
+		GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+				GLES20.GL_RENDERBUFFER, depthRenderbuffer);
+		int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+			// Без внеэкранного буфера объекты просто рисуются в полном разрешении
+			Log.e(TAG, "Offscreen framebuffer incomplete: " + status);
+			deleteTarget();
+			failed = true;
+			return false;
+		}
+		targetWidth = width;
+		targetHeight = height;
+		Log.i(TAG, "Offscreen target " + width + "x" + height + " for " + viewportWidth + "x" + viewportHeight);
+		return true;
+	}
+
+	private void deleteTarget() {
+		if (framebuffer != 0) {
+			GLES20.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+			GLES20.glDeleteRenderbuffers(1, new int[] { depthRenderbuffer }, 0);
+			TextureManager.getInstance().release(colorTexture);
+		}
+		framebuffer = 0;
+		colorTexture = null;
+		colorTextureId = 0;
+		depthRenderbuffer = 0;
+		targetWidth = 0;
+		targetHeight = 0;
+	}
+}
@@ -22,17 +22,32 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
 public final class ShaderUtil {
+	public static final String UNIFORM_BLOCKS_SHADER_FLAG = "USE_UNIFORM_BLOCKS";
+
+	// Шейдеры пишутся на GLSL ES 1.00, а для блоков юниформов тот же текст собирается как GLSL ES 3.00
+	private static final String ES3_VERTEX_PROLOGUE = "#version 300 es\n#define attribute in\n#define varying out\n"
+			+ "#define texture2D texture\n";
+	private static final String ES3_FRAGMENT_PROLOGUE = "#version 300 es\n#define varying in\n"
+			+ "#define texture2D texture\nout mediump vec4 o_FragColor;\n#define gl_FragColor o_FragColor\n";
+
+	private static final Map<String, String> SHADER_SOURCES = new HashMap<>();
+
 	public static int loadGLShader(String tag, Context context, int type, String filename,
 			Map<String, Integer> defineValuesMap) throws IOException {
-		String code = readShaderFileFromAssets(context, filename);
+		String code = getShaderSource(context, filename);
 		String defines = "";
 		for (Map.Entry<String, Integer> entry : defineValuesMap.entrySet()) {
 			defines += "#define " + entry.getKey() + " " + entry.getValue() + "\n";
 		}
+		Integer uniformBlocks = defineValuesMap.get(UNIFORM_BLOCKS_SHADER_FLAG);
+		if (uniformBlocks != null && uniformBlocks != 0) {
+			defines = (type == GLES20.GL_VERTEX_SHADER ? ES3_VERTEX_PROLOGUE : ES3_FRAGMENT_PROLOGUE) + defines;
+		}
 		code = defines + code;
 		int shader = GLES20.glCreateShader(type);
 		GLES20.glShaderSource(shader, code);
@@ -67,6 +82,39 @@ public final class ShaderUtil {
 		}
 	}
 	
+	public static int createProgram(String tag, int vertexShader, int fragmentShader, String... attributes) {
+		int program = GLES20.glCreateProgram();
+		GLES20.glAttachShader(program, vertexShader);
+		GLES20.glAttachShader(program, fragmentShader);
+		// Атрибуты из списка получают номера по порядку, чтобы разные программы читали одни и те же массивы
+		for (int i = 0; i < attributes.length; i++) {
+			GLES20.glBindAttribLocation(program, i, attributes[i]);
+		}
+		GLES20.glLinkProgram(program);
+		// Шейдеры удалятся вместе с программой, отдельно их хранить не нужно
+		GLES20.glDeleteShader(vertexShader);
+		GLES20.glDeleteShader(fragmentShader);
+		final int[] linkStatus = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		if (linkStatus[0] == 0) {
+			Log.e(tag, "Oh nose program broke: " + GLES20.glGetProgramInfoLog(program));
+			GLES20.glDeleteProgram(program);
+			throw new RuntimeException("Oh nose everything broke");
+		}
+		return program;
+	}
+
+	private static String getShaderSource(Context context, String filename) throws IOException {
+		synchronized (SHADER_SOURCES) {
+			String code = SHADER_SOURCES.get(filename);
+			if (code == null) {
+				code = readShaderFileFromAssets(context, filename);
+				SHADER_SOURCES.put(filename, code);
+			}
+			return code;
+		}
+	}
+
 	private static String readShaderFileFromAssets(Context context, String filename) throws IOException {
 		try (InputStream inputStream = context.getAssets().open(filename);
 				BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public final class TextureManager {
+	private static final String TAG = TextureManager.class.getSimpleName();
+
+	private static final long DEFAULT_BUDGET_BYTES = 32L * 1024 * 1024;
+
+	private static final TextureManager INSTANCE = new TextureManager();
+
+	// Битмап остаётся во владении загрузчика и после загрузки в видеопамять не освобождается
+	public interface Loader {
+		Bitmap load() throws IOException;
+	}
+
+	public static final class Texture {
+		private final String key;
+		private final int target;
+		private final Loader loader;
+		private final boolean mipmap;
+		private final boolean evictable;
+		private int wrapS = GLES20.GL_REPEAT;
+		private int wrapT = GLES20.GL_REPEAT;
+		private int textureId;
+		private int width;
+		private int height;
+		private long bytes;
+		private long lastUsedFrame;
+		private int references;
+		// Повторная загрузка уже идёт в фоне, второй раз её не ставим
+		private volatile boolean reloading;
+
+		private Texture(String key, int target, Loader loader, boolean mipmap, boolean evictable) {
+			this.key = key;
+			this.target = target;
+			this.loader = loader;
+			this.mipmap = mipmap;
+			this.evictable = evictable;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public void setWrapMode(int wrapS, int wrapT) {
+			this.wrapS = wrapS;
+			this.wrapT = wrapT;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public boolean isResident() {
+			return textureId != 0;
+		}
+	}
+
+	public static final class Report {
+		public final long budgetBytes;
+		public final long residentBytes;
+		public final int registeredCount;
+		public final int residentCount;
+		public final int evictionCount;
+		public final int reloadCount;
+		public final List<String> residentTextures;
+
+		Report(long budgetBytes, long residentBytes, int registeredCount, int residentCount, int evictionCount,
+				int reloadCount, List<String> residentTextures) {
+			this.budgetBytes = budgetBytes;
+			this.residentBytes = residentBytes;
+			this.registeredCount = registeredCount;
+			this.residentCount = residentCount;
+			this.evictionCount = evictionCount;
+			this.reloadCount = reloadCount;
+			this.residentTextures = residentTextures;
+		}
+
+		@Override
+		public String toString() {
+			return "textures " + residentCount + "/" + registeredCount + ", " + (residentBytes / 1024) + "/"
+					+ (budgetBytes / 1024) + " KiB, evictions " + evictionCount + ", reloads " + reloadCount;
+		}
+	}
+
+	private static final class LoadedTexture {
+		final Texture texture;
+		final Bitmap bitmap;
+
+		LoadedTexture(Texture texture, Bitmap bitmap) {
+			this.texture = texture;
+			this.bitmap = bitmap;
+		}
+	}
+
+	private final Map<String, Texture> textures = new LinkedHashMap<>();
+	// Вытесненные текстуры декодируются в фоне и загружаются в видеопамять не больше одной за кадр
+	private final Queue<LoadedTexture> loadedTextures = new ConcurrentLinkedQueue<>();
+	private final ExecutorService reloader = Executors.newSingleThreadExecutor();
+	private long budgetBytes = DEFAULT_BUDGET_BYTES;
+	private long residentBytes;
+	private long frame;
+	private int evictionCount;
+	private int reloadCount;
+
+	public static TextureManager getInstance() {
+		return INSTANCE;
+	}
+
+	private TextureManager() {}
+
+	public synchronized void setBudgetBytes(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	public synchronized long getBudgetBytes() {
+		return budgetBytes;
+	}
+
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	public synchronized Texture acquire(String key, Loader loader, boolean mipmap) {
+		Texture texture = textures.get(key);
+		if (texture == null) {
+			texture = new Texture(key, GLES20.GL_TEXTURE_2D, loader, mipmap, true);
+			textures.put(key, texture);
+		}
+		texture.references++;
+		return texture;
+	}
+
+	public Texture acquireAsset(Context context, final String assetName) {
+		final Context applicationContext = context.getApplicationContext();
+		return acquire(assetName, new Loader() {
+			@Override
+			public Bitmap load() throws IOException {
+				return AssetCache.getInstance().getBitmap(applicationContext, assetName);
+			}
+		}, /*mipmap=*/ true);
+	}
+
+	public synchronized Texture acquireStreamed(String key, boolean mipmap) {
+		return acquire(key, null, mipmap);
+	}
+
+	public synchronized Texture createExternal(String key, int target, long bytes) {
+		Texture texture = new Texture(key, target, null, false, false);
+		int[] ids = new int[1];
+		GLES20.glGenTextures(1, ids, 0);
+		texture.textureId = ids[0];
+		texture.bytes = bytes;
+		texture.references = 1;
+		residentBytes += bytes;
+		Texture previous = textures.put(key, texture);
+		if (previous != null && previous.textureId != 0) {
+			residentBytes -= previous.bytes;
+		}
+		return texture;
+	}
+
+	// Цель рисования перевыделяет свою текстуру сама, менеджер только учитывает её новый объём
+	public synchronized void resizeExternal(Texture texture, int width, int height, long bytes) {
+		if (texture.textureId != 0) {
+			residentBytes += bytes - texture.bytes;
+		}
+		texture.width = width;
+		texture.height = height;
+		texture.bytes = bytes;
+	}
+
+	// Синхронная загрузка для создания рендереров, в кадре вместо неё работает use
+	public synchronized int load(Texture texture) {
+		texture.lastUsedFrame = frame;
+		if (texture.textureId == 0 && texture.loader != null) {
+			try {
+				Bitmap bitmap = texture.loader.load();
+				if (bitmap != null) {
+					reloadCount += texture.width != 0 ? 1 : 0;
+					uploadLocked(texture, bitmap);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to load texture " + texture.key, e);
+			}
+		}
+		return texture.textureId;
+	}
+
+	// Вытесненная текстура возвращает 0, пока её копия не будет загружена в конце одного из следующих кадров
+	public synchronized int use(Texture texture) {
+		texture.lastUsedFrame = frame;
+		if (texture.textureId == 0 && texture.loader != null && !texture.reloading) {
+			texture.reloading = true;
+			final Texture pending = texture;
+			reloader.execute(new Runnable() {
+				@Override
+				public void run() {
+					Bitmap bitmap = null;
+					try {
+						bitmap = pending.loader.load();
+					} catch (IOException e) {
+						Log.e(TAG, "Unable to load texture " + pending.key, e);
+					}
+					if (bitmap != null) {
+						loadedTextures.add(new LoadedTexture(pending, bitmap));
+					} else {
+						pending.reloading = false;
+					}
+				}
+			});
+		}
+		return texture.textureId;
+	}
+
+	public synchronized void upload(Texture texture, Bitmap bitmap) {
+		texture.lastUsedFrame = frame;
+		uploadLocked(texture, bitmap);
+	}
+
+	public synchronized void release(Texture texture) {
+		if (--texture.references > 0) {
+			return;
+		}
+		deleteLocked(texture);
+		textures.remove(texture.key);
+	}
+
+	public synchronized void onFrameEnd() {
+		LoadedTexture loaded = loadedTextures.poll();
+		if (loaded != null) {
+			Texture texture = loaded.texture;
+			texture.reloading = false;
+			// Пока шла загрузка, текстуру могли освободить или уже загрузить заново
+			if (texture.textureId == 0 && textures.get(texture.key) == texture) {
+				reloadCount += texture.width != 0 ? 1 : 0;
+				// Загруженная текстура нужна уже следующему кадру, вытеснять её сразу нельзя
+				texture.lastUsedFrame = frame;
+				uploadLocked(texture, loaded.bitmap);
+			}
+		}
+		// Отсечение идёт до смены номера кадра: нарисованное в этом кадре не вытесняется, лучше превысить бюджет
+		trimLocked(0);
+		frame++;
+	}
+
+	public synchronized void trim(long requiredBytes) {
+		trimLocked(requiredBytes);
+	}
+
+	public synchronized void onContextLost() {
+		// Объекты старого контекста уже уничтожены вместе с ним, удалять их не нужно
+		for (Texture texture : new ArrayList<>(textures.values())) {
+			if (texture.loader == null && !texture.evictable) {
+				textures.remove(texture.key);
+			}
+			texture.textureId = 0;
+		}
+		residentBytes = 0;
+	}
+
+	public synchronized Report getReport() {
+		List<String> resident = new ArrayList<>();
+		int residentCount = 0;
+		for (Texture texture : textures.values()) {
+			if (texture.textureId != 0) {
+				residentCount++;
+				resident.add(texture.key + " " + texture.width + "x" + texture.height + " " + (texture.bytes / 1024)
+						+ " KiB");
+			}
+		}
+		return new Report(budgetBytes, residentBytes, textures.size(), residentCount, evictionCount, reloadCount,
+				resident);
+	}
+
+	private void uploadLocked(Texture texture, Bitmap bitmap) {
+		if (texture.textureId == 0) {
+			int[] ids = new int[1];
+			GLES20.glGenTextures(1, ids, 0);
+			texture.textureId = ids[0];
+		} else {
+			residentBytes -= texture.bytes;
+		}
+		GlState.getInstance().bindTexture(0, texture.target, texture.textureId);
+		GLES20.glTexParameteri(texture.target, GLES20.GL_TEXTURE_WRAP_S, texture.wrapS);
+		GLES20.glTexParameteri(texture.target, GLES20.GL_TEXTURE_WRAP_T, texture.wrapT);
+		GLES20.glTexParameteri(texture.target, GLES20.GL_TEXTURE_MIN_FILTER,
+				texture.mipmap ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(texture.target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		GLUtils.texImage2D(texture.target, 0, bitmap, 0);
+		if (texture.mipmap) {
+			GLES20.glGenerateMipmap(texture.target);
+		}
+		ShaderUtil.checkGLError(TAG, "Texture loading");
+		texture.width = bitmap.getWidth();
+		texture.height = bitmap.getHeight();
+		texture.bytes = computeBytes(bitmap, texture.mipmap);
+		residentBytes += texture.bytes;
+		trimLocked(0);
+	}
+
+	private void trimLocked(long requiredBytes) {
+		while (residentBytes + requiredBytes > budgetBytes) {
+			Texture oldest = null;
+			for (Texture texture : textures.values()) {
+				// Текстуры, уже использованные в текущем кадре, вытеснять нельзя
+				if (!texture.evictable || texture.textureId == 0 || texture.lastUsedFrame >= frame) {
+					continue;
+				}
+				if (oldest == null || texture.lastUsedFrame < oldest.lastUsedFrame) {
+					oldest = texture;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			deleteLocked(oldest);
+			evictionCount++;
+			Log.d(TAG, "Evicted " + oldest.key + ", resident " + residentBytes + " bytes");
+		}
+	}
+
+	private void deleteLocked(Texture texture) {
+		if (texture.textureId == 0) {
+			return;
+		}
+		GlState.getInstance().deleteTexture(texture.textureId);
+		texture.textureId = 0;
+		residentBytes -= texture.bytes;
+	}
+
+	private static long computeBytes(Bitmap bitmap, boolean mipmap) {
+		int bytesPerPixel;
+		Bitmap.Config config = bitmap.getConfig();
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			bytesPerPixel = 2;
+		} else if (config == Bitmap.Config.ALPHA_8) {
+			bytesPerPixel = 1;
+		} else {
+			bytesPerPixel = 4;
+		}
+		long base = (long) bitmap.getWidth() * bitmap.getHeight() * bytesPerPixel;
+		// Полная цепочка mipmap добавляет треть к базовому уровню
+		return mipmap ? base + base / 3 : base;
+	}
+}
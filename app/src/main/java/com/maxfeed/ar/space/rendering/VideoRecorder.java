@@ -0,0 +1,286 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.rendering;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class VideoRecorder {
+	private static final String TAG = VideoRecorder.class.getSimpleName();
+
+	public interface Listener {
+		// Приходит из потока упаковки после закрытия файла
+		void onRecordingFinished(File file, long frames, Exception exception);
+	}
+
+	private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+	private static final int FRAME_RATE = 30;
+	private static final int I_FRAME_INTERVAL = 1;
+	private static final int MAX_SIDE = 1280;
+	private static final float BITS_PER_PIXEL = 0.2f;
+	private static final long DRAIN_TIMEOUT_US = 10000;
+	// Сглаживание стоимости записи для показа: примерно последние полсекунды кадров
+	private static final float COST_SMOOTHING = 0.05f;
+
+	private MediaCodec encoder;
+	private MediaMuxer muxer;
+	private Surface inputSurface;
+	private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+	private EGLContext context = EGL14.EGL_NO_CONTEXT;
+	private EGLSurface encoderSurface = EGL14.EGL_NO_SURFACE;
+	private int width;
+	private int height;
+	private long firstTimestamp;
+	private long lastTimestamp;
+
+	private volatile boolean recording;
+	private volatile long recordedFrames;
+	private volatile long skippedFrames;
+	private volatile float frameCostMicros;
+	private volatile long startedMillis;
+
+	// Все методы, кроме счётчиков, вызываются в потоке GL с текущим контекстом GLSurfaceView
+	public boolean start(File file, int viewportWidth, int viewportHeight, Listener listener) {
+		if (recording) {
+			return true;
+		}
+		if (!GlState.getInstance().isGles3()) {
+			// Без glBlitFramebuffer кадр пришлось бы рисовать дважды, на GLES 2.0 запись не поддерживается
+			Log.w(TAG, "Recording needs GLES 3.0");
+			return false;
+		}
+		float scale = Math.min(1.0f, (float) MAX_SIDE / Math.max(viewportWidth, viewportHeight));
+		// Кодировщики надёжно принимают только размеры, кратные 16
+		width = Math.max(16, Math.round(viewportWidth * scale) & ~15);
+		height = Math.max(16, Math.round(viewportHeight * scale) & ~15);
+		MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+		format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, Math.round(width * height * FRAME_RATE * BITS_PER_PIXEL));
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+		try {
+			encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+			encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			inputSurface = encoder.createInputSurface();
+			encoder.start();
+			muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			display = EGL14.eglGetCurrentDisplay();
+			context = EGL14.eglGetCurrentContext();
+			encoderSurface = EGL14.eglCreateWindowSurface(display, currentConfig(), inputSurface,
+					new int[] { EGL14.EGL_NONE }, 0);
+			if (encoderSurface == null || encoderSurface == EGL14.EGL_NO_SURFACE) {
+				throw new IllegalStateException("eglCreateWindowSurface failed: " + EGL14.eglGetError());
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.e(TAG, "Oh nose everything broke", e);
+			releaseEncoder();
+			return false;
+		}
+		firstTimestamp = -1;
+		lastTimestamp = -1;
+		recordedFrames = 0;
+		skippedFrames = 0;
+		frameCostMicros = 0;
+		startedMillis = SystemClock.elapsedRealtime();
+		recording = true;
+		startMuxing(file, encoder, muxer, listener);
+		Log.i(TAG, "Recording " + width + "x" + height + " to " + file);
+		return true;
+	}
+
+	private EGLConfig currentConfig() {
+		// Поверхность кодировщика должна быть в той же конфигурации, что и контекст, иначе он её не примет
+		int[] value = new int[1];
+		EGL14.eglQueryContext(display, context, EGL14.EGL_CONFIG_ID, value, 0);
+		int[] attributes = { EGL14.EGL_CONFIG_ID, value[0], EGL14.EGL_NONE };
+		EGLConfig[] configs = new EGLConfig[1];
+		int[] count = new int[1];
+		if (!EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+			throw new IllegalStateException("No EGL config for the current context");
+		}
+		return configs[0];
+	}
+
+	// Вызывается после того, как кадр полностью собран в основном буфере окна
+	public void onFrameEnd(long timestampNanos, int viewportWidth, int viewportHeight) {
+		if (!recording) {
+			return;
+		}
+		if (timestampNanos <= lastTimestamp) {
+			// Кадр камеры не обновился, повтор только раздул бы файл одинаковыми кадрами
+			skippedFrames++;
+			return;
+		}
+		long start = System.nanoTime();
+		EGLSurface drawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+		EGLSurface readSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+		// Окно остаётся поверхностью чтения, поэтому копирование кадра не выходит за пределы GPU
+		if (!EGL14.eglMakeCurrent(display, encoderSurface, readSurface, context)) {
+			Log.e(TAG, "eglMakeCurrent failed: " + EGL14.eglGetError());
+			stop();
+			return;
+		}
+		GLES30.glBlitFramebuffer(0, 0, viewportWidth, viewportHeight, 0, 0, width, height,
+				GLES20.GL_COLOR_BUFFER_BIT, GLES20.GL_LINEAR);
+		if (firstTimestamp < 0) {
+			firstTimestamp = timestampNanos;
+		}
+		// Время кадра камеры, а не отрисовки: видео не ускоряется и не замедляется вслед за GPU
+		EGLExt.eglPresentationTimeANDROID(display, encoderSurface, timestampNanos - firstTimestamp);
+		EGL14.eglSwapBuffers(display, encoderSurface);
+		EGL14.eglMakeCurrent(display, drawSurface, readSurface, context);
+		lastTimestamp = timestampNanos;
+		recordedFrames++;
+		float cost = (System.nanoTime() - start) / 1000.0f;
+		frameCostMicros = frameCostMicros == 0 ? cost : frameCostMicros + (cost - frameCostMicros) * COST_SMOOTHING;
+	}
+
+	public void stop() {
+		if (!recording) {
+			return;
+		}
+		recording = false;
+		// Конец потока доходит до упаковщика через кодировщик, файл закрывается уже там
+		encoder.signalEndOfInputStream();
+		EGL14.eglDestroySurface(display, encoderSurface);
+		encoderSurface = EGL14.EGL_NO_SURFACE;
+		inputSurface.release();
+		inputSurface = null;
+		encoder = null;
+		muxer = null;
+		Log.i(TAG, "Recorded " + recordedFrames + " frames, skipped " + skippedFrames + ", avg cost "
+				+ frameCostMicros + " us");
+	}
+
+	public boolean isRecording() {
+		return recording;
+	}
+
+	public long getRecordedFrames() {
+		return recordedFrames;
+	}
+
+	public float getFrameCostMillis() {
+		return frameCostMicros / 1000.0f;
+	}
+
+	public long getElapsedMillis() {
+		return recording ? SystemClock.elapsedRealtime() - startedMillis : 0;
+	}
+
+	private void releaseEncoder() {
+		if (encoderSurface != EGL14.EGL_NO_SURFACE && encoderSurface != null) {
+			EGL14.eglDestroySurface(display, encoderSurface);
+		}
+		encoderSurface = EGL14.EGL_NO_SURFACE;
+		if (inputSurface != null) {
+			inputSurface.release();
+			inputSurface = null;
+		}
+		if (encoder != null) {
+			encoder.release();
+			encoder = null;
+		}
+		if (muxer != null) {
+			muxer.release();
+			muxer = null;
+		}
+	}
+
+	private static void startMuxing(final File file, final MediaCodec encoder, final MediaMuxer muxer,
+			final Listener listener) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long frames = 0;
+				Exception error = null;
+				boolean started = false;
+				try {
+					MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+					int track = -1;
+					while (true) {
+						int index = encoder.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+						if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+							// Параметры кодека приходят один раз перед первым кадром, до них упаковщик не запустить
+							track = muxer.addTrack(encoder.getOutputFormat());
+							muxer.start();
+							started = true;
+							continue;
+						}
+						if (index < 0) {
+							continue;
+						}
+						ByteBuffer data = encoder.getOutputBuffer(index);
+						if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+							info.size = 0;
+						}
+						if (info.size > 0 && started && data != null) {
+							data.position(info.offset);
+							data.limit(info.offset + info.size);
+							muxer.writeSampleData(track, data, info);
+							frames++;
+						}
+						encoder.releaseOutputBuffer(index, false);
+						if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+							break;
+						}
+					}
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Oh nose everything broke", e);
+					error = e;
+				}
+				try {
+					encoder.stop();
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Encoder stop failed", e);
+				}
+				encoder.release();
+				try {
+					if (started) {
+						muxer.stop();
+					}
+				} catch (RuntimeException e) {
+					// Без единого кадра MP4 не закрыть, такой файл бесполезен
+					if (error == null) {
+						error = e;
+					}
+				}
+				muxer.release();
+				if (error == null && frames == 0) {
+					error = new IOException("No frames were recorded");
+				}
+				listener.onRecordingFinished(file, frames, error);
+			}
+		}, TAG);
+		thread.start();
+	}
+}
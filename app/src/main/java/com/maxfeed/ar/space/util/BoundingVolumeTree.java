@@ -0,0 +1,431 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.util;
+
+import java.util.Arrays;
+
+public class BoundingVolumeTree {
+	public static final int NONE = -1;
+	private static final int INITIAL_CAPACITY = 16;
+
+	public interface Visitor {
+		// false прекращает обход
+		boolean visit(int proxy, int userData);
+	}
+
+	public interface RayVisitor {
+		// Возвращает новую дальность луча: ближнее попадание отсекает всё, что за ним
+		float visit(int proxy, int userData, float maxDistance);
+	}
+
+	// Запас вокруг листа, чтобы мелкое дрожание позы не перестраивало дерево каждый кадр
+	private final float margin;
+
+	// Узлы лежат в плотных массивах, свободные связаны в стек через parents
+	private float[] boxes;
+	private int[] parents;
+	private int[] firstChildren;
+	private int[] secondChildren;
+	private int[] heights;
+	private int[] userData;
+	private int capacity;
+	private int freeHead = NONE;
+	private int root = NONE;
+	private int leafCount;
+
+	private int[] stack = new int[64];
+
+	public BoundingVolumeTree(float margin) {
+		this.margin = margin;
+		allocateStorage(INITIAL_CAPACITY);
+	}
+
+	public int insert(float[] bounds, int data) {
+		int leaf = allocateNode();
+		setFatBox(leaf, bounds);
+		userData[leaf] = data;
+		heights[leaf] = 0;
+		insertLeaf(leaf);
+		leafCount++;
+		return leaf;
+	}
+
+	public void remove(int proxy) {
+		removeLeaf(proxy);
+		freeNode(proxy);
+		leafCount--;
+	}
+
+	public boolean update(int proxy, float[] bounds) {
+		int base = proxy * 6;
+		if (boxes[base] <= bounds[0] && boxes[base + 1] <= bounds[1] && boxes[base + 2] <= bounds[2]
+				&& boxes[base + 3] >= bounds[3] && boxes[base + 4] >= bounds[4] && boxes[base + 5] >= bounds[5]) {
+			return false;
+		}
+		removeLeaf(proxy);
+		setFatBox(proxy, bounds);
+		insertLeaf(proxy);
+		return true;
+	}
+
+	public int getUserData(int proxy) {
+		return userData[proxy];
+	}
+
+	public int size() {
+		return leafCount;
+	}
+
+	public int getHeight() {
+		return root == NONE ? 0 : heights[root];
+	}
+
+	public void clear() {
+		root = NONE;
+		leafCount = 0;
+		freeHead = NONE;
+		for (int i = capacity - 1; i >= 0; i--) {
+			parents[i] = freeHead;
+			heights[i] = -1;
+			freeHead = i;
+		}
+	}
+
+	public void queryFrustum(float[] planes, Visitor visitor) {
+		if (root == NONE) {
+			return;
+		}
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			int node = stack[--top];
+			if (!intersectsFrustum(node, planes)) {
+				continue;
+			}
+			if (heights[node] == 0) {
+				if (!visitor.visit(node, userData[node])) {
+					return;
+				}
+				continue;
+			}
+			top = push(top, firstChildren[node], secondChildren[node]);
+		}
+	}
+
+	public void raycast(float originX, float originY, float originZ, float directionX, float directionY,
+			float directionZ, float maxDistance, RayVisitor visitor) {
+		if (root == NONE) {
+			return;
+		}
+		float inverseX = 1.0f / directionX;
+		float inverseY = 1.0f / directionY;
+		float inverseZ = 1.0f / directionZ;
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			int node = stack[--top];
+			int base = node * 6;
+			// Пересечение с тремя парами плоскостей коробки
+			float near = 0.0f;
+			float far = maxDistance;
+			float t1 = (boxes[base] - originX) * inverseX;
+			float t2 = (boxes[base + 3] - originX) * inverseX;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+			t1 = (boxes[base + 1] - originY) * inverseY;
+			t2 = (boxes[base + 4] - originY) * inverseY;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+			t1 = (boxes[base + 2] - originZ) * inverseZ;
+			t2 = (boxes[base + 5] - originZ) * inverseZ;
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+			if (near > far) {
+				continue;
+			}
+			if (heights[node] == 0) {
+				maxDistance = visitor.visit(node, userData[node], maxDistance);
+				if (maxDistance <= 0) {
+					return;
+				}
+				continue;
+			}
+			top = push(top, firstChildren[node], secondChildren[node]);
+		}
+	}
+
+	public static void transformBounds(float[] matrix, float[] local, float[] out) {
+		// Коробка после поворота: центр переносится, половинные размеры суммируются по модулям матрицы
+		float centerX = (local[0] + local[3]) * 0.5f;
+		float centerY = (local[1] + local[4]) * 0.5f;
+		float centerZ = (local[2] + local[5]) * 0.5f;
+		float halfX = (local[3] - local[0]) * 0.5f;
+		float halfY = (local[4] - local[1]) * 0.5f;
+		float halfZ = (local[5] - local[2]) * 0.5f;
+		for (int row = 0; row < 3; row++) {
+			float center = matrix[row] * centerX + matrix[4 + row] * centerY + matrix[8 + row] * centerZ
+					+ matrix[12 + row];
+			float extent = Math.abs(matrix[row]) * halfX + Math.abs(matrix[4 + row]) * halfY
+					+ Math.abs(matrix[8 + row]) * halfZ;
+			out[row] = center - extent;
+			out[row + 3] = center + extent;
+		}
+	}
+
+	public static void extractFrustumPlanes(float[] viewProjection, float[] out) {
+		// Плоскости отсечения как суммы и разности строк матрицы, нормали смотрят внутрь
+		for (int plane = 0; plane < 6; plane++) {
+			int row = plane / 2;
+			float sign = (plane & 1) == 0 ? 1.0f : -1.0f;
+			float a = viewProjection[3] + sign * viewProjection[row];
+			float b = viewProjection[7] + sign * viewProjection[4 + row];
+			float c = viewProjection[11] + sign * viewProjection[8 + row];
+			float d = viewProjection[15] + sign * viewProjection[12 + row];
+			float reciprocalLength = 1.0f / (float) Math.sqrt(a * a + b * b + c * c);
+			out[plane * 4] = a * reciprocalLength;
+			out[plane * 4 + 1] = b * reciprocalLength;
+			out[plane * 4 + 2] = c * reciprocalLength;
+			out[plane * 4 + 3] = d * reciprocalLength;
+		}
+	}
+
+	private boolean intersectsFrustum(int node, float[] planes) {
+		int base = node * 6;
+		for (int plane = 0; plane < 24; plane += 4) {
+			float a = planes[plane];
+			float b = planes[plane + 1];
+			float c = planes[plane + 2];
+			// Проверяется только вершина коробки, дальше всех продвинутая вдоль нормали
+			float x = a >= 0 ? boxes[base + 3] : boxes[base];
+			float y = b >= 0 ? boxes[base + 4] : boxes[base + 1];
+			float z = c >= 0 ? boxes[base + 5] : boxes[base + 2];
+			if (a * x + b * y + c * z + planes[plane + 3] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int push(int top, int first, int second) {
+		if (top + 2 > stack.length) {
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		}
+		stack[top++] = first;
+		stack[top++] = second;
+		return top;
+	}
+
+	private void setFatBox(int node, float[] bounds) {
+		int base = node * 6;
+		boxes[base] = bounds[0] - margin;
+		boxes[base + 1] = bounds[1] - margin;
+		boxes[base + 2] = bounds[2] - margin;
+		boxes[base + 3] = bounds[3] + margin;
+		boxes[base + 4] = bounds[4] + margin;
+		boxes[base + 5] = bounds[5] + margin;
+	}
+
+	private void insertLeaf(int leaf) {
+		if (root == NONE) {
+			root = leaf;
+			parents[leaf] = NONE;
+			return;
+		}
+		// Спуск туда, где объединение с новым листом увеличивает площадь дерева меньше всего
+		int index = root;
+		while (heights[index] > 0) {
+			int first = firstChildren[index];
+			int second = secondChildren[index];
+			float area = area(index);
+			float combinedArea = unionArea(index, leaf);
+			float cost = 2.0f * combinedArea;
+			float inheritance = 2.0f * (combinedArea - area);
+			float firstCost = descendCost(first, leaf) + inheritance;
+			float secondCost = descendCost(second, leaf) + inheritance;
+			if (cost < firstCost && cost < secondCost) {
+				break;
+			}
+			index = firstCost < secondCost ? first : second;
+		}
+		int sibling = index;
+		int oldParent = parents[sibling];
+		int newParent = allocateNode();
+		parents[newParent] = oldParent;
+		heights[newParent] = heights[sibling] + 1;
+		union(newParent, sibling, leaf);
+		if (oldParent != NONE) {
+			replaceChild(oldParent, sibling, newParent);
+		} else {
+			root = newParent;
+		}
+		firstChildren[newParent] = sibling;
+		secondChildren[newParent] = leaf;
+		parents[sibling] = newParent;
+		parents[leaf] = newParent;
+		refitUpwards(newParent);
+	}
+
+	private void removeLeaf(int leaf) {
+		if (leaf == root) {
+			root = NONE;
+			return;
+		}
+		int parent = parents[leaf];
+		int grandParent = parents[parent];
+		int sibling = firstChildren[parent] == leaf ? secondChildren[parent] : firstChildren[parent];
+		if (grandParent != NONE) {
+			replaceChild(grandParent, parent, sibling);
+			parents[sibling] = grandParent;
+			freeNode(parent);
+			refitUpwards(grandParent);
+		} else {
+			root = sibling;
+			parents[sibling] = NONE;
+			freeNode(parent);
+		}
+	}
+
+	private void refitUpwards(int index) {
+		while (index != NONE) {
+			index = balance(index);
+			int first = firstChildren[index];
+			int second = secondChildren[index];
+			heights[index] = 1 + Math.max(heights[first], heights[second]);
+			union(index, first, second);
+			index = parents[index];
+		}
+	}
+
+	private int balance(int a) {
+		if (heights[a] < 2) {
+			return a;
+		}
+		int b = firstChildren[a];
+		int c = secondChildren[a];
+		int difference = heights[c] - heights[b];
+		if (difference > 1) {
+			return rotate(a, c, b, false);
+		}
+		if (difference < -1) {
+			return rotate(a, b, c, true);
+		}
+		return a;
+	}
+
+	// Поднимает слишком высокого потомка up на место a, его младший внук переходит к a
+	private int rotate(int a, int up, int other, boolean upIsFirst) {
+		int f = firstChildren[up];
+		int g = secondChildren[up];
+		int parent = parents[a];
+		firstChildren[up] = a;
+		parents[up] = parent;
+		parents[a] = up;
+		if (parent != NONE) {
+			replaceChild(parent, a, up);
+		} else {
+			root = up;
+		}
+		int keep = heights[f] > heights[g] ? f : g;
+		int move = keep == f ? g : f;
+		secondChildren[up] = keep;
+		if (upIsFirst) {
+			firstChildren[a] = move;
+		} else {
+			secondChildren[a] = move;
+		}
+		parents[move] = a;
+		union(a, other, move);
+		union(up, a, keep);
+		heights[a] = 1 + Math.max(heights[other], heights[move]);
+		heights[up] = 1 + Math.max(heights[a], heights[keep]);
+		return up;
+	}
+
+	private void replaceChild(int parent, int oldChild, int newChild) {
+		if (firstChildren[parent] == oldChild) {
+			firstChildren[parent] = newChild;
+		} else {
+			secondChildren[parent] = newChild;
+		}
+	}
+
+	private void union(int target, int first, int second) {
+		int t = target * 6;
+		int a = first * 6;
+		int b = second * 6;
+		for (int i = 0; i < 3; i++) {
+			boxes[t + i] = Math.min(boxes[a + i], boxes[b + i]);
+			boxes[t + 3 + i] = Math.max(boxes[a + 3 + i], boxes[b + 3 + i]);
+		}
+	}
+
+	private float descendCost(int child, int leaf) {
+		float combined = unionArea(child, leaf);
+		return heights[child] == 0 ? combined : combined - area(child);
+	}
+
+	private float area(int node) {
+		int base = node * 6;
+		float dx = boxes[base + 3] - boxes[base];
+		float dy = boxes[base + 4] - boxes[base + 1];
+		float dz = boxes[base + 5] - boxes[base + 2];
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	private float unionArea(int first, int second) {
+		int a = first * 6;
+		int b = second * 6;
+		float dx = Math.max(boxes[a + 3], boxes[b + 3]) - Math.min(boxes[a], boxes[b]);
+		float dy = Math.max(boxes[a + 4], boxes[b + 4]) - Math.min(boxes[a + 1], boxes[b + 1]);
+		float dz = Math.max(boxes[a + 5], boxes[b + 5]) - Math.min(boxes[a + 2], boxes[b + 2]);
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	private int allocateNode() {
+		if (freeHead == NONE) {
+			allocateStorage(capacity * 2);
+		}
+		int node = freeHead;
+		freeHead = parents[node];
+		parents[node] = NONE;
+		firstChildren[node] = NONE;
+		secondChildren[node] = NONE;
+		heights[node] = 0;
+		return node;
+	}
+
+	private void freeNode(int node) {
+		parents[node] = freeHead;
+		heights[node] = -1;
+		freeHead = node;
+	}
+
+	private void allocateStorage(int newCapacity) {
+		int oldCapacity = capacity;
+		boxes = boxes == null ? new float[newCapacity * 6] : Arrays.copyOf(boxes, newCapacity * 6);
+		parents = parents == null ? new int[newCapacity] : Arrays.copyOf(parents, newCapacity);
+		firstChildren = firstChildren == null ? new int[newCapacity] : Arrays.copyOf(firstChildren, newCapacity);
+		secondChildren = secondChildren == null ? new int[newCapacity] : Arrays.copyOf(secondChildren, newCapacity);
+		heights = heights == null ? new int[newCapacity] : Arrays.copyOf(heights, newCapacity);
+		userData = userData == null ? new int[newCapacity] : Arrays.copyOf(userData, newCapacity);
+		capacity = newCapacity;
+		for (int i = newCapacity - 1; i >= oldCapacity; i--) {
+			parents[i] = freeHead;
+			heights[i] = -1;
+			freeHead = i;
+		}
+	}
+}
@@ -26,7 +26,8 @@ public class InstantPlacementSettings {
 
 	public void onCreate(Context context) {
 		sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_ID, Context.MODE_PRIVATE);
-		instantPlacementEnabled = sharedPreferences.getBoolean(SHARED_PREFERENCES_INSTANT_PLACEMENT_ENABLED, false);
+		instantPlacementEnabled = sharedPreferences.getBoolean(SHARED_PREFERENCES_INSTANT_PLACEMENT_ENABLED,
+				instantPlacementEnabled);
 	}
 
 	public boolean isInstantPlacementEnabled() {
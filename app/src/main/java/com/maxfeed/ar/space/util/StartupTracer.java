@@ -0,0 +1,127 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.util;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class StartupTracer {
+	private static final String TAG = StartupTracer.class.getSimpleName();
+
+	public static final String TRACE_FILE_NAME = "startup_trace.txt";
+
+	private static final int CAPACITY = 64;
+	// Файл дописывается при каждом запуске, а при переполнении начинается заново
+	private static final long MAX_FILE_BYTES = 64 * 1024;
+
+	private final File file;
+	// Отметки приходят из потока интерфейса, потока GL и потока запуска сессии
+	private final String[] phases = new String[CAPACITY];
+	private final String[] threads = new String[CAPACITY];
+	private final long[] offsets = new long[CAPACITY];
+	private final long[] durations = new long[CAPACITY];
+	private final long processStart;
+	private int count;
+	private boolean finished;
+
+	public StartupTracer(Context context) {
+		file = new File(context.getFilesDir(), TRACE_FILE_NAME);
+		// Отсчёт от запуска процесса, чтобы в трассу попала и загрузка классов до onCreate
+		processStart = Process.getStartElapsedRealtime();
+	}
+
+	public void mark(String phase) {
+		record(phase, SystemClock.elapsedRealtime(), -1);
+	}
+
+	public void span(String phase, long startMillis) {
+		long now = SystemClock.elapsedRealtime();
+		record(phase, startMillis, now - startMillis);
+	}
+
+	public synchronized boolean markOnce(String phase) {
+		for (int i = 0; i < count; i++) {
+			if (phases[i].equals(phase)) {
+				return false;
+			}
+		}
+		mark(phase);
+		return true;
+	}
+
+	private synchronized void record(String phase, long startMillis, long duration) {
+		if (finished || count == CAPACITY) {
+			return;
+		}
+		phases[count] = phase;
+		threads[count] = Thread.currentThread().getName();
+		offsets[count] = startMillis - processStart;
+		durations[count] = duration;
+		count++;
+	}
+
+	public void finish() {
+		final String trace;
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			trace = format();
+		}
+		Log.i(TAG, trace);
+		// Запись на диск не должна задерживать ни интерфейс, ни кадр
+		final ExecutorService writer = Executors.newSingleThreadExecutor();
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean append = file.length() < MAX_FILE_BYTES;
+				try (OutputStream output = new FileOutputStream(file, append)) {
+					output.write(trace.getBytes(Charset.forName("UTF-8")));
+				} catch (IOException e) {
+					Log.e(TAG, "Oh nose everything broke", e);
+				}
+			}
+		});
+		writer.shutdown();
+	}
+
+	private String format() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Startup ").append(new Date()).append('\n');
+		for (int i = 0; i < count; i++) {
+			builder.append(String.format(Locale.US, "%8d ms  %-36s", offsets[i], phases[i]));
+			if (durations[i] >= 0) {
+				builder.append(String.format(Locale.US, "%6d ms  ", durations[i]));
+			} else {
+				builder.append("          ");
+			}
+			builder.append(threads[i]).append('\n');
+		}
+		return builder.toString();
+	}
+}
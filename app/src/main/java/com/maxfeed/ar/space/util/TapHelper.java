@@ -20,32 +20,86 @@ import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class TapHelper implements OnTouchListener {
+	public interface LongPressListener {
+		void onLongPress();
+	}
+
+	public static final int CAPACITY = 16;
+	private static final int MASK = CAPACITY - 1;
+
 	private final GestureDetector gestureDetector;
-	private final BlockingQueue<MotionEvent> queuedSingleTaps = new ArrayBlockingQueue<>(16);
-	
+
+	// Кольцо на одного писателя (поток интерфейса) и одного читателя (поток GL).
+	// MotionEvent переиспользуется системой, поэтому копируются только координаты и время
+	private final float[] xs = new float[CAPACITY];
+	private final float[] ys = new float[CAPACITY];
+	private final long[] timestamps = new long[CAPACITY];
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long droppedTaps;
+	private LongPressListener longPressListener;
+
 	public TapHelper(Context context) {
 		gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
 			@Override
 			public boolean onSingleTapUp(MotionEvent e) {
-				queuedSingleTaps.offer(e);
+				offer(e.getX(), e.getY(), e.getEventTime());
 				return true;
 			}
 
+			@Override
+			public void onLongPress(MotionEvent e) {
+				// Долгое нажатие не нужно потоку GL, поэтому обрабатывается сразу в потоке интерфейса
+				if (longPressListener != null) {
+					longPressListener.onLongPress();
+				}
+			}
+
 			@Override
 			public boolean onDown(MotionEvent e) {
 				return true;
 			}
 		});
 	}
-	
-	public MotionEvent poll() {
-		return queuedSingleTaps.poll();
+
+	private void offer(float x, float y, long timestamp) {
+		long t = tail.get();
+		if (t - head.get() == CAPACITY) {
+			// Поток GL отстал больше чем на кольцо, лишние касания не стоят блокировки интерфейса
+			droppedTaps++;
+			return;
+		}
+		int index = (int) (t & MASK);
+		xs[index] = x;
+		ys[index] = y;
+		timestamps[index] = timestamp;
+		tail.lazySet(t + 1);
+	}
+
+	public int drain(float[] outX, float[] outY, long[] outTimestamps) {
+		long h = head.get();
+		int count = (int) Math.min(tail.get() - h, outX.length);
+		for (int i = 0; i < count; i++) {
+			int index = (int) ((h + i) & MASK);
+			outX[i] = xs[index];
+			outY[i] = ys[index];
+			outTimestamps[i] = timestamps[index];
+		}
+		head.lazySet(h + count);
+		return count;
+	}
+
+	public void setLongPressListener(LongPressListener listener) {
+		longPressListener = listener;
+	}
+
+	public long getDroppedTaps() {
+		return droppedTaps;
 	}
-	
+
 	@Override
 	public boolean onTouch(View view, MotionEvent motionEvent) {
 		return gestureDetector.onTouchEvent(motionEvent);
@@ -39,6 +39,7 @@ public final class TrackingStateHelper {
 		this.activity = activity;
 	}
 	
+	// Вызывается в потоке интерфейса, изменения из потока GL приходят через UiStateChannel
 	public void updateKeepScreenOnFlag(TrackingState trackingState) {
 		if (trackingState == previousTrackingState) {
 			return;
@@ -47,18 +48,10 @@ public final class TrackingStateHelper {
 		switch (trackingState) {
 		case PAUSED:
 		case STOPPED:
-			activity.runOnUiThread(new Runnable() {
-				public void run() {
-					activity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-				}
-			});
+			activity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 			break;
 		case TRACKING:
-			activity.runOnUiThread(new Runnable() {
-				public void run() {
-					activity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-				}
-			});
+			activity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 			break;
 		}
 	}
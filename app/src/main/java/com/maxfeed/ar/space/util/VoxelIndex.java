@@ -0,0 +1,332 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.util;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+public class VoxelIndex {
+	private static final int NONE = -1;
+	// Сколько самых старых вокселей просматривается в поисках дальнего перед вытеснением
+	private static final int EVICTION_CANDIDATES = 64;
+
+	public interface Visitor {
+		void visit(float x, float y, float z, int count);
+	}
+
+	private final float voxelSize;
+	private final int maxVoxels;
+
+	// Данные вокселей лежат в плотных массивах, свободные ячейки связаны в стек через next
+	private final long[] keys;
+	private final float[] sumX;
+	private final float[] sumY;
+	private final float[] sumZ;
+	private final int[] counts;
+	private final int[] previous;
+	private final int[] next;
+	private int freeHead;
+	private int size;
+
+	// Список по давности обновления: head самый свежий, tail самый старый
+	private int head = NONE;
+	private int tail = NONE;
+
+	private final long[] tableKeys;
+	private final int[] tableIndices;
+	private final int tableMask;
+
+	private float focusX;
+	private float focusY;
+	private float focusZ;
+	private float keepRadiusSquared = Float.MAX_VALUE;
+	private int evictionCount;
+
+	public VoxelIndex(float voxelSize, int maxVoxels) {
+		this.voxelSize = voxelSize;
+		this.maxVoxels = maxVoxels;
+		keys = new long[maxVoxels];
+		sumX = new float[maxVoxels];
+		sumY = new float[maxVoxels];
+		sumZ = new float[maxVoxels];
+		counts = new int[maxVoxels];
+		previous = new int[maxVoxels];
+		next = new int[maxVoxels];
+		int tableSize = Integer.highestOneBit(maxVoxels * 2 - 1) << 1;
+		tableKeys = new long[tableSize];
+		tableIndices = new int[tableSize];
+		tableMask = tableSize - 1;
+		clear();
+	}
+
+	public void clear() {
+		Arrays.fill(tableKeys, VoxelKeys.EMPTY_KEY);
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < maxVoxels; i++) {
+			next[i] = i + 1 < maxVoxels ? i + 1 : NONE;
+		}
+		freeHead = 0;
+		head = NONE;
+		tail = NONE;
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public float getVoxelSize() {
+		return voxelSize;
+	}
+
+	public int getEvictionCount() {
+		return evictionCount;
+	}
+
+	public void setFocus(float x, float y, float z, float keepRadius) {
+		focusX = x;
+		focusY = y;
+		focusZ = z;
+		keepRadiusSquared = keepRadius * keepRadius;
+	}
+
+	public void insert(FloatBuffer points, float minConfidence) {
+		FloatBuffer source = points.duplicate();
+		while (source.remaining() >= 4) {
+			float x = source.get();
+			float y = source.get();
+			float z = source.get();
+			if (source.get() >= minConfidence) {
+				insert(x, y, z);
+			}
+		}
+	}
+
+	public void insert(float x, float y, float z) {
+		long key = VoxelKeys.key(cell(x), cell(y), cell(z));
+		int slot = findSlot(key);
+		int index;
+		if (tableKeys[slot] == key) {
+			index = tableIndices[slot];
+			unlink(index);
+		} else {
+			if (size == maxVoxels) {
+				evict();
+				slot = findSlot(key);
+			}
+			index = freeHead;
+			freeHead = next[index];
+			keys[index] = key;
+			sumX[index] = 0;
+			sumY[index] = 0;
+			sumZ[index] = 0;
+			counts[index] = 0;
+			tableKeys[slot] = key;
+			tableIndices[slot] = index;
+			size++;
+		}
+		sumX[index] += x;
+		sumY[index] += y;
+		sumZ[index] += z;
+		counts[index]++;
+		linkFirst(index);
+	}
+
+	public int count(float x, float y, float z) {
+		int slot = findSlot(VoxelKeys.key(cell(x), cell(y), cell(z)));
+		return tableKeys[slot] == VoxelKeys.EMPTY_KEY ? 0 : counts[tableIndices[slot]];
+	}
+
+	public int queryRadius(float x, float y, float z, float radius, Visitor visitor) {
+		float radiusSquared = radius * radius;
+		int minX = cell(x - radius);
+		int maxX = cell(x + radius);
+		int minY = cell(y - radius);
+		int maxY = cell(y + radius);
+		int minZ = cell(z - radius);
+		int maxZ = cell(z + radius);
+		long cells = (long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+		int visited = 0;
+		if (cells > size) {
+			// Большой радиус дешевле обойти полным перебором, чем пробовать каждую ячейку куба
+			for (int index = head; index != NONE; index = next[index]) {
+				visited += visit(index, x, y, z, radiusSquared, visitor);
+			}
+			return visited;
+		}
+		for (int cx = minX; cx <= maxX; cx++) {
+			for (int cy = minY; cy <= maxY; cy++) {
+				for (int cz = minZ; cz <= maxZ; cz++) {
+					int slot = findSlot(VoxelKeys.key(cx, cy, cz));
+					if (tableKeys[slot] != VoxelKeys.EMPTY_KEY) {
+						visited += visit(tableIndices[slot], x, y, z, radiusSquared, visitor);
+					}
+				}
+			}
+		}
+		return visited;
+	}
+
+	public boolean raycast(float originX, float originY, float originZ, float directionX, float directionY,
+			float directionZ, float maxDistance, int minCount, float[] hit) {
+		float length = (float) Math.sqrt(directionX * directionX + directionY * directionY + directionZ * directionZ);
+		if (length == 0) {
+			return false;
+		}
+		float dx = directionX / length;
+		float dy = directionY / length;
+		float dz = directionZ / length;
+		int cx = cell(originX);
+		int cy = cell(originY);
+		int cz = cell(originZ);
+		int stepX = dx > 0 ? 1 : -1;
+		int stepY = dy > 0 ? 1 : -1;
+		int stepZ = dz > 0 ? 1 : -1;
+		// Обход ячеек вдоль луча по Amanatides-Woo
+		float deltaX = dx != 0 ? Math.abs(voxelSize / dx) : Float.MAX_VALUE;
+		float deltaY = dy != 0 ? Math.abs(voxelSize / dy) : Float.MAX_VALUE;
+		float deltaZ = dz != 0 ? Math.abs(voxelSize / dz) : Float.MAX_VALUE;
+		float maxX = dx != 0 ? ((cx + (stepX > 0 ? 1 : 0)) * voxelSize - originX) / dx : Float.MAX_VALUE;
+		float maxY = dy != 0 ? ((cy + (stepY > 0 ? 1 : 0)) * voxelSize - originY) / dy : Float.MAX_VALUE;
+		float maxZ = dz != 0 ? ((cz + (stepZ > 0 ? 1 : 0)) * voxelSize - originZ) / dz : Float.MAX_VALUE;
+		float distance = 0;
+		while (distance <= maxDistance) {
+			int slot = findSlot(VoxelKeys.key(cx, cy, cz));
+			if (tableKeys[slot] != VoxelKeys.EMPTY_KEY) {
+				int index = tableIndices[slot];
+				if (counts[index] >= minCount) {
+					hit[0] = sumX[index] / counts[index];
+					hit[1] = sumY[index] / counts[index];
+					hit[2] = sumZ[index] / counts[index];
+					hit[3] = distance;
+					return true;
+				}
+			}
+			if (maxX < maxY && maxX < maxZ) {
+				cx += stepX;
+				distance = maxX;
+				maxX += deltaX;
+			} else if (maxY < maxZ) {
+				cy += stepY;
+				distance = maxY;
+				maxY += deltaY;
+			} else {
+				cz += stepZ;
+				distance = maxZ;
+				maxZ += deltaZ;
+			}
+		}
+		return false;
+	}
+
+	private int visit(int index, float x, float y, float z, float radiusSquared, Visitor visitor) {
+		int count = counts[index];
+		float vx = sumX[index] / count;
+		float vy = sumY[index] / count;
+		float vz = sumZ[index] / count;
+		float ex = vx - x;
+		float ey = vy - y;
+		float ez = vz - z;
+		if (ex * ex + ey * ey + ez * ez > radiusSquared) {
+			return 0;
+		}
+		visitor.visit(vx, vy, vz, count);
+		return 1;
+	}
+
+	private void evict() {
+		int victim = tail;
+		int candidate = tail;
+		// Из давно не обновлённых вокселей сначала уходят те, что далеко от камеры
+		for (int i = 0; i < EVICTION_CANDIDATES && candidate != NONE; i++) {
+			int count = counts[candidate];
+			float ex = sumX[candidate] / count - focusX;
+			float ey = sumY[candidate] / count - focusY;
+			float ez = sumZ[candidate] / count - focusZ;
+			if (ex * ex + ey * ey + ez * ez > keepRadiusSquared) {
+				victim = candidate;
+				break;
+			}
+			candidate = previous[candidate];
+		}
+		remove(victim);
+		evictionCount++;
+	}
+
+	private void remove(int index) {
+		unlink(index);
+		deleteSlot(findSlot(keys[index]));
+		counts[index] = 0;
+		next[index] = freeHead;
+		freeHead = index;
+		size--;
+	}
+
+	private void deleteSlot(int slot) {
+		// Обратный сдвиг вместо надгробий, чтобы цепочки проб не деградировали со временем
+		int hole = slot;
+		int current = (slot + 1) & tableMask;
+		while (tableKeys[current] != VoxelKeys.EMPTY_KEY) {
+			int home = VoxelKeys.hash(tableKeys[current]) & tableMask;
+			if (((current - home) & tableMask) >= ((current - hole) & tableMask)) {
+				tableKeys[hole] = tableKeys[current];
+				tableIndices[hole] = tableIndices[current];
+				hole = current;
+			}
+			current = (current + 1) & tableMask;
+		}
+		tableKeys[hole] = VoxelKeys.EMPTY_KEY;
+	}
+
+	private void linkFirst(int index) {
+		previous[index] = NONE;
+		next[index] = head;
+		if (head != NONE) {
+			previous[head] = index;
+		}
+		head = index;
+		if (tail == NONE) {
+			tail = index;
+		}
+	}
+
+	private void unlink(int index) {
+		int before = previous[index];
+		int after = next[index];
+		if (before != NONE) {
+			next[before] = after;
+		} else {
+			head = after;
+		}
+		if (after != NONE) {
+			previous[after] = before;
+		} else {
+			tail = before;
+		}
+	}
+
+	private int findSlot(long key) {
+		int slot = VoxelKeys.hash(key) & tableMask;
+		while (tableKeys[slot] != VoxelKeys.EMPTY_KEY && tableKeys[slot] != key) {
+			slot = (slot + 1) & tableMask;
+		}
+		return slot;
+	}
+
+	private int cell(float value) {
+		return VoxelKeys.cell(value, voxelSize);
+	}
+}
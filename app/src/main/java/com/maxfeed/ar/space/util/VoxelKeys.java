@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.util;
+
+public final class VoxelKeys {
+	// Ни одна упакованная ячейка не даёт -1: старший бит ключа всегда нулевой
+	public static final long EMPTY_KEY = -1L;
+	// По 21 биту на ось: при вокселе в 2 см это больше 20 км в каждую сторону
+	public static final int KEY_BITS = 21;
+	private static final int KEY_OFFSET = 1 << (KEY_BITS - 1);
+	private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+	private VoxelKeys() {}
+
+	public static int cell(float value, float voxelSize) {
+		return (int) Math.floor(value / voxelSize);
+	}
+
+	public static long key(int x, int y, int z) {
+		long vx = (x + KEY_OFFSET) & KEY_MASK;
+		long vy = (y + KEY_OFFSET) & KEY_MASK;
+		long vz = (z + KEY_OFFSET) & KEY_MASK;
+		return (vx << (2 * KEY_BITS)) | (vy << KEY_BITS) | vz;
+	}
+
+	public static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
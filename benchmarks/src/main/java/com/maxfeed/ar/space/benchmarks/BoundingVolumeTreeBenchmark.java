@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.benchmarks;
+
+import com.maxfeed.ar.space.util.BoundingVolumeTree;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Все замеры на один кадр сцены: построение, сдвиг всех объектов, отсечение и выбор касанием
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoundingVolumeTreeBenchmark {
+	private static final float MARGIN = 0.05f;
+	private static final int RAYS = 16;
+	// Сдвиг за кадр: половина кадров остаётся внутри запаса, остальные перестраивают лист
+	private static final float JITTER = 0.04f;
+
+	@Param({ "10", "1000", "10000" })
+	public int objects;
+
+	private float[] bounds;
+	private float[] moved;
+	private final float[] box = new float[6];
+	private final float[] planes = new float[24];
+	private final float[] rays = new float[RAYS * 6];
+	private BoundingVolumeTree tree;
+	private BoundingVolumeTree built;
+	private int[] proxies;
+	private int frame;
+	private int visible;
+	private float closest;
+	private float rayX;
+	private float rayY;
+	private float rayZ;
+	private float inverseX;
+	private float inverseY;
+	private float inverseZ;
+
+	private final BoundingVolumeTree.Visitor counter = new BoundingVolumeTree.Visitor() {
+		@Override
+		public boolean visit(int proxy, int userData) {
+			visible++;
+			return true;
+		}
+	};
+
+	private final BoundingVolumeTree.RayVisitor picker = new BoundingVolumeTree.RayVisitor() {
+		@Override
+		public float visit(int proxy, int userData, float maxDistance) {
+			float distance = Scenes.intersectRay(bounds, userData * 6, rayX, rayY, rayZ, inverseX, inverseY, inverseZ,
+					maxDistance);
+			if (distance < 0) {
+				return maxDistance;
+			}
+			closest = distance;
+			return distance;
+		}
+	};
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		bounds = Scenes.randomBounds(random, objects);
+		moved = new float[bounds.length];
+		tree = new BoundingVolumeTree(MARGIN);
+		built = new BoundingVolumeTree(MARGIN);
+		proxies = new int[objects];
+		for (int i = 0; i < objects; i++) {
+			System.arraycopy(bounds, i * 6, box, 0, 6);
+			proxies[i] = built.insert(box, i);
+		}
+		float[] viewProjection = Scenes.viewProjection(Scenes.EXTENT_XZ * 0.5f, 1.5f, Scenes.EXTENT_XZ * 0.5f,
+				0.0f);
+		BoundingVolumeTree.extractFrustumPlanes(viewProjection, planes);
+		for (int i = 0; i < RAYS; i++) {
+			// Касания из точки камеры в пределах кадра, как их даёт экран
+			rays[i * 6] = Scenes.EXTENT_XZ * 0.5f;
+			rays[i * 6 + 1] = 1.5f;
+			rays[i * 6 + 2] = Scenes.EXTENT_XZ * 0.5f;
+			rays[i * 6 + 3] = (random.nextFloat() - 0.5f) * 1.2f;
+			rays[i * 6 + 4] = (random.nextFloat() - 0.5f) * 0.6f;
+			rays[i * 6 + 5] = -1.0f;
+		}
+	}
+
+	@Benchmark
+	public int build() {
+		tree.clear();
+		for (int i = 0; i < objects; i++) {
+			System.arraycopy(bounds, i * 6, box, 0, 6);
+			tree.insert(box, i);
+		}
+		return tree.getHeight();
+	}
+
+	@Benchmark
+	public int update() {
+		float offset = (frame++ & 1) == 0 ? JITTER : -JITTER;
+		int refits = 0;
+		for (int i = 0; i < objects; i++) {
+			// Каждый второй объект уходит на двойной сдвиг и выходит за запас
+			float shift = (i & 1) == 0 ? offset : offset * 2.0f;
+			for (int k = 0; k < 6; k++) {
+				moved[i * 6 + k] = bounds[i * 6 + k] + (k % 3 == 0 ? shift : 0.0f);
+			}
+			System.arraycopy(moved, i * 6, box, 0, 6);
+			if (built.update(proxies[i], box)) {
+				refits++;
+			}
+		}
+		return refits;
+	}
+
+	@Benchmark
+	public int queryFrustum() {
+		visible = 0;
+		built.queryFrustum(planes, counter);
+		return visible;
+	}
+
+	@Benchmark
+	public int queryFrustumBruteForce() {
+		int count = 0;
+		for (int i = 0; i < objects; i++) {
+			if (Scenes.intersectsFrustum(bounds, i * 6, MARGIN, planes)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public float raycast() {
+		float sum = 0;
+		for (int i = 0; i < RAYS; i++) {
+			setRay(i);
+			closest = Float.MAX_VALUE;
+			built.raycast(rayX, rayY, rayZ, rays[i * 6 + 3], rays[i * 6 + 4], rays[i * 6 + 5], Float.MAX_VALUE,
+					picker);
+			sum += closest;
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public float raycastBruteForce() {
+		float sum = 0;
+		for (int i = 0; i < RAYS; i++) {
+			setRay(i);
+			float best = Float.MAX_VALUE;
+			for (int k = 0; k < objects; k++) {
+				float distance = Scenes.intersectRay(bounds, k * 6, rayX, rayY, rayZ, inverseX, inverseY, inverseZ,
+						best);
+				if (distance >= 0) {
+					best = distance;
+				}
+			}
+			sum += best;
+		}
+		return sum;
+	}
+
+	private void setRay(int ray) {
+		rayX = rays[ray * 6];
+		rayY = rays[ray * 6 + 1];
+		rayZ = rays[ray * 6 + 2];
+		inverseX = 1.0f / rays[ray * 6 + 3];
+		inverseY = 1.0f / rays[ray * 6 + 4];
+		inverseZ = 1.0f / rays[ray * 6 + 5];
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.benchmarks;
+
+import com.maxfeed.ar.space.util.BoundingVolumeTree;
+import java.util.Arrays;
+import java.util.Random;
+
+// Сверяет отсечение и выбор лучом с полным перебором на тех же сценах, что и замеры
+public final class BoundingVolumeTreeCheck {
+	private static final float MARGIN = 0.05f;
+	private static final int[] SIZES = { 10, 1000, 10000 };
+	private static final int FRAMES = 20;
+	private static final int QUERIES = 50;
+	private static final float MAX_STEP = 0.1f;
+	// Погрешность округления при сравнении расширенных коробок
+	private static final float EPSILON = 1e-4f;
+
+	private final Random random = new Random(7);
+	private final float[] box = new float[6];
+	private float[] bounds;
+	private boolean[] present;
+	private boolean[] visited;
+	private int visitedCount;
+	private boolean duplicate;
+	private float closest;
+	private float originX;
+	private float originY;
+	private float originZ;
+	private float inverseX;
+	private float inverseY;
+	private float inverseZ;
+
+	private final BoundingVolumeTree.Visitor collector = new BoundingVolumeTree.Visitor() {
+		@Override
+		public boolean visit(int proxy, int userData) {
+			if (visited[userData]) {
+				duplicate = true;
+			}
+			visited[userData] = true;
+			visitedCount++;
+			return true;
+		}
+	};
+
+	private final BoundingVolumeTree.RayVisitor picker = new BoundingVolumeTree.RayVisitor() {
+		@Override
+		public float visit(int proxy, int userData, float maxDistance) {
+			float distance = Scenes.intersectRay(bounds, userData * 6, originX, originY, originZ, inverseX, inverseY,
+					inverseZ, maxDistance);
+			if (distance < 0) {
+				return maxDistance;
+			}
+			closest = distance;
+			return distance;
+		}
+	};
+
+	public static void main(String[] args) {
+		BoundingVolumeTreeCheck check = new BoundingVolumeTreeCheck();
+		for (int size : SIZES) {
+			check.run(size);
+		}
+	}
+
+	private void run(int size) {
+		bounds = Scenes.randomBounds(random, size);
+		present = new boolean[size];
+		visited = new boolean[size];
+		BoundingVolumeTree tree = new BoundingVolumeTree(MARGIN);
+		int[] proxies = new int[size];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(bounds, i * 6, box, 0, 6);
+			proxies[i] = tree.insert(box, i);
+			present[i] = true;
+		}
+		for (int frame = 0; frame < FRAMES; frame++) {
+			for (int i = 0; i < size; i++) {
+				if (present[i] && random.nextInt(10) == 0) {
+					// Часть объектов уходит из сцены и возвращается, как якоря при потере отслеживания
+					tree.remove(proxies[i]);
+					present[i] = false;
+				} else if (!present[i]) {
+					System.arraycopy(bounds, i * 6, box, 0, 6);
+					proxies[i] = tree.insert(box, i);
+					present[i] = true;
+				} else {
+					move(i);
+					System.arraycopy(bounds, i * 6, box, 0, 6);
+					tree.update(proxies[i], box);
+				}
+			}
+			for (int query = 0; query < QUERIES; query++) {
+				checkFrustum(tree, size);
+				checkRay(tree, size);
+			}
+		}
+		System.out.println("BoundingVolumeTree " + size + " objects: " + FRAMES * QUERIES
+				+ " frustums and rays match brute force, height " + tree.getHeight());
+	}
+
+	private void move(int object) {
+		float dx = (random.nextFloat() - 0.5f) * MAX_STEP;
+		float dy = (random.nextFloat() - 0.5f) * MAX_STEP;
+		float dz = (random.nextFloat() - 0.5f) * MAX_STEP;
+		int base = object * 6;
+		bounds[base] += dx;
+		bounds[base + 1] += dy;
+		bounds[base + 2] += dz;
+		bounds[base + 3] += dx;
+		bounds[base + 4] += dy;
+		bounds[base + 5] += dz;
+	}
+
+	private void checkFrustum(BoundingVolumeTree tree, int size) {
+		float[] planes = new float[24];
+		float[] viewProjection = Scenes.viewProjection(random.nextFloat() * Scenes.EXTENT_XZ, 1.5f,
+				random.nextFloat() * Scenes.EXTENT_XZ, (float) (random.nextFloat() * Math.PI * 2.0));
+		BoundingVolumeTree.extractFrustumPlanes(viewProjection, planes);
+		Arrays.fill(visited, false);
+		visitedCount = 0;
+		duplicate = false;
+		tree.queryFrustum(planes, collector);
+		if (duplicate) {
+			throw new IllegalStateException("Frustum query visited an object twice");
+		}
+		for (int i = 0; i < size; i++) {
+			// Дерево отсекает по расширенным коробкам: всё видимое обязано попасть в выборку,
+			// а лишнее допустимо только в пределах запаса, который лист мог накопить при сдвигах
+			if (present[i] && Scenes.intersectsFrustum(bounds, i * 6, 0.0f, planes) && !visited[i]) {
+				throw new IllegalStateException("Frustum query missed visible object " + i + " of " + size);
+			}
+			if (visited[i] && (!present[i] || !Scenes.intersectsFrustum(bounds, i * 6, 2.0f * MARGIN + EPSILON, planes))) {
+				throw new IllegalStateException("Frustum query returned hidden object " + i + " of " + size);
+			}
+		}
+	}
+
+	private void checkRay(BoundingVolumeTree tree, int size) {
+		originX = random.nextFloat() * Scenes.EXTENT_XZ;
+		originY = random.nextFloat() * Scenes.EXTENT_Y;
+		originZ = random.nextFloat() * Scenes.EXTENT_XZ;
+		float directionX = (float) random.nextGaussian();
+		float directionY = (float) random.nextGaussian();
+		float directionZ = (float) random.nextGaussian();
+		inverseX = 1.0f / directionX;
+		inverseY = 1.0f / directionY;
+		inverseZ = 1.0f / directionZ;
+		closest = Float.MAX_VALUE;
+		tree.raycast(originX, originY, originZ, directionX, directionY, directionZ, Float.MAX_VALUE, picker);
+		float expected = Float.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			if (!present[i]) {
+				continue;
+			}
+			float distance = Scenes.intersectRay(bounds, i * 6, originX, originY, originZ, inverseX, inverseY,
+					inverseZ, expected);
+			if (distance >= 0) {
+				expected = distance;
+			}
+		}
+		if (closest != expected) {
+			throw new IllegalStateException("Raycast hit at " + closest + " but brute force found " + expected
+					+ " among " + size);
+		}
+	}
+}
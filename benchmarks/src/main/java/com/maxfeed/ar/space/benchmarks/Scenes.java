@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.benchmarks;
+
+import java.util.Random;
+
+final class Scenes {
+	// Сцена примерно 20 x 3 x 20 метров, объекты от 5 до 50 см
+	static final float EXTENT_XZ = 20.0f;
+	static final float EXTENT_Y = 3.0f;
+	private static final float MIN_SIZE = 0.05f;
+	private static final float MAX_SIZE = 0.5f;
+
+	private Scenes() {}
+
+	// Плотный массив коробок minX, minY, minZ, maxX, maxY, maxZ по 6 чисел на объект
+	static float[] randomBounds(Random random, int count) {
+		float[] bounds = new float[count * 6];
+		for (int i = 0; i < count; i++) {
+			float x = random.nextFloat() * EXTENT_XZ;
+			float y = random.nextFloat() * EXTENT_Y;
+			float z = random.nextFloat() * EXTENT_XZ;
+			float half = (MIN_SIZE + random.nextFloat() * (MAX_SIZE - MIN_SIZE)) * 0.5f;
+			bounds[i * 6] = x - half;
+			bounds[i * 6 + 1] = y - half;
+			bounds[i * 6 + 2] = z - half;
+			bounds[i * 6 + 3] = x + half;
+			bounds[i * 6 + 4] = y + half;
+			bounds[i * 6 + 5] = z + half;
+		}
+		return bounds;
+	}
+
+	// Те же матрицы, что дают Camera.getViewMatrix и getProjectionMatrix: столбцы подряд, камера смотрит в -Z
+	static float[] viewProjection(float eyeX, float eyeY, float eyeZ, float yaw) {
+		float near = 0.1f;
+		float far = 100.0f;
+		float focal = 1.0f / (float) Math.tan(Math.toRadians(30.0));
+		float aspect = 9.0f / 16.0f;
+		float[] projection = new float[16];
+		projection[0] = focal / aspect;
+		projection[5] = focal;
+		projection[10] = (far + near) / (near - far);
+		projection[11] = -1.0f;
+		projection[14] = 2.0f * far * near / (near - far);
+		float cos = (float) Math.cos(yaw);
+		float sin = (float) Math.sin(yaw);
+		// Обратный поворот вокруг Y и перенос на -eye
+		float[] view = new float[16];
+		view[0] = cos;
+		view[2] = sin;
+		view[5] = 1.0f;
+		view[8] = -sin;
+		view[10] = cos;
+		view[12] = -(cos * eyeX - sin * eyeZ);
+		view[13] = -eyeY;
+		view[14] = -(sin * eyeX + cos * eyeZ);
+		view[15] = 1.0f;
+		float[] result = new float[16];
+		for (int column = 0; column < 4; column++) {
+			for (int row = 0; row < 4; row++) {
+				float sum = 0;
+				for (int k = 0; k < 4; k++) {
+					sum += projection[k * 4 + row] * view[column * 4 + k];
+				}
+				result[column * 4 + row] = sum;
+			}
+		}
+		return result;
+	}
+
+	// Расстояние до входа луча в коробку или -1, та же проверка по плоскостям, что и в дереве
+	static float intersectRay(float[] bounds, int base, float originX, float originY, float originZ,
+			float inverseX, float inverseY, float inverseZ, float maxDistance) {
+		float near = 0.0f;
+		float far = maxDistance;
+		float t1 = (bounds[base] - originX) * inverseX;
+		float t2 = (bounds[base + 3] - originX) * inverseX;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		t1 = (bounds[base + 1] - originY) * inverseY;
+		t2 = (bounds[base + 4] - originY) * inverseY;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		t1 = (bounds[base + 2] - originZ) * inverseZ;
+		t2 = (bounds[base + 5] - originZ) * inverseZ;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		return near > far ? -1.0f : near;
+	}
+
+	// Полный перебор для сравнения с деревом
+	static boolean intersectsFrustum(float[] bounds, int base, float margin, float[] planes) {
+		for (int plane = 0; plane < 24; plane += 4) {
+			float a = planes[plane];
+			float b = planes[plane + 1];
+			float c = planes[plane + 2];
+			float x = a >= 0 ? bounds[base + 3] + margin : bounds[base] - margin;
+			float y = b >= 0 ? bounds[base + 4] + margin : bounds[base + 1] - margin;
+			float z = c >= 0 ? bounds[base + 5] + margin : bounds[base + 2] - margin;
+			if (a * x + b * y + c * z + planes[plane + 3] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
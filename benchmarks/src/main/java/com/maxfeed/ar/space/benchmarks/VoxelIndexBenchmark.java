@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.benchmarks;
+
+import com.maxfeed.ar.space.util.VoxelIndex;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoxelIndexBenchmark {
+	private static final int POINTS = 1 << 20;
+	private static final int QUERIES = 1024;
+	private static final float VOXEL_SIZE = 0.05f;
+	// Комната примерно 10 x 3 x 10 метров, как при обычном сканировании
+	private static final float EXTENT_XZ = 10.0f;
+	private static final float EXTENT_Y = 3.0f;
+
+	// Вместимость меньше числа занятых вокселей заставляет вытеснять на каждой вставке
+	@Param({ "16384", "262144" })
+	public int maxVoxels;
+
+	private final float[] points = new float[POINTS * 3];
+	private final float[] queries = new float[QUERIES * 6];
+	private final float[] hit = new float[4];
+	private VoxelIndex index;
+	private VoxelIndex filled;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		for (int i = 0; i < POINTS; i++) {
+			points[i * 3] = random.nextFloat() * EXTENT_XZ;
+			points[i * 3 + 1] = random.nextFloat() * EXTENT_Y;
+			points[i * 3 + 2] = random.nextFloat() * EXTENT_XZ;
+		}
+		for (int i = 0; i < QUERIES; i++) {
+			queries[i * 6] = random.nextFloat() * EXTENT_XZ;
+			queries[i * 6 + 1] = random.nextFloat() * EXTENT_Y;
+			queries[i * 6 + 2] = random.nextFloat() * EXTENT_XZ;
+			queries[i * 6 + 3] = (float) random.nextGaussian();
+			queries[i * 6 + 4] = (float) random.nextGaussian();
+			queries[i * 6 + 5] = (float) random.nextGaussian();
+		}
+		index = new VoxelIndex(VOXEL_SIZE, maxVoxels);
+		index.setFocus(EXTENT_XZ * 0.5f, EXTENT_Y * 0.5f, EXTENT_XZ * 0.5f, 2.0f);
+		filled = new VoxelIndex(VOXEL_SIZE, maxVoxels);
+		filled.setFocus(EXTENT_XZ * 0.5f, EXTENT_Y * 0.5f, EXTENT_XZ * 0.5f, 2.0f);
+		for (int i = 0; i < POINTS; i++) {
+			filled.insert(points[i * 3], points[i * 3 + 1], points[i * 3 + 2]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public int insert() {
+		index.clear();
+		for (int i = 0; i < POINTS; i++) {
+			index.insert(points[i * 3], points[i * 3 + 1], points[i * 3 + 2]);
+		}
+		return index.size();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public void queryRadius(final Blackhole blackhole) {
+		VoxelIndex.Visitor visitor = new VoxelIndex.Visitor() {
+			@Override
+			public void visit(float x, float y, float z, int count) {
+				blackhole.consume(count);
+			}
+		};
+		for (int i = 0; i < QUERIES; i++) {
+			blackhole.consume(filled.queryRadius(queries[i * 6], queries[i * 6 + 1], queries[i * 6 + 2], 0.2f,
+					visitor));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public void raycast(Blackhole blackhole) {
+		for (int i = 0; i < QUERIES; i++) {
+			blackhole.consume(filled.raycast(queries[i * 6], queries[i * 6 + 1], queries[i * 6 + 2],
+					queries[i * 6 + 3], queries[i * 6 + 4], queries[i * 6 + 5], 5.0f, 2, hit));
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2020-2021 RislaeD (github.com/rislaed)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.maxfeed.ar.space.tools;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import javax.imageio.ImageIO;
+
+public final class ImageDatabaseBuilder {
+	private static final String WIDTHS_FILE = "widths.properties";
+	private static final int MIN_IMAGE_SIZE = 300;
+	private static final int DEFAULT_MAX_IMAGE_SIZE = 1024;
+	private static final int MIN_QUALITY_SCORE = 75;
+
+	private File imageDirectory;
+	private File output;
+	private String arcoreimg = "arcoreimg";
+	private int maxImageSize = DEFAULT_MAX_IMAGE_SIZE;
+	private float defaultWidthMeters = 0.0f;
+	private boolean sharded = false;
+
+	public static void main(String[] args) throws Exception {
+		ImageDatabaseBuilder builder = new ImageDatabaseBuilder();
+		builder.parseArguments(args);
+		builder.build();
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch (args[i]) {
+			case "--images":
+				imageDirectory = new File(requireValue(args[i], value));
+				i++;
+				break;
+			case "--output":
+				output = new File(requireValue(args[i], value));
+				i++;
+				break;
+			case "--arcoreimg":
+				arcoreimg = requireValue(args[i], value);
+				i++;
+				break;
+			case "--max-size":
+				maxImageSize = Integer.parseInt(requireValue(args[i], value));
+				i++;
+				break;
+			case "--sharded":
+				sharded = true;
+				break;
+			case "--default-width":
+				defaultWidthMeters = Float.parseFloat(requireValue(args[i], value));
+				i++;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		if (imageDirectory == null || output == null) {
+			throw new IllegalArgumentException(
+					"Usage: --images <dir> --output <file.imgdb> [--arcoreimg <path>] [--max-size <px>] [--default-width <m>] [--sharded]");
+		}
+	}
+
+	private static String requireValue(String name, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Missing value for " + name);
+		}
+		return value;
+	}
+
+	private void build() throws IOException, InterruptedException {
+		if (!sharded) {
+			buildDatabase(imageDirectory, output);
+			return;
+		}
+		File[] shardDirectories = imageDirectory.listFiles();
+		if (shardDirectories == null) {
+			throw new IOException("Not a directory: " + imageDirectory);
+		}
+		Arrays.sort(shardDirectories);
+		int count = 0;
+		for (File shardDirectory : shardDirectories) {
+			if (shardDirectory.isDirectory()) {
+				buildDatabase(shardDirectory, new File(output, shardDirectory.getName() + ".imgdb"));
+				count++;
+			}
+		}
+		if (count == 0) {
+			throw new IOException("No shard directories found in " + imageDirectory);
+		}
+	}
+
+	private void buildDatabase(File imageDirectory, File output) throws IOException, InterruptedException {
+		File[] images = imageDirectory.listFiles();
+		if (images == null) {
+			throw new IOException("Not a directory: " + imageDirectory);
+		}
+		Arrays.sort(images);
+		Properties widths = loadWidths(imageDirectory);
+		File workDirectory = Files.createTempDirectory("imgdb").toFile();
+		File imageList = new File(workDirectory, "image_list.txt");
+		int count = 0;
+		try (PrintWriter writer = new PrintWriter(imageList, StandardCharsets.UTF_8.name())) {
+			for (File image : images) {
+				String name = image.getName();
+				String lowerName = name.toLowerCase(Locale.ROOT);
+				if (!lowerName.endsWith(".jpg") && !lowerName.endsWith(".jpeg") && !lowerName.endsWith(".png")) {
+					continue;
+				}
+				String key = name.substring(0, name.lastIndexOf('.'));
+				File prepared = prepareImage(image, workDirectory);
+				if (prepared == null) {
+					continue;
+				}
+				checkQuality(prepared);
+				String width = widths.getProperty(key);
+				if (width == null && defaultWidthMeters > 0) {
+					width = Float.toString(defaultWidthMeters);
+				}
+				writer.println(key + "|" + prepared.getAbsolutePath() + (width != null ? "|" + width : ""));
+				count++;
+			}
+		}
+		if (count == 0) {
+			throw new IOException("No images found in " + imageDirectory);
+		}
+		File parent = output.getAbsoluteFile().getParentFile();
+		if (!parent.exists() && !parent.mkdirs()) {
+			throw new IOException("Unable to create " + parent);
+		}
+		int exitCode = run(arcoreimg, "build-db", "--input_image_list_path=" + imageList.getAbsolutePath(),
+				"--output_db_path=" + output.getAbsolutePath());
+		if (exitCode != 0) {
+			throw new IOException("arcoreimg build-db failed with code " + exitCode);
+		}
+		System.out.println("Built " + output + " from " + count + " images");
+	}
+
+	private static Properties loadWidths(File imageDirectory) throws IOException {
+		Properties widths = new Properties();
+		File file = new File(imageDirectory, WIDTHS_FILE);
+		if (file.exists()) {
+			try (InputStream is = new FileInputStream(file)) {
+				widths.load(is);
+			}
+		}
+		return widths;
+	}
+
+	private File prepareImage(File image, File workDirectory) throws IOException {
+		BufferedImage source = ImageIO.read(image);
+		if (source == null) {
+			System.err.println("Skipping unreadable image " + image);
+			return null;
+		}
+		int width = source.getWidth();
+		int height = source.getHeight();
+		if (Math.min(width, height) < MIN_IMAGE_SIZE) {
+			System.err.println("Warning: " + image.getName() + " is smaller than " + MIN_IMAGE_SIZE + "px");
+		}
+		int largest = Math.max(width, height);
+		if (largest <= maxImageSize) {
+			return image;
+		}
+		// Лишнее разрешение не улучшает распознавание, но раздувает базу и время её загрузки
+		float scale = (float) maxImageSize / largest;
+		int scaledWidth = Math.round(width * scale);
+		int scaledHeight = Math.round(height * scale);
+		BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		graphics.drawImage(source, 0, 0, scaledWidth, scaledHeight, null);
+		graphics.dispose();
+		File target = new File(workDirectory, image.getName().replaceAll("\\.[^.]+$", ".png"));
+		ImageIO.write(scaled, "png", target);
+		return target;
+	}
+
+	private void checkQuality(File image) throws IOException, InterruptedException {
+		List<String> output = new ArrayList<>();
+		int exitCode = run(output, arcoreimg, "eval-img", "--input_image_path=" + image.getAbsolutePath());
+		if (exitCode != 0 || output.isEmpty()) {
+			return;
+		}
+		try {
+			int score = Integer.parseInt(output.get(output.size() - 1).trim());
+			if (score < MIN_QUALITY_SCORE) {
+				System.err.println("Warning: " + image.getName() + " scored " + score + ", tracking may be unstable");
+			}
+		} catch (NumberFormatException ignored) {
+		}
+	}
+
+	private static int run(String... command) throws IOException, InterruptedException {
+		return run(null, command);
+	}
+
+	private static int run(List<String> output, String... command) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (output != null) {
+					output.add(line);
+				} else {
+					System.out.println(line);
+				}
+			}
+		}
+		return process.waitFor();
+	}
+}